@@ -1,6 +1,7 @@
 package com.mobiledev.androidstudio.build;
 
 import android.os.Bundle;
+import android.text.Editable;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -14,6 +15,7 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.mobiledev.androidstudio.MobileDevApplication;
+import com.mobiledev.androidstudio.utils.CommandExecution;
 import com.mobiledev.androidstudio.utils.PreRootManager;
 
 import java.io.File;
@@ -25,6 +27,10 @@ import java.util.concurrent.Executors;
  */
 public class ApkBuilderActivity extends AppCompatActivity {
     private static final String TAG = "ApkBuilderActivity";
+    private static final long BUILD_TIMEOUT_MS = 30 * 60 * 1000;
+    
+    // Only the end of the build log is shown, like the result of a command keeps it
+    private static final int MAX_LOG_LENGTH = CommandExecution.TAIL_SIZE;
     
     private EditText projectPathEditText;
     private RadioGroup projectTypeRadioGroup;
@@ -34,6 +40,7 @@ public class ApkBuilderActivity extends AppCompatActivity {
     private TextView buildLogTextView;
     
     private ExecutorService executorService;
+    private volatile CommandExecution buildExecution;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -67,10 +74,17 @@ public class ApkBuilderActivity extends AppCompatActivity {
         
         // Create executor service for background tasks
         executorService = Executors.newSingleThreadExecutor();
+        
+        // Have a PRoot shell ready by the time a build starts
+        MobileDevApplication.getInstance().getPreRootManager().warmUp();
     }
     
     @Override
     protected void onDestroy() {
+        CommandExecution execution = buildExecution;
+        if (execution != null) {
+            execution.cancel();
+        }
         executorService.shutdown();
         super.onDestroy();
     }
@@ -104,7 +118,7 @@ public class ApkBuilderActivity extends AppCompatActivity {
         buildProgressBar.setVisibility(View.VISIBLE);
         buildButton.setEnabled(false);
         buildStatusTextView.setText("Building " + projectType + " APK...");
-        buildLogTextView.setText("");
+        buildLogTextView.setText("", TextView.BufferType.EDITABLE);
         
         // Build APK in background
         executorService.execute(() -> {
@@ -132,7 +146,24 @@ public class ApkBuilderActivity extends AppCompatActivity {
                 
                 // Execute build command
                 appendLog("Executing build command: " + buildCommand);
-                int result = prootManager.executeCommand(buildCommand);
+                buildExecution = prootManager.executeCommand(buildCommand, BUILD_TIMEOUT_MS,
+                        new CommandExecution.Callback() {
+                            @Override
+                            public void onOutput(String output) {
+                                // Shown live while the build runs
+                                showLog(output);
+                            }
+                            
+                            @Override
+                            public void onFinished(CommandExecution.Result result) {
+                            }
+                        });
+                CommandExecution.Result buildResult = buildExecution.waitFor();
+                buildExecution = null;
+                int result = buildResult.getExitCode();
+                if (buildResult.isTimedOut()) {
+                    appendLog("Build timed out");
+                }
                 
                 // Check result
                 if (result == 0) {
@@ -198,7 +229,30 @@ public class ApkBuilderActivity extends AppCompatActivity {
      */
     private void appendLog(String text) {
         runOnUiThread(() -> {
-            buildLogTextView.append(text + "\n");
+            showLog(text + "\n");
         });
     }
+    
+    /**
+     * Add text to the log view on the main thread, dropping whole lines from
+     * its start once it is longer than {@link #MAX_LOG_LENGTH}
+     */
+    private void showLog(String text) {
+        Editable log = buildLogTextView.getEditableText();
+        if (log == null) {
+            buildLogTextView.setText(text, TextView.BufferType.EDITABLE);
+            return;
+        }
+        log.append(text);
+        
+        int excess = log.length() - MAX_LOG_LENGTH;
+        if (excess > 0) {
+            // Cut after a line break unless the rest is one long line
+            int end = excess;
+            while (end < log.length() && log.charAt(end - 1) != '\n') {
+                end++;
+            }
+            log.delete(0, end < log.length() ? end : excess);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,228 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the events of an asciicast v2 recording, as written by
+ * {@link AsciicastRecorder} or asciinema.
+ *
+ * Only the parts of the format needed for replay are understood: the terminal
+ * size in the header, and output ("o") and resize ("r") events. Other events
+ * are skipped. Uses no Android classes, so recordings can also be fed to the
+ * emulator in JVM benchmarks.
+ */
+public class AsciicastReader implements Closeable {
+
+    private static final Pattern HEADER_SIZE = Pattern.compile("\"(width|height)\"\\s*:\\s*(\\d+)");
+
+    private final BufferedReader reader;
+    private int width = 80;
+    private int height = 24;
+
+    // Position in the event line being parsed
+    private String line;
+    private int position;
+
+    /**
+     * Open a recording and read its header
+     *
+     * @param reader Reader of the recording
+     * @throws IOException If the header cannot be read or is not asciicast v2
+     */
+    public AsciicastReader(Reader reader) throws IOException {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+
+        String header = this.reader.readLine();
+        if (header == null || !header.startsWith("{") || !header.replace(" ", "").contains("\"version\":2")) {
+            throw new IOException("Not an asciicast v2 recording");
+        }
+        Matcher matcher = HEADER_SIZE.matcher(header);
+        while (matcher.find()) {
+            int value = Integer.parseInt(matcher.group(2));
+            if (matcher.group(1).equals("width")) {
+                width = value;
+            } else {
+                height = value;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Read the next output or resize event
+     *
+     * @return The event, or null at the end of the recording
+     * @throws IOException If the recording cannot be read or an event is malformed
+     */
+    public Event next() throws IOException {
+        while ((line = reader.readLine()) != null) {
+            position = 0;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            expect('[');
+            double time = parseNumber();
+            expect(',');
+            String type = parseString();
+            expect(',');
+            String data = parseString();
+
+            if (type.equals("o")) {
+                return new Event(time, data, 0, 0);
+            }
+            if (type.equals("r")) {
+                int separator = data.indexOf('x');
+                if (separator > 0) {
+                    try {
+                        return new Event(time, null, Integer.parseInt(data.substring(0, separator)),
+                                Integer.parseInt(data.substring(separator + 1)));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed resize event: " + line);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void skipSpaces() {
+        while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+            position++;
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        skipSpaces();
+        if (position >= line.length() || line.charAt(position) != c) {
+            throw new IOException("Malformed event: " + line);
+        }
+        position++;
+    }
+
+    private double parseNumber() throws IOException {
+        skipSpaces();
+        int start = position;
+        while (position < line.length() && "+-.eE0123456789".indexOf(line.charAt(position)) >= 0) {
+            position++;
+        }
+        try {
+            return Double.parseDouble(line.substring(start, position));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed event time: " + line);
+        }
+    }
+
+    private String parseString() throws IOException {
+        expect('"');
+        StringBuilder builder = new StringBuilder();
+        while (position < line.length()) {
+            char c = line.charAt(position++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (position >= line.length()) {
+                break;
+            }
+
+            char escaped = line.charAt(position++);
+            switch (escaped) {
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'u':
+                    if (position + 4 > line.length()) {
+                        throw new IOException("Malformed escape: " + line);
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(line.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed escape: " + line);
+                    }
+                    position += 4;
+                    break;
+                default:
+                    // \" \\ and \/
+                    builder.append(escaped);
+                    break;
+            }
+        }
+        throw new IOException("Unterminated string: " + line);
+    }
+
+    /**
+     * An output or resize event
+     */
+    public static class Event {
+        private final double time;
+        private final String output;
+        private final int columns;
+        private final int rows;
+
+        Event(double time, String output, int columns, int rows) {
+            this.time = time;
+            this.output = output;
+            this.columns = columns;
+            this.rows = rows;
+        }
+
+        /**
+         * Get the time of the event
+         *
+         * @return Seconds since the start of the recording
+         */
+        public double getTime() {
+            return time;
+        }
+
+        /**
+         * Get the output of an output event
+         *
+         * @return The output, or null for a resize event
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        public int getColumns() {
+            return columns;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records terminal output with timestamps to an asciicast v2 file, the format
+ * of asciinema.
+ *
+ * The thread reading the program output only copies each chunk and queues it;
+ * decoding, JSON escaping and writing happen on a thread of the recorder, which
+ * writes through a buffer and flushes whenever it has caught up. The reader is
+ * a shared I/O worker and never waits: if the file cannot keep up and
+ * {@link #QUEUE_CAPACITY} chunks are queued, output is left out of the recording
+ * and a note of how much is written in its place.
+ */
+public class AsciicastRecorder implements Closeable {
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static final Event END = new Event(0, null, 0, 0);
+
+    private final Writer writer;
+    private final long startTime = System.nanoTime();
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile boolean closed;
+
+    // Events left out since the last queued one, guarded by this
+    private boolean dropping;
+    private long droppedBytes;
+
+    // Output is UTF-8, a sequence can be split between chunks
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] undecoded = new byte[0];
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Create a recording and write its header
+     *
+     * @param file File to write, replaced if it exists
+     * @param columns Number of columns of the terminal
+     * @param rows Number of rows of the terminal
+     * @param terminalType Value of TERM for the recorded program
+     * @param shell Path of the shell, or null if unknown
+     * @throws IOException If the file cannot be written
+     */
+    public AsciicastRecorder(File file, int columns, int rows, String terminalType, String shell) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+                64 * 1024);
+
+        line.append("{\"version\": 2, \"width\": ").append(columns)
+                .append(", \"height\": ").append(rows)
+                .append(", \"timestamp\": ").append(System.currentTimeMillis() / 1000)
+                .append(", \"env\": {\"TERM\": ");
+        appendString(terminalType);
+        if (shell != null) {
+            line.append(", \"SHELL\": ");
+            appendString(shell);
+        }
+        line.append("}}\n");
+        writer.write(line.toString());
+
+        new Thread(this::writeEvents, "AsciicastRecorder").start();
+    }
+
+    /**
+     * Record program output. The data is copied, the buffer can be reused.
+     *
+     * @param data Buffer holding the output
+     * @param offset Start of the output in the buffer
+     * @param length Number of bytes
+     */
+    public void recordOutput(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        queue(new Event(System.nanoTime(), copy, 0, 0));
+    }
+
+    /**
+     * Record a change of the terminal size
+     *
+     * @param columns Number of columns
+     * @param rows Number of rows
+     */
+    public void recordResize(int columns, int rows) {
+        queue(new Event(System.nanoTime(), null, columns, rows));
+    }
+
+    private synchronized void queue(Event event) {
+        if (closed) {
+            return;
+        }
+
+        // Note the gap before the first event after it, when there is room again
+        if (dropping) {
+            String note = "\r\n[" + droppedBytes + " bytes of output not recorded]\r\n";
+            if (!queue.offer(new Event(event.time, note.getBytes(StandardCharsets.UTF_8), 0, 0))) {
+                addDropped(event);
+                return;
+            }
+            dropping = false;
+            droppedBytes = 0;
+        }
+        if (!queue.offer(event)) {
+            addDropped(event);
+        }
+    }
+
+    private void addDropped(Event event) {
+        dropping = true;
+        if (event.data != null) {
+            droppedBytes += event.data.length;
+        }
+    }
+
+    /**
+     * Stop recording. Returns at once, the thread of the recorder writes the
+     * events still queued and closes the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // When the queue is full the writer stops once it has emptied it
+        queue.offer(END);
+    }
+
+    private void writeEvents() {
+        try {
+            while (true) {
+                Event event = queue.poll();
+                if (event == null) {
+                    if (closed) {
+                        break;
+                    }
+                    // Caught up, so the file is complete up to now
+                    writer.flush();
+                    event = queue.take();
+                }
+                if (event == END) {
+                    break;
+                }
+                writeEvent(event);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // Stop recording
+        } finally {
+            closed = true;
+            queue.clear();
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeEvent(Event event) throws IOException {
+        line.setLength(0);
+        line.append('[').append(String.format(Locale.ROOT, "%.6f", (event.time - startTime) / 1e9));
+        if (event.data != null) {
+            line.append(", \"o\", ");
+            appendString(decode(event.data));
+        } else {
+            line.append(", \"r\", \"").append(event.columns).append('x').append(event.rows).append('"');
+        }
+        line.append("]\n");
+        writer.write(line.toString());
+    }
+
+    /**
+     * Decode a chunk of output, keeping an incomplete sequence at its end for the next one
+     */
+    private CharSequence decode(byte[] data) {
+        ByteBuffer input = ByteBuffer.allocate(undecoded.length + data.length);
+        input.put(undecoded).put(data).flip();
+        CharBuffer output = CharBuffer.allocate(input.remaining());
+        decoder.decode(input, output, false);
+        undecoded = new byte[input.remaining()];
+        input.get(undecoded);
+        output.flip();
+        return output;
+    }
+
+    /**
+     * Append text as a JSON string literal
+     */
+    private void appendString(CharSequence text) {
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x7f) {
+                        line.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                    break;
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Output or resize event waiting to be written
+     */
+    private static class Event {
+        final long time;
+        final byte[] data;
+        final int columns;
+        final int rows;
+
+        Event(long time, byte[] data, int columns, int rows) {
+            this.time = time;
+            this.data = data;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+}
@@ -17,11 +17,14 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
+import com.mobiledev.androidstudio.MobileDevApplication;
 import com.mobiledev.androidstudio.R;
-import com.mobiledev.androidstudio.utils.FileUtils;
+import com.mobiledev.androidstudio.view.CodeEditorView;
+import com.mobiledev.androidstudio.view.LargeFileView;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 /**
  * Fragment for code editing
@@ -37,6 +40,18 @@ public class CodeEditorFragment extends Fragment {
     private SyntaxHighlighter syntaxHighlighter;
     private boolean fileModified = false;
     private CodeEditorListener listener;
+    
+    // Background loading, and edits counted to tell whether a save is still current
+    private Future<?> loadTask;
+    private boolean loadingFile = false;
+    private int editCount = 0;
+    
+    // Set when only part of the file could be read, saving it would cut the file short
+    private boolean loadFailed = false;
+    
+    // Read-only viewer used instead of the editor for large files
+    private MappedTextFile mappedFile;
+    private LargeFileView largeFileView;
 
     /**
      * Interface for code editor events
@@ -88,6 +103,16 @@ public class CodeEditorFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (loadTask != null) {
+            loadTask.cancel(true);
+            loadTask = null;
+        }
+        closeMappedFile();
+    }
+
     @Override
     public void onAttach(@NonNull Context context) {
         super.onAttach(context);
@@ -129,8 +154,15 @@ public class CodeEditorFragment extends Fragment {
      * Set up the code editor
      */
     private void setupEditor() {
-        // Create syntax highlighter based on language
-        syntaxHighlighter = new SyntaxHighlighter(getContext(), language);
+        if (codeEditText instanceof CodeEditorView) {
+            // The view highlights only the lines an edit changed
+            if (language != null) {
+                ((CodeEditorView) codeEditText).setSyntaxHighlighter(language);
+            }
+        } else {
+            // Create syntax highlighter based on language
+            syntaxHighlighter = new SyntaxHighlighter(getContext(), language);
+        }
         
         // Load file content
         loadFileContent();
@@ -147,8 +179,16 @@ public class CodeEditorFragment extends Fragment {
 
             @Override
             public void afterTextChanged(Editable s) {
-                // Apply syntax highlighting
-                syntaxHighlighter.highlight(s);
+                // Apply syntax highlighting, unless the view does it itself
+                if (syntaxHighlighter != null) {
+                    syntaxHighlighter.highlight(s);
+                }
+                
+                // Text set while loading is not an edit
+                if (loadingFile) {
+                    return;
+                }
+                editCount++;
                 
                 // Mark file as modified
                 if (!fileModified) {
@@ -175,13 +215,139 @@ public class CodeEditorFragment extends Fragment {
             return;
         }
         
+        if (file.length() > getLargeFileThreshold()) {
+            openLargeFile(file);
+            return;
+        }
+        
+        // Not editable until the whole file is in, so the rest can be appended to the first screen
+        loadingFile = true;
+        loadFailed = false;
+        setEditable(false);
+        
+        loadTask = EditorFileManager.getInstance().loadFile(file, new EditorFileManager.LoadCallback() {
+            @Override
+            public void onPreviewLoaded(String preview) {
+                if (getView() != null) {
+                    codeEditText.setText(preview);
+                }
+            }
+
+            @Override
+            public void onFileLoaded(String content) {
+                if (getView() == null) {
+                    return;
+                }
+                
+                Editable text = codeEditText.getText();
+                if (text.length() > 0) {
+                    text.append(content, text.length(), content.length());
+                } else {
+                    codeEditText.setText(content);
+                }
+                finishLoading();
+            }
+
+            @Override
+            public void onLoadError(String error) {
+                if (getView() == null) {
+                    return;
+                }
+                
+                // Only show what was read, and never save it over the file
+                Toast.makeText(getContext(), "Error reading file: " + error, Toast.LENGTH_SHORT).show();
+                loadTask = null;
+                loadingFile = false;
+                loadFailed = true;
+                fileModified = false;
+            }
+        });
+    }
+
+    /**
+     * Make the editor editable once loading has ended
+     */
+    private void finishLoading() {
+        loadTask = null;
+        loadingFile = false;
+        fileModified = false;
+        setEditable(true);
+    }
+
+    /**
+     * Allow or prevent editing the text
+     *
+     * @param editable true to allow editing
+     */
+    private void setEditable(boolean editable) {
+        codeEditText.setFocusable(editable);
+        codeEditText.setFocusableInTouchMode(editable);
+    }
+
+    /**
+     * Get the file size above which files are opened read-only
+     */
+    private long getLargeFileThreshold() {
+        MobileDevApplication application = MobileDevApplication.getInstance();
+        if (application == null || application.getPerformanceOptimizer() == null) {
+            return 2 * 1024 * 1024;
+        }
+        
+        return application.getPerformanceOptimizer().getLargeFileThreshold();
+    }
+
+    /**
+     * Show a large file in the read-only viewer instead of the editor
+     *
+     * @param file The file to show
+     */
+    private void openLargeFile(File file) {
         try {
-            String content = FileUtils.readFile(file);
-            codeEditText.setText(content);
-            fileModified = false;
+            mappedFile = MappedTextFile.open(file);
         } catch (IOException e) {
             Toast.makeText(getContext(), "Error reading file: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        // Put the viewer in the editor's place
+        largeFileView = new LargeFileView(getContext());
+        largeFileView.setFile(mappedFile);
+        ViewGroup parent = (ViewGroup) codeEditText.getParent();
+        if (parent != null) {
+            int index = parent.indexOfChild(codeEditText);
+            parent.removeView(codeEditText);
+            parent.addView(largeFileView, index, codeEditText.getLayoutParams());
         }
+        
+        fileModified = false;
+        Toast.makeText(getContext(), "Large file opened read-only", Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Release the mapping of a large file
+     */
+    private void closeMappedFile() {
+        if (mappedFile == null) {
+            return;
+        }
+        
+        try {
+            mappedFile.close();
+        } catch (IOException e) {
+            // Ignore, the file was only read
+        }
+        mappedFile = null;
+        largeFileView = null;
+    }
+
+    /**
+     * Check if the file is shown in the read-only large file viewer, or could
+     * not be read completely
+     *
+     * @return true if the file cannot be edited
+     */
+    public boolean isReadOnly() {
+        return mappedFile != null || loadFailed;
     }
 
     /**
@@ -192,20 +358,52 @@ public class CodeEditorFragment extends Fragment {
             return;
         }
         
-        File file = new File(filePath);
-        try {
-            String content = codeEditText.getText().toString();
-            FileUtils.writeFile(file, content);
-            fileModified = false;
+        if (loadFailed) {
+            Toast.makeText(getContext(), "File could not be read completely, not saving", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        if (isReadOnly()) {
+            Toast.makeText(getContext(), "Large files are read-only", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        if (loadingFile) {
+            Toast.makeText(getContext(), "File is still loading", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        // Take a copy that cannot change while it is written; a document snapshot shares its text
+        CharSequence content;
+        if (codeEditText instanceof CodeEditorView) {
+            content = ((CodeEditorView) codeEditText).getDocument().snapshot();
+        } else {
+            content = codeEditText.getText().toString();
+        }
+        
+        // The save may finish after the fragment is gone, e.g. when saving on exit
+        final Context context = getContext().getApplicationContext();
+        final int savedEditCount = editCount;
+        
+        EditorFileManager.getInstance().saveFile(new File(filePath), content, new EditorFileManager.SaveCallback() {
+            @Override
+            public void onFileSaved() {
+                // Edits made while saving keep the file modified
+                if (editCount == savedEditCount) {
+                    fileModified = false;
+                    if (listener != null) {
+                        listener.onFileModified(filePath, false);
+                    }
+                }
             
-            if (listener != null) {
-                listener.onFileModified(filePath, false);
+                Toast.makeText(context, "File saved", Toast.LENGTH_SHORT).show();
             }
             
-            Toast.makeText(getContext(), "File saved", Toast.LENGTH_SHORT).show();
-        } catch (IOException e) {
-            Toast.makeText(getContext(), "Error saving file: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-        }
+            @Override
+            public void onSaveError(String error) {
+                Toast.makeText(context, "Error saving file: " + error, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     /**
@@ -221,7 +419,7 @@ public class CodeEditorFragment extends Fragment {
      * Request code completion
      */
     private void requestCodeCompletion() {
-        if (listener != null) {
+        if (listener != null && !isReadOnly()) {
             int position = codeEditText.getSelectionStart();
             String code = codeEditText.getText().toString();
             listener.onRequestCodeCompletion(code, position);
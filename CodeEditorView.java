@@ -25,8 +25,16 @@ import android.view.inputmethod.InputConnection;
 
 import androidx.appcompat.widget.AppCompatEditText;
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.mobiledev.androidstudio.editor.GroovySyntaxHighlighter;
+import com.mobiledev.androidstudio.editor.PieceTableDocument;
+import com.mobiledev.androidstudio.syntax.FastJavaSyntaxHighlighter;
+import com.mobiledev.androidstudio.syntax.LineStateHighlightEngine;
 import com.mobiledev.androidstudio.syntax.SyntaxHighlighter;
-import com.mobiledev.androidstudio.syntax.JavaSyntaxHighlighter;
+import com.mobiledev.androidstudio.syntax.TokenType;
 import com.mobiledev.androidstudio.syntax.XmlSyntaxHighlighter;
 
 /**
@@ -42,6 +50,14 @@ public class CodeEditorView extends AppCompatEditText {
     private static final int TAB_SIZE = 4;
     private static final String TAB_REPLACEMENT = "    ";
     
+    // Highlighting constants
+    private static final int VISIBLE_LINE_MARGIN = 20;
+    private static final int MAX_CATCH_UP_LINES = 300;
+    private static final long BACKGROUND_HIGHLIGHT_DELAY_MS = 150;
+    
+    // Frame budget at 60 fps
+    private static final long FRAME_BUDGET_NS = 16000000L;
+    
     // Line number paint
     private final Paint mLineNumberPaint;
     private final Paint mLineNumberBackgroundPaint;
@@ -50,10 +66,39 @@ public class CodeEditorView extends AppCompatEditText {
     // Text properties
     private final Rect mTextBounds = new Rect();
     private int mMaxLineNumberWidth;
+    private int mLineNumberDigits = 0;
+    
+    // Digits of the line number being drawn, filled from the end
+    private final char[] mLineNumberChars = new char[10];
+    
+    // Document model, kept in step with the editable text
+    private final PieceTableDocument mDocument = new PieceTableDocument();
     
     // Syntax highlighting
     private SyntaxHighlighter mSyntaxHighlighter;
     private String mFileExtension = "";
+    private LineStateHighlightEngine mHighlightEngine;
+    private final int[] mTokenColors = new int[TokenType.COUNT];
+    private final LineStateHighlightEngine.TokenApplicator mTokenApplicator = this::applyTokens;
+    private final ColorSpanPool mSpanPool = new ColorSpanPool();
+    private boolean[] mMatchedTokens = new boolean[64];
+    private ExecutorService mHighlightExecutor;
+    private final Runnable mBackgroundHighlightTask = this::startBackgroundHighlight;
+    
+    // Range of the last edit, used for incremental highlighting
+    private int mEditStart = 0;
+    private int mEditBefore = 0;
+    private int mEditCount = 0;
+    
+    // Span changes made for the last edit
+    private int mSpansAdded = 0;
+    private int mSpansRemoved = 0;
+    
+    // Draw time statistics
+    private long mLastFrameTimeNs = 0;
+    private long mMaxFrameTimeNs = 0;
+    private int mFrameCount = 0;
+    private int mSlowFrameCount = 0;
     
     // Auto indentation
     private int mIndent = 0;
@@ -107,6 +152,9 @@ public class CodeEditorView extends AppCompatEditText {
         // Set default syntax highlighter
         setSyntaxHighlighter("java");
         
+        // Mirror the text into the document model
+        mDocument.replace(0, mDocument.length(), getText(), 0, length());
+        
         // Add text watcher for syntax highlighting
         addTextChangedListener(new TextWatcher() {
             @Override
@@ -116,7 +164,11 @@ public class CodeEditorView extends AppCompatEditText {
             
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
-                // Not used
+                mDocument.replace(start, start + before, s, start, start + count);
+                
+                mEditStart = start;
+                mEditBefore = before;
+                mEditCount = count;
             }
             
             @Override
@@ -161,42 +213,86 @@ public class CodeEditorView extends AppCompatEditText {
         
         switch (mFileExtension) {
             case "java":
-                mSyntaxHighlighter = new JavaSyntaxHighlighter();
+                mSyntaxHighlighter = new FastJavaSyntaxHighlighter();
                 break;
             case "xml":
                 mSyntaxHighlighter = new XmlSyntaxHighlighter();
                 break;
+            case "gradle":
+            case "groovy":
+                mSyntaxHighlighter = new GroovySyntaxHighlighter();
+                break;
             default:
                 // Default to Java syntax highlighter
-                mSyntaxHighlighter = new JavaSyntaxHighlighter();
+                mSyntaxHighlighter = new FastJavaSyntaxHighlighter();
                 break;
         }
         
-        // Apply initial highlighting
+        // Resolve token colors once instead of per token
+        for (int type = 1; type < TokenType.COUNT; type++) {
+            mTokenColors[type] = mSyntaxHighlighter.getColor(type);
+        }
+        
+        // Apply initial highlighting over the whole text
+        mHighlightEngine = new LineStateHighlightEngine(mSyntaxHighlighter.getTokenizer());
+        mEditStart = 0;
+        mEditBefore = 0;
+        mEditCount = length();
         highlightSyntax();
     }
     
     /**
-     * Apply syntax highlighting to the text
+     * Get the document model holding the editor text. It can be saved with
+     * {@link PieceTableDocument#writeTo} without copying the text into a String.
+     * @return The document
+     */
+    public PieceTableDocument getDocument() {
+        return mDocument;
+    }
+    
+    /**
+     * Apply syntax highlighting to the lines affected by the last edit.
+     * Only the visible lines are painted here; the rest of the document is
+     * tokenized by a background pass.
      */
     private void highlightSyntax() {
-        if (mSyntaxHighlighter == null || mIsHighlighting) {
+        if (mHighlightEngine == null || mIsHighlighting) {
             return;
         }
         
         mIsHighlighting = true;
+        mSpansAdded = 0;
+        mSpansRemoved = 0;
         
         try {
             Editable editable = getText();
+            int[] visibleRange = getVisibleTextRange();
             
-            // Remove existing spans
-            ForegroundColorSpan[] spans = editable.getSpans(0, editable.length(), ForegroundColorSpan.class);
-            for (ForegroundColorSpan span : spans) {
-                editable.removeSpan(span);
-            }
-            
-            // Apply new highlighting
-            mSyntaxHighlighter.highlight(editable);
+            // Re-tokenize the edited lines, at most up to the end of the screen
+            mHighlightEngine.edit(editable, mEditStart, mEditBefore, mEditCount, visibleRange[1]);
+            mHighlightEngine.applyRange(editable, visibleRange[0], visibleRange[1], MAX_CATCH_UP_LINES, mTokenApplicator);
+        } catch (Exception e) {
+            Log.e(TAG, "Error during syntax highlighting", e);
+        } finally {
+            mIsHighlighting = false;
+        }
+        
+        scheduleBackgroundHighlight();
+    }
+    
+    /**
+     * Paint the visible lines from already computed tokens, e.g. after scrolling
+     */
+    private void highlightVisibleRange() {
+        if (mHighlightEngine == null || mIsHighlighting) {
+            return;
+        }
+        
+        mIsHighlighting = true;
+        
+        try {
+            int[] visibleRange = getVisibleTextRange();
+            mHighlightEngine.applyRange(getText(), visibleRange[0], visibleRange[1], MAX_CATCH_UP_LINES, mTokenApplicator);
         } catch (Exception e) {
             Log.e(TAG, "Error during syntax highlighting", e);
         } finally {
@@ -205,16 +301,213 @@ public class CodeEditorView extends AppCompatEditText {
     }
     
     /**
-     * Calculate the width needed for line numbers
+     * Replace the highlighting spans of one line with its tokens. All highlighters
+     * produce tokens, so this is the only place where highlighting spans are created.
+     *
+     * Spans that already match a token are kept; only the difference is applied, and
+     * removed spans go back to the pool for the tokens that still need one.
+     * @param lineStart Start of the line
+     * @param nextLineStart Start of the next line, or the text length for the last line
+     * @param tokens The tokens of the line as (offset from lineStart, length, type) triples
+     */
+    private void applyTokens(int lineStart, int nextLineStart, int[] tokens) {
+        Editable editable = getText();
+        int tokenCount = tokens.length / LineStateHighlightEngine.TOKEN_SIZE;
+        
+        if (mMatchedTokens.length < tokenCount) {
+            mMatchedTokens = new boolean[Math.max(tokenCount, mMatchedTokens.length * 2)];
+        }
+        boolean[] matched = mMatchedTokens;
+        Arrays.fill(matched, 0, tokenCount, false);
+        
+        // Keep the spans that match a token, drop the others
+        ForegroundColorSpan[] spans = editable.getSpans(lineStart, nextLineStart, ForegroundColorSpan.class);
+        int cursor = 0;
+        for (ForegroundColorSpan span : spans) {
+            int spanStart = editable.getSpanStart(span);
+            int spanEnd = editable.getSpanEnd(span);
+            
+            if (spanStart >= lineStart && spanEnd <= nextLineStart) {
+                int token = findToken(tokens, tokenCount, cursor, spanStart - lineStart,
+                        spanEnd - spanStart, span.getForegroundColor(), matched);
+                if (token >= 0) {
+                    matched[token] = true;
+                    cursor = token + 1;
+                    continue;
+                }
+            } else if (spanStart < nextLineStart && spanEnd > lineStart) {
+                // A line break was typed inside the span; the lines it now covers are repainted too
+                mHighlightEngine.invalidateRange(spanStart, spanEnd);
+            } else {
+                // Span of a neighbouring line that only touches this one
+                continue;
+            }
+            
+            editable.removeSpan(span);
+            mSpanPool.recycle(span);
+            mSpansRemoved++;
+        }
+        
+        // Add spans for the tokens that had none
+        for (int token = 0; token < tokenCount; token++) {
+            if (matched[token]) {
+                continue;
+            }
+            
+            int i = token * LineStateHighlightEngine.TOKEN_SIZE;
+            int tokenStart = lineStart + tokens[i];
+            editable.setSpan(
+                    mSpanPool.obtain(mTokenColors[tokens[i + 2]]),
+                    tokenStart,
+                    tokenStart + tokens[i + 1],
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+            );
+            mSpansAdded++;
+        }
+    }
+    
+    /**
+     * Find an unmatched token with the given position and color. The search starts at
+     * a cursor and wraps around, since spans usually come back in token order.
+     * @return Index of the token, or -1 if there is none
+     */
+    private int findToken(int[] tokens, int tokenCount, int cursor, int offset, int length, int color, boolean[] matched) {
+        for (int n = 0; n < tokenCount; n++) {
+            int token = (cursor + n) % tokenCount;
+            int i = token * LineStateHighlightEngine.TOKEN_SIZE;
+            if (!matched[token] && tokens[i] == offset && tokens[i + 1] == length
+                    && mTokenColors[tokens[i + 2]] == color) {
+                return token;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Get the number of highlighting spans added for the last edit, including
+     * lines painted later by scrolling or by the background pass
+     */
+    public int getSpansAdded() {
+        return mSpansAdded;
+    }
+    
+    /**
+     * Get the number of highlighting spans removed for the last edit, including
+     * lines painted later by scrolling or by the background pass
+     */
+    public int getSpansRemoved() {
+        return mSpansRemoved;
+    }
+    
+    /**
+     * Get the range of text on screen, extended by a margin of lines above and below
+     * @return The range as {start, end}
+     */
+    private int[] getVisibleTextRange() {
+        Layout layout = getLayout();
+        if (layout == null) {
+            return new int[]{0, length()};
+        }
+        
+        int firstLine = Math.max(0, layout.getLineForVertical(getScrollY()) - VISIBLE_LINE_MARGIN);
+        int lastLine = Math.min(layout.getLineCount() - 1,
+                layout.getLineForVertical(getScrollY() + getHeight()) + VISIBLE_LINE_MARGIN);
+        
+        return new int[]{layout.getLineStart(firstLine), layout.getLineEnd(lastLine)};
+    }
+    
+    /**
+     * Tokenize the rest of the document once typing pauses
+     */
+    private void scheduleBackgroundHighlight() {
+        removeCallbacks(mBackgroundHighlightTask);
+        
+        if (mHighlightEngine != null && mHighlightEngine.needsBackgroundPass()) {
+            postDelayed(mBackgroundHighlightTask, BACKGROUND_HIGHLIGHT_DELAY_MS);
+        }
+    }
+    
+    /**
+     * Run a background pass over the lines that are not tokenized yet. Results
+     * for a text that was edited in the meantime are discarded by the engine.
+     */
+    private void startBackgroundHighlight() {
+        if (mHighlightEngine == null || !mHighlightEngine.needsBackgroundPass()) {
+            return;
+        }
+        
+        if (mHighlightExecutor == null) {
+            mHighlightExecutor = Executors.newSingleThreadExecutor();
+        }
+        
+        final LineStateHighlightEngine engine = mHighlightEngine;
+        final LineStateHighlightEngine.BackgroundPass pass = engine.createBackgroundPass(mDocument.snapshot());
+        
+        mHighlightExecutor.execute(() -> {
+            pass.run();
+            
+            post(() -> {
+                if (engine == mHighlightEngine && engine.applyBackgroundPass(pass)) {
+                    highlightVisibleRange();
+                }
+            });
+        });
+    }
+    
+    @Override
+    protected void onScrollChanged(int horiz, int vert, int oldHoriz, int oldVert) {
+        super.onScrollChanged(horiz, vert, oldHoriz, oldVert);
+        
+        if (vert != oldVert) {
+            highlightVisibleRange();
+        }
+    }
+    
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mBackgroundHighlightTask);
+        
+        if (mHighlightExecutor != null) {
+            mHighlightExecutor.shutdownNow();
+            mHighlightExecutor = null;
+        }
+        mSpanPool.clear();
+        
+        super.onDetachedFromWindow();
+    }
+    
+    /**
+     * Calculate the width needed for line numbers, when the number of digits changed
      */
     private void calculateLineNumberWidth() {
         int lineCount = getLineCount();
-        String lastLineNumber = String.valueOf(lineCount);
+        int start = formatLineNumber(lineCount);
+        int digits = mLineNumberChars.length - start;
+        if (digits == mLineNumberDigits) {
+            return;
+        }
         
-        mLineNumberPaint.getTextBounds(lastLineNumber, 0, lastLineNumber.length(), mTextBounds);
+        mLineNumberDigits = digits;
+        mLineNumberPaint.getTextBounds(new String(mLineNumberChars, start, digits), 0, digits, mTextBounds);
         mMaxLineNumberWidth = mTextBounds.width();
     }
     
+    /**
+     * Write the digits of a line number to the end of the line number buffer
+     * @param number The line number
+     * @return The index of the first digit in the buffer
+     */
+    private int formatLineNumber(int number) {
+        int index = mLineNumberChars.length;
+        do {
+            mLineNumberChars[--index] = (char) ('0' + number % 10);
+            number /= 10;
+        } while (number > 0);
+        
+        return index;
+    }
+    
     /**
      * Handle auto-indentation
      * @param editable The editable text
@@ -226,21 +519,89 @@ public class CodeEditorView extends AppCompatEditText {
     
     @Override
     protected void onDraw(Canvas canvas) {
+        long frameStart = System.nanoTime();
+        
+        // The canvas is already translated by the scroll position
+        int top = getScrollY();
+        int bottom = top + getHeight();
+        
         // Draw line number background
-        canvas.drawRect(0, 0, LINE_NUMBER_MARGIN, getHeight(), mLineNumberBackgroundPaint);
+        canvas.drawRect(0, top, LINE_NUMBER_MARGIN, bottom, mLineNumberBackgroundPaint);
         
         // Draw divider
-        canvas.drawLine(LINE_NUMBER_MARGIN, 0, LINE_NUMBER_MARGIN, getHeight(), mDividerPaint);
+        canvas.drawLine(LINE_NUMBER_MARGIN, top, LINE_NUMBER_MARGIN, bottom, mDividerPaint);
         
-        // Draw line numbers
-        int lineCount = getLineCount();
-        for (int i = 0; i < lineCount; i++) {
-            int baseline = getLineBounds(i, null);
-            canvas.drawText(String.valueOf(i + 1), LINE_NUMBER_MARGIN - LINE_NUMBER_PADDING, baseline, mLineNumberPaint);
+        // Draw line numbers of the lines on screen only
+        Layout layout = getLayout();
+        if (layout != null) {
+            int firstLine = layout.getLineForVertical(top);
+            int lastLine = layout.getLineForVertical(bottom);
+            int paddingTop = getExtendedPaddingTop();
+            for (int i = firstLine; i <= lastLine; i++) {
+                int start = formatLineNumber(i + 1);
+                canvas.drawText(mLineNumberChars, start, mLineNumberChars.length - start,
+                        LINE_NUMBER_MARGIN - LINE_NUMBER_PADDING, layout.getLineBaseline(i) + paddingTop, mLineNumberPaint);
+            }
         }
         
         // Draw text
         super.onDraw(canvas);
+        
+        recordFrameTime(System.nanoTime() - frameStart);
+    }
+    
+    /**
+     * Record the time taken to draw a frame
+     * @param frameTimeNs Draw time in nanoseconds
+     */
+    private void recordFrameTime(long frameTimeNs) {
+        mLastFrameTimeNs = frameTimeNs;
+        mMaxFrameTimeNs = Math.max(mMaxFrameTimeNs, frameTimeNs);
+        mFrameCount++;
+        if (frameTimeNs > FRAME_BUDGET_NS) {
+            mSlowFrameCount++;
+        }
+    }
+    
+    /**
+     * Get the time taken by the last call to onDraw
+     * @return Draw time in nanoseconds
+     */
+    public long getLastFrameTimeNs() {
+        return mLastFrameTimeNs;
+    }
+    
+    /**
+     * Get the longest draw time since the statistics were reset
+     * @return Draw time in nanoseconds
+     */
+    public long getMaxFrameTimeNs() {
+        return mMaxFrameTimeNs;
+    }
+    
+    /**
+     * Get the number of frames drawn since the statistics were reset
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+    
+    /**
+     * Get the number of frames that took longer than 16 ms to draw since the
+     * statistics were reset
+     */
+    public int getSlowFrameCount() {
+        return mSlowFrameCount;
+    }
+    
+    /**
+     * Reset the draw time statistics, e.g. before measuring a scroll
+     */
+    public void resetFrameStats() {
+        mLastFrameTimeNs = 0;
+        mMaxFrameTimeNs = 0;
+        mFrameCount = 0;
+        mSlowFrameCount = 0;
     }
     
     @Override
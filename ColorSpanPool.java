@@ -0,0 +1,57 @@
+package com.mobiledev.androidstudio.view;
+
+import android.text.style.ForegroundColorSpan;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of {@link ForegroundColorSpan} instances, kept per color.
+ *
+ * A span removed from the text can be attached again later, so spans dropped
+ * while re-highlighting are recycled instead of being left to the garbage collector.
+ */
+public class ColorSpanPool {
+    
+    private static final int MAX_SPANS_PER_COLOR = 512;
+    
+    private final SparseArray<ArrayDeque<ForegroundColorSpan>> mPools = new SparseArray<>();
+    
+    /**
+     * Get a span of the given color, reusing a recycled one if possible
+     * @param color The foreground color
+     * @return A span that is not attached to any text
+     */
+    public ForegroundColorSpan obtain(int color) {
+        ArrayDeque<ForegroundColorSpan> pool = mPools.get(color);
+        if (pool != null && !pool.isEmpty()) {
+            return pool.pop();
+        }
+        
+        return new ForegroundColorSpan(color);
+    }
+    
+    /**
+     * Return a span that has been removed from the text
+     * @param span The span
+     */
+    public void recycle(ForegroundColorSpan span) {
+        int color = span.getForegroundColor();
+        ArrayDeque<ForegroundColorSpan> pool = mPools.get(color);
+        if (pool == null) {
+            pool = new ArrayDeque<>();
+            mPools.put(color, pool);
+        }
+        
+        if (pool.size() < MAX_SPANS_PER_COLOR) {
+            pool.push(span);
+        }
+    }
+    
+    /**
+     * Drop all pooled spans
+     */
+    public void clear() {
+        mPools.clear();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,378 @@
+package com.mobiledev.androidstudio.utils;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A command running in the background whose output is delivered while it runs.
+ * It runs as a process of its own, or through a {@link Runner} such as a shell
+ * of the PRoot pool.
+ *
+ * Output is read in chunks as it arrives and handed to the callback on the main
+ * thread at most every {@link #UPDATE_INTERVAL_MS} ms, joined into one piece, so a
+ * chatty command cannot flood the UI. Only the last {@link #TAIL_SIZE}
+ * characters are kept for the result; if the UI falls that far behind, the
+ * oldest output not delivered yet is skipped.
+ */
+public class CommandExecution {
+
+    private static final String TAG = "CommandExecution";
+
+    static final int UPDATE_INTERVAL_MS = 100;
+    public static final int TAIL_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Runner mRunner;
+    private final long mTimeoutMillis;
+    private final Callback mCallback;
+    private final Handler mMainHandler;
+
+    // Guarded by this
+    private final char[] mTail = new char[TAIL_SIZE];
+    private int mTailEnd;
+    private long mOutputLength;
+    private final StringBuilder mPending = new StringBuilder();
+    private boolean mUpdatePosted;
+    private boolean mStarted;
+    private boolean mCancelled;
+    private boolean mTimedOut;
+    private Result mResult;
+
+    private final Runnable mDeliverOutput = this::deliverOutput;
+    private final Runnable mTimeout = this::timeOut;
+
+    CommandExecution(ProcessBuilder processBuilder, long timeoutMillis, Callback callback, Handler mainHandler) {
+        this(new ProcessRunner(processBuilder), timeoutMillis, callback, mainHandler);
+    }
+
+    CommandExecution(Runner runner, long timeoutMillis, Callback callback, Handler mainHandler) {
+        mRunner = runner;
+        mTimeoutMillis = timeoutMillis;
+        mCallback = callback;
+        mMainHandler = mainHandler;
+    }
+
+    /**
+     * Stop the command. The callback still gets the result.
+     */
+    public void cancel() {
+        boolean started;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            started = mStarted;
+        }
+        if (started) {
+            mRunner.stop();
+        } else {
+            // Waiting for a thread, run() will not start it
+            finish(-1);
+        }
+    }
+
+    private void timeOut() {
+        synchronized (this) {
+            mTimedOut = true;
+        }
+        mRunner.stop();
+    }
+
+    /**
+     * Wait for the command to finish. Must not be called on the main thread.
+     * @return The result
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized Result waitFor() throws InterruptedException {
+        while (mResult == null) {
+            wait();
+        }
+        return mResult;
+    }
+
+    /**
+     * Run the command on the calling thread
+     */
+    void run() {
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mStarted = true;
+        }
+
+        int exitCode = -1;
+        DecodingOutput output = new DecodingOutput();
+        try {
+            // The timeout starts once the command can run
+            mRunner.prepare();
+            if (mTimeoutMillis > 0) {
+                mMainHandler.postDelayed(mTimeout, mTimeoutMillis);
+            }
+            exitCode = mRunner.run(output);
+        } catch (IOException e) {
+            Log.e(TAG, "Error executing command", e);
+            output.finish();
+            appendOutput(CharBuffer.wrap("Error: " + e.getMessage() + "\n"));
+        } catch (InterruptedException e) {
+            mRunner.stop();
+            Thread.currentThread().interrupt();
+        } finally {
+            output.finish();
+            mMainHandler.removeCallbacks(mTimeout);
+            finish(exitCode);
+        }
+    }
+
+    private void appendOutput(CharBuffer chars) {
+        int length = chars.remaining();
+        if (length == 0) {
+            return;
+        }
+
+        synchronized (this) {
+            // Keep the end of the output in the ring
+            for (int i = chars.position(); i < chars.limit(); i++) {
+                mTail[mTailEnd] = chars.get(i);
+                mTailEnd = (mTailEnd + 1) % TAIL_SIZE;
+            }
+            mOutputLength += length;
+
+            mPending.append(chars);
+            if (mPending.length() > TAIL_SIZE) {
+                mPending.delete(0, mPending.length() - TAIL_SIZE);
+            }
+            if (!mUpdatePosted) {
+                mUpdatePosted = true;
+                mMainHandler.postDelayed(mDeliverOutput, UPDATE_INTERVAL_MS);
+            }
+        }
+    }
+
+    private void deliverOutput() {
+        String output;
+        synchronized (this) {
+            output = mPending.toString();
+            mPending.setLength(0);
+            mUpdatePosted = false;
+        }
+        if (mCallback != null && !output.isEmpty()) {
+            mCallback.onOutput(output);
+        }
+    }
+
+    private void finish(int exitCode) {
+        Result result;
+        synchronized (this) {
+            String tail;
+            if (mOutputLength < TAIL_SIZE) {
+                tail = new String(mTail, 0, mTailEnd);
+            } else {
+                tail = new String(mTail, mTailEnd, TAIL_SIZE - mTailEnd) + new String(mTail, 0, mTailEnd);
+            }
+            result = new Result(exitCode, tail, mOutputLength, mCancelled, mTimedOut);
+        }
+
+        // The rest of the output comes before the result, and before anything
+        // posted to the main thread by a caller of waitFor()
+        mMainHandler.post(() -> {
+            deliverOutput();
+            if (mCallback != null) {
+                mCallback.onFinished(result);
+            }
+        });
+
+        synchronized (this) {
+            mResult = result;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Decodes output as it is written. A UTF-8 sequence split between writes is
+     * completed by the next one.
+     */
+    private class DecodingOutput extends OutputStream {
+        private final CharsetDecoder mDecoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            while (length > 0) {
+                int count = Math.min(length, mBytes.remaining());
+                mBytes.put(data, offset, count);
+                offset += count;
+                length -= count;
+                decode(false);
+            }
+        }
+
+        /**
+         * Decode what is left at the end of the output
+         */
+        void finish() {
+            decode(true);
+            mDecoder.flush(mChars);
+            mChars.flip();
+            appendOutput(mChars);
+            mChars.clear();
+            mDecoder.reset();
+        }
+
+        private void decode(boolean endOfInput) {
+            mBytes.flip();
+            mDecoder.decode(mBytes, mChars, endOfInput);
+            mBytes.compact();
+            mChars.flip();
+            appendOutput(mChars);
+            mChars.clear();
+        }
+    }
+
+    /**
+     * Runs the command and writes its output to a stream
+     */
+    interface Runner {
+        /**
+         * Get ready to run the command on the calling thread, such as by
+         * waiting for a shell. Not counted in the timeout.
+         */
+        void prepare() throws IOException, InterruptedException;
+
+        /**
+         * Run the command on the calling thread
+         * @param output Stream for the output, which can be written in any chunks
+         * @return The exit code
+         */
+        int run(OutputStream output) throws IOException, InterruptedException;
+
+        /**
+         * Stop the command from another thread
+         */
+        void stop();
+    }
+
+    /**
+     * Runs the command as a process of its own
+     */
+    private static class ProcessRunner implements Runner {
+        private final ProcessBuilder mProcessBuilder;
+        private Process mProcess;
+        private boolean mStopped;
+
+        ProcessRunner(ProcessBuilder processBuilder) {
+            mProcessBuilder = processBuilder;
+        }
+
+        @Override
+        public void prepare() {
+            // The process is started by run()
+        }
+
+        @Override
+        public int run(OutputStream output) throws IOException, InterruptedException {
+            Process process;
+            synchronized (this) {
+                if (mStopped) {
+                    return -1;
+                }
+                process = mProcessBuilder.start();
+                mProcess = process;
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream input = process.getInputStream()) {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            return process.waitFor();
+        }
+
+        @Override
+        public synchronized void stop() {
+            mStopped = true;
+            if (mProcess != null) {
+                mProcess.destroy();
+            }
+        }
+    }
+
+    /**
+     * Callback for the output and result of a command, called on the main thread
+     */
+    public interface Callback {
+        void onOutput(String output);
+        void onFinished(Result result);
+    }
+
+    /**
+     * Result of a finished command
+     */
+    public static class Result {
+        private final int mExitCode;
+        private final String mOutput;
+        private final long mOutputLength;
+        private final boolean mCancelled;
+        private final boolean mTimedOut;
+
+        Result(int exitCode, String output, long outputLength, boolean cancelled, boolean timedOut) {
+            mExitCode = exitCode;
+            mOutput = output;
+            mOutputLength = outputLength;
+            mCancelled = cancelled;
+            mTimedOut = timedOut;
+        }
+
+        /**
+         * Get the exit code
+         * @return The exit code, or -1 if the command could not be run
+         */
+        public int getExitCode() {
+            return mExitCode;
+        }
+
+        /**
+         * Get the end of the output
+         * @return At most the last {@link #TAIL_SIZE} characters of the output
+         */
+        public String getOutput() {
+            return mOutput;
+        }
+
+        /**
+         * Check if output was dropped from the start of {@link #getOutput()}
+         * @return true if the command printed more than was kept
+         */
+        public boolean isTruncated() {
+            return mOutputLength > mOutput.length();
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isTimedOut() {
+            return mTimedOut;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * History of the commands run in all terminal sessions, kept across app restarts.
+ *
+ * Commands are appended to a log file, one per line. A command run again only
+ * moves to the front, so lookups return each command once, newest first. The
+ * log is rewritten without the repeated commands once it holds twice as many
+ * lines as needed, keeping at most {@link #MAX_COMMANDS} commands.
+ *
+ * Lookups use an in-memory index: the commands sorted by text, with a tree of
+ * the newest use over each range, so the newest commands starting with a prefix
+ * are found without looking at the older ones. Commands added since the index
+ * was built are kept in a short list that is searched first; once it grows, the
+ * index is rebuilt. All file access and index building happen on a background
+ * thread, so adding a command never waits for the disk.
+ */
+public class CommandHistory {
+
+    static final int MAX_COMMANDS = 100000;
+
+    // Commands added before the index is rebuilt
+    private static final int RECENT_LIMIT = 256;
+
+    private final File file;
+    private final ExecutorService executor;
+
+    // Guarded by this
+    private final Map<String, Integer> latest = new HashMap<>();
+    private final List<String> recent = new ArrayList<>();
+    private Index index = new Index(new String[0], new int[0]);
+    private int nextSequence;
+    private boolean rebuilding;
+    private boolean closed;
+
+    // Only used on the executor
+    private Writer writer;
+    private int logLines;
+
+    /**
+     * Open the history, which is loaded in the background
+     *
+     * @param file Log file of the history, created when the first command is added
+     */
+    public CommandHistory(File file) {
+        this.file = file;
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CommandHistory");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.execute(this::load);
+    }
+
+    /**
+     * Add a command that was run
+     *
+     * @param command The command, without the line break that ran it
+     */
+    public void add(String command) {
+        if (command == null) {
+            return;
+        }
+        String trimmed = command.trim();
+        if (trimmed.isEmpty()) {
+            return;
+        }
+
+        boolean rebuild;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            latest.put(trimmed, nextSequence++);
+            recent.add(trimmed);
+            rebuild = recent.size() > RECENT_LIMIT && !rebuilding;
+            if (rebuild) {
+                rebuilding = true;
+            }
+
+            // Queued under the lock, close() shuts the executor down
+            executor.execute(() -> append(trimmed));
+            if (rebuild) {
+                executor.execute(this::rebuild);
+            }
+        }
+    }
+
+    /**
+     * Find the commands starting with a prefix, as for going up through the history
+     *
+     * @param prefix Start of the commands, empty for all of them
+     * @param limit Largest number of commands to return
+     * @return Matching commands, newest first
+     */
+    public synchronized List<String> findByPrefix(String prefix, int limit) {
+        List<String> matches = new ArrayList<>();
+
+        // Everything in the recent list is newer than the index
+        for (int i = recent.size() - 1; i >= 0 && matches.size() < limit; i--) {
+            String command = recent.get(i);
+            if (command.startsWith(prefix) && !matches.contains(command)) {
+                matches.add(command);
+            }
+        }
+        if (matches.size() < limit) {
+            index.findByPrefix(prefix, limit, matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Find the commands containing the characters of a query in order, ignoring
+     * case, as for a reverse search through the history
+     *
+     * @param query Characters to look for
+     * @param limit Largest number of commands to return
+     * @return Matching commands, newest first
+     */
+    public synchronized List<String> findFuzzy(String query, int limit) {
+        List<String> matches = new ArrayList<>();
+        long mask = getCharacterMask(query);
+
+        for (int i = recent.size() - 1; i >= 0 && matches.size() < limit; i--) {
+            String command = recent.get(i);
+            if (isSubsequence(query, command) && !matches.contains(command)) {
+                matches.add(command);
+            }
+        }
+        if (matches.size() < limit) {
+            index.findFuzzy(query, mask, limit, matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Get the number of different commands in the history
+     *
+     * @return Number of commands
+     */
+    public synchronized int size() {
+        return latest.size();
+    }
+
+    /**
+     * Close the log once the commands still queued are written. Returns right
+     * away, the history thread finishes the writing.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.execute(this::closeWriter);
+        executor.shutdown();
+    }
+
+    private void load() {
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                List<String> loaded = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        loaded.add(unescape(line));
+                    }
+                }
+                logLines = loaded.size();
+
+                // Commands added while loading are newer than the log
+                synchronized (this) {
+                    int added = nextSequence;
+                    Map<String, Integer> addedCommands = new HashMap<>(latest);
+                    latest.clear();
+                    for (int i = 0; i < loaded.size(); i++) {
+                        latest.put(loaded.get(i), i);
+                    }
+                    for (Map.Entry<String, Integer> entry : addedCommands.entrySet()) {
+                        latest.put(entry.getKey(), loaded.size() + entry.getValue());
+                    }
+                    nextSequence = loaded.size() + added;
+                    rebuilding = true;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            synchronized (this) {
+                rebuilding = true;
+            }
+        }
+        rebuild();
+    }
+
+    private void append(String command) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            writer.write(escape(command));
+            writer.write('\n');
+            writer.flush();
+            logLines++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Build the index from all commands, then compact the log if needed
+     */
+    private void rebuild() {
+        String[] commands;
+        int[] sequences;
+        int indexedSequence;
+        synchronized (this) {
+            indexedSequence = nextSequence;
+            commands = latest.keySet().toArray(new String[0]);
+            sequences = new int[commands.length];
+            for (int i = 0; i < commands.length; i++) {
+                sequences[i] = latest.get(commands[i]);
+            }
+        }
+
+        // Drop the oldest commands beyond the limit
+        List<String> dropped = new ArrayList<>();
+        if (commands.length > MAX_COMMANDS) {
+            int[] sorted = sequences.clone();
+            Arrays.sort(sorted);
+            int oldestKept = sorted[sorted.length - MAX_COMMANDS];
+            int kept = 0;
+            for (int i = 0; i < commands.length; i++) {
+                if (sequences[i] >= oldestKept) {
+                    commands[kept] = commands[i];
+                    sequences[kept++] = sequences[i];
+                } else {
+                    dropped.add(commands[i]);
+                }
+            }
+            commands = Arrays.copyOf(commands, kept);
+            sequences = Arrays.copyOf(sequences, kept);
+        }
+
+        Index built = Index.build(commands, sequences);
+
+        // More commands may have been added than fit the recent list meanwhile
+        synchronized (this) {
+            for (String command : dropped) {
+                // Unless it was run again meanwhile
+                if (latest.get(command) < indexedSequence) {
+                    latest.remove(command);
+                }
+            }
+            index = built;
+
+            // Commands added while building stay in the recent list
+            int stillRecent = nextSequence - indexedSequence;
+            recent.subList(0, recent.size() - stillRecent).clear();
+            rebuilding = recent.size() > RECENT_LIMIT;
+            if (rebuilding && !closed) {
+                executor.execute(this::rebuild);
+            }
+        }
+
+        if (logLines > 2 * built.commands.length + RECENT_LIMIT) {
+            compact(built);
+        }
+    }
+
+    /**
+     * Rewrite the log with each indexed command once, oldest first. Commands
+     * added meanwhile are appended to the new log afterwards, which keeps their
+     * order.
+     */
+    private void compact(Index built) {
+        closeWriter();
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+            int[] order = built.newestFirst;
+            for (int i = order.length - 1; i >= 0; i--) {
+                out.write(escape(built.commands[order[i]]));
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporary.delete();
+            return;
+        }
+
+        if (temporary.renameTo(file)) {
+            logLines = built.commands.length;
+        } else {
+            temporary.delete();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * One log line per command, also for commands spanning lines
+     */
+    private static String escape(String command) {
+        if (command.indexOf('\\') < 0 && command.indexOf('\n') < 0) {
+            return command;
+        }
+        return command.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String unescape(String line) {
+        if (line.indexOf('\\') < 0) {
+            return line;
+        }
+        StringBuilder builder = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                c = line.charAt(++i);
+                builder.append(c == 'n' ? '\n' : c);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get a bit for each character of a text ignoring case, with letters and
+     * digits on bits of their own
+     */
+    private static long getCharacterMask(String text) {
+        long mask = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (c >= 'a' && c <= 'z') {
+                mask |= 1L << (c - 'a');
+            } else if (c >= '0' && c <= '9') {
+                mask |= 1L << (26 + c - '0');
+            } else {
+                mask |= 1L << (36 + c % 28);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Check that the characters of a query appear in a command in order, ignoring case
+     */
+    private static boolean isSubsequence(String query, String command) {
+        int position = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = Character.toLowerCase(query.charAt(i));
+            while (position < command.length() && Character.toLowerCase(command.charAt(position)) != c) {
+                position++;
+            }
+            if (position == command.length()) {
+                return false;
+            }
+            position++;
+        }
+        return true;
+    }
+
+    /**
+     * Commands sorted by text, with the newest use of each, not changed once built
+     */
+    private static class Index {
+        final String[] commands;
+        final int[] sequences;
+        final long[] masks;
+        final int[] newestFirst;
+
+        // Newest use over each range of commands, leaves at size + position
+        final int[] tree;
+        final int size;
+
+        Index(String[] commands, int[] sequences) {
+            this.commands = commands;
+            this.sequences = sequences;
+
+            masks = new long[commands.length];
+            for (int i = 0; i < commands.length; i++) {
+                masks[i] = getCharacterMask(commands[i]);
+            }
+
+            Integer[] order = new Integer[commands.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(sequences[b], sequences[a]));
+            newestFirst = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                newestFirst[i] = order[i];
+            }
+
+            int treeSize = 1;
+            while (treeSize < commands.length) {
+                treeSize <<= 1;
+            }
+            size = treeSize;
+            tree = new int[2 * treeSize];
+            Arrays.fill(tree, -1);
+            System.arraycopy(sequences, 0, tree, treeSize, sequences.length);
+            for (int node = treeSize - 1; node > 0; node--) {
+                tree[node] = Math.max(tree[2 * node], tree[2 * node + 1]);
+            }
+        }
+
+        static Index build(String[] commands, int[] sequences) {
+            Integer[] order = new Integer[commands.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(i -> commands[i]));
+
+            String[] sortedCommands = new String[commands.length];
+            int[] sortedSequences = new int[commands.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedCommands[i] = commands[order[i]];
+                sortedSequences[i] = sequences[order[i]];
+            }
+            return new Index(sortedCommands, sortedSequences);
+        }
+
+        /**
+         * Add the newest commands with a prefix that are not matched yet
+         */
+        void findByPrefix(String prefix, int limit, List<String> matches) {
+            int start = lowerBound(prefix);
+            int end = prefix.isEmpty() ? commands.length : lowerBound(prefix + Character.MAX_VALUE);
+            if (start >= end) {
+                return;
+            }
+
+            // Visit the subtrees covering the range, newest first
+            PriorityQueue<Integer> nodes = new PriorityQueue<>((a, b) -> Integer.compare(tree[b], tree[a]));
+            for (int low = start + size, high = end + size; low < high; low >>= 1, high >>= 1) {
+                if ((low & 1) != 0) {
+                    nodes.add(low++);
+                }
+                if ((high & 1) != 0) {
+                    nodes.add(--high);
+                }
+            }
+
+            int found = matches.size();
+            while (matches.size() < limit && !nodes.isEmpty()) {
+                int node = nodes.poll();
+                if (node < size) {
+                    nodes.add(2 * node);
+                    nodes.add(2 * node + 1);
+                    continue;
+                }
+                String command = commands[node - size];
+                if (!matches.subList(0, found).contains(command)) {
+                    matches.add(command);
+                }
+            }
+        }
+
+        /**
+         * Add the newest commands matching a query that are not matched yet
+         */
+        void findFuzzy(String query, long mask, int limit, List<String> matches) {
+            int found = matches.size();
+            for (int i = 0; i < newestFirst.length && matches.size() < limit; i++) {
+                int position = newestFirst[i];
+                if ((masks[position] & mask) != mask || !isSubsequence(query, commands[position])) {
+                    continue;
+                }
+                if (!matches.subList(0, found).contains(commands[position])) {
+                    matches.add(commands[position]);
+                }
+            }
+        }
+
+        private int lowerBound(String text) {
+            int low = 0;
+            int high = commands.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (commands[middle].compareTo(text) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
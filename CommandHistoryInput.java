@@ -0,0 +1,183 @@
+package com.mobiledev.androidstudio.terminal;
+
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.KeyEvent;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
+
+import java.util.List;
+
+/**
+ * Command input field of a terminal, backed by the shared {@link CommandHistory}.
+ *
+ * Up and down keys go through the commands starting with the text typed before,
+ * and {@link #showSearchDialog()} finds commands containing the characters of a
+ * query, like a reverse search in a shell. Used on the main thread.
+ */
+public class CommandHistoryInput {
+
+    /**
+     * Receiver of the commands entered
+     */
+    public interface CommandListener {
+        /**
+         * @param command The command, without a line break
+         * @return true if the command was run and belongs in the history
+         */
+        boolean onCommand(String command);
+    }
+
+    private static final int HISTORY_LIMIT = 100;
+
+    private final EditText input;
+    private CommandHistory history;
+
+    // State of a walk through the history with the up and down keys
+    private String historyPrefix;
+    private List<String> historyMatches;
+    private int historyPosition;
+    private boolean showingHistory;
+
+    /**
+     * Handle the commands entered in a field
+     *
+     * @param input The field
+     * @param listener Receiver of the commands
+     */
+    public CommandHistoryInput(EditText input, CommandListener listener) {
+        this.input = input;
+
+        input.setOnEditorActionListener((v, actionId, event) -> {
+            String command = input.getText().toString();
+            input.setText("");
+            if (listener.onCommand(command) && history != null) {
+                history.add(command);
+            }
+            return true;
+        });
+
+        input.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // Typing starts a new walk through the history
+                if (!showingHistory) {
+                    historyMatches = null;
+                }
+            }
+        });
+
+        input.setOnKeyListener((v, keyCode, event) -> {
+            if (event.getAction() != KeyEvent.ACTION_DOWN) {
+                return false;
+            }
+            if (keyCode == KeyEvent.KEYCODE_DPAD_UP) {
+                showHistory(1);
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN) {
+                showHistory(-1);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Set the history to add commands to and look them up in
+     *
+     * @param history The history, or null while the terminal service is not bound
+     */
+    public void setHistory(@Nullable CommandHistory history) {
+        this.history = history;
+        historyMatches = null;
+    }
+
+    /**
+     * Show an older or newer command starting with the text typed before going
+     * through the history
+     *
+     * @param direction 1 for an older command, -1 for a newer one
+     */
+    private void showHistory(int direction) {
+        if (history == null) {
+            return;
+        }
+        if (historyMatches == null) {
+            historyPrefix = input.getText().toString();
+            historyMatches = history.findByPrefix(historyPrefix, HISTORY_LIMIT);
+            historyPosition = -1;
+        }
+
+        int position = historyPosition + direction;
+        if (position < -1 || position >= historyMatches.size()) {
+            return;
+        }
+        historyPosition = position;
+        setText(position < 0 ? historyPrefix : historyMatches.get(position));
+    }
+
+    /**
+     * Ask for characters to look for, then let the user pick one of the commands
+     * containing them, newest first. The command picked is put in the field.
+     */
+    public void showSearchDialog() {
+        if (history == null) {
+            return;
+        }
+
+        Context context = input.getContext();
+        EditText queryEditText = new EditText(context);
+        queryEditText.setSingleLine(true);
+        queryEditText.setHint("Characters of the command");
+        queryEditText.setText(input.getText());
+
+        new AlertDialog.Builder(context)
+                .setTitle("Search command history")
+                .setView(queryEditText)
+                .setPositiveButton("Search", (dialog, which) -> showSearchResults(queryEditText.getText().toString()))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showSearchResults(String query) {
+        CommandHistory searched = history;
+        if (searched == null) {
+            return;
+        }
+
+        List<String> commands = searched.findFuzzy(query, HISTORY_LIMIT);
+        if (commands.isEmpty()) {
+            Toast.makeText(input.getContext(), "No matching commands", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        new AlertDialog.Builder(input.getContext())
+                .setTitle("Commands")
+                .setItems(commands.toArray(new String[0]), (dialog, which) -> {
+                    setText(commands.get(which));
+                    historyMatches = null;
+                    input.requestFocus();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void setText(String text) {
+        showingHistory = true;
+        input.setText(text);
+        input.setSelection(text.length());
+        showingHistory = false;
+    }
+}
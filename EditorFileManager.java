@@ -0,0 +1,258 @@
+package com.mobiledev.androidstudio.editor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads and saves editor files off the main thread.
+ *
+ * Files are read through a large NIO buffer and decoded as UTF-8 exactly as
+ * stored, line breaks included. The first screen of text is handed out before
+ * the rest of the file is read. Saving writes a temporary file next to the
+ * target and renames it over the target, so a failed save never leaves a
+ * truncated file behind. A symbolic link is saved through to the file it
+ * points to, the mode of the file is kept, and a file with other hard links
+ * is overwritten in place so that the links keep sharing it.
+ */
+public class EditorFileManager {
+    
+    private static final String TAG = "EditorFileManager";
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    // Lines decoded before the first screen is shown
+    private static final int PREVIEW_LINES = 100;
+    
+    private static EditorFileManager sInstance;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler;
+    
+    /**
+     * Get the singleton instance of EditorFileManager
+     */
+    public static synchronized EditorFileManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new EditorFileManager();
+        }
+        return sInstance;
+    }
+    
+    private EditorFileManager() {
+        // One thread, so saves of the same file are written in order
+        mExecutor = Executors.newSingleThreadExecutor();
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+    
+    /**
+     * Load a file in the background
+     * @param file The file to load
+     * @param callback Callback for the loaded text, called on the main thread
+     * @return A future that can be cancelled to stop loading
+     */
+    public Future<?> loadFile(File file, LoadCallback callback) {
+        return mExecutor.submit(() -> {
+            try {
+                String content = readFile(file, callback);
+                mMainHandler.post(() -> callback.onFileLoaded(content));
+            } catch (ClosedByInterruptException e) {
+                // Loading was cancelled
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading file: " + file, e);
+                mMainHandler.post(() -> callback.onLoadError(e.getMessage()));
+            }
+        });
+    }
+    
+    /**
+     * Save text to a file in the background
+     * @param file The file to write
+     * @param content The text, which must not change while it is written
+     * @param callback Callback for the result, called on the main thread
+     */
+    public void saveFile(File file, CharSequence content, SaveCallback callback) {
+        mExecutor.execute(() -> {
+            try {
+                writeFile(file, content);
+                mMainHandler.post(callback::onFileSaved);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing file: " + file, e);
+                mMainHandler.post(() -> callback.onSaveError(e.getMessage()));
+            }
+        });
+    }
+    
+    private String readFile(File file, LoadCallback callback) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file.getPath());
+            }
+            
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+            CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+            StringBuilder content = new StringBuilder((int) size);
+            
+            boolean previewSent = false;
+            int lines = 0;
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                endOfInput = channel.read(bytes) < 0;
+                bytes.flip();
+                
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, endOfInput);
+                    lines += appendChars(chars, content);
+                } while (result.isOverflow());
+                bytes.compact();
+                
+                if (!previewSent && lines >= PREVIEW_LINES && !endOfInput) {
+                    final String preview = content.substring(0, findLineEnd(content, PREVIEW_LINES));
+                    mMainHandler.post(() -> callback.onPreviewLoaded(preview));
+                    previewSent = true;
+                }
+            }
+            
+            while (decoder.flush(chars).isOverflow()) {
+                appendChars(chars, content);
+            }
+            appendChars(chars, content);
+            
+            return content.toString();
+        }
+    }
+    
+    /**
+     * Move decoded characters to the text
+     * @return The number of line breaks moved
+     */
+    private static int appendChars(CharBuffer chars, StringBuilder content) {
+        chars.flip();
+        int lines = 0;
+        for (int i = chars.position(); i < chars.limit(); i++) {
+            if (chars.get(i) == '\n') {
+                lines++;
+            }
+        }
+        content.append(chars);
+        chars.clear();
+        return lines;
+    }
+    
+    /**
+     * Get the offset just after a given number of line breaks
+     */
+    private static int findLineEnd(CharSequence text, int lines) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n' && --lines == 0) {
+                return i + 1;
+            }
+        }
+        return text.length();
+    }
+    
+    private void writeFile(File file, CharSequence content) throws IOException {
+        // Save through a symbolic link instead of replacing the link
+        File target = file.getCanonicalFile();
+        StructStat stat = null;
+        if (target.exists()) {
+            try {
+                stat = Os.stat(target.getPath());
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Could not read the mode of " + target.getPath(), e);
+            }
+        }
+        
+        // A new file would split the other hard links from it
+        if (stat != null && stat.st_nlink > 1) {
+            try (FileOutputStream output = new FileOutputStream(target)) {
+                writeContent(output, content);
+            }
+            return;
+        }
+        
+        File temp = File.createTempFile("." + target.getName() + ".", ".tmp", target.getParentFile());
+        
+        try {
+            try (FileOutputStream output = new FileOutputStream(temp)) {
+                writeContent(output, content);
+            }
+            
+            // Keep the mode, such as the executable bit of gradlew or a script
+            if (stat != null) {
+                try {
+                    Os.chmod(temp.getPath(), stat.st_mode & 07777);
+                } catch (ErrnoException e) {
+                    temp.setExecutable(target.canExecute(), false);
+                }
+            } else if (target.exists()) {
+                temp.setExecutable(target.canExecute(), false);
+            }
+            
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not replace " + target.getPath());
+            }
+        } finally {
+            // Only left behind if something failed
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+    
+    private static void writeContent(FileOutputStream output, CharSequence content) throws IOException {
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        if (content instanceof PieceTableDocument) {
+            ((PieceTableDocument) content).writeTo(writer);
+        } else {
+            writer.append(content);
+        }
+        writer.flush();
+        
+        // Make sure the data is on disk before it replaces the old file
+        output.getFD().sync();
+    }
+    
+    /**
+     * Callback interface for loading a file
+     */
+    public interface LoadCallback {
+        void onPreviewLoaded(String preview);
+        void onFileLoaded(String content);
+        void onLoadError(String error);
+    }
+    
+    /**
+     * Callback interface for saving a file
+     */
+    public interface SaveCallback {
+        void onFileSaved();
+        void onSaveError(String error);
+    }
+}
\ No newline at end of file
@@ -1,5 +1,9 @@
 package com.mobiledev.androidstudio.editor;
 
+import com.mobiledev.androidstudio.syntax.LineTokenizer;
+import com.mobiledev.androidstudio.syntax.SyntaxHighlighter;
+import com.mobiledev.androidstudio.syntax.TokenType;
+
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -8,7 +12,7 @@ import java.util.regex.Pattern;
 /**
  * Syntax highlighter for Groovy and Gradle files
  */
-public class GroovySyntaxHighlighter extends SyntaxHighlighter {
+public class GroovySyntaxHighlighter implements SyntaxHighlighter, LineTokenizer {
     // Regular expressions for different code elements
     private static final Pattern PATTERN_KEYWORDS = 
             Pattern.compile("\\b(abstract|as|assert|boolean|break|byte|case|catch|char|class|const|continue|def|default|do|double|else|enum|extends|final|finally|float|for|goto|if|implements|import|in|instanceof|int|interface|long|native|new|package|private|protected|public|return|short|static|strictfp|super|switch|synchronized|this|throw|throws|trait|transient|try|void|volatile|while|true|false|null)\\b");
@@ -19,22 +23,15 @@ public class GroovySyntaxHighlighter extends SyntaxHighlighter {
     private static final Pattern PATTERN_NUMBERS = 
             Pattern.compile("\\b(\\d+\\.\\d+[fFlL]?|\\d+[fFlLdD]|0x[0-9a-fA-F]+|\\d+)\\b");
     
-    private static final Pattern PATTERN_STRINGS = 
-            Pattern.compile("\"[^\"\\\\]*(\\\\.[^\"\\\\]*)*\"|'[^'\\\\]*(\\\\.[^'\\\\]*)*'");
-    
-    private static final Pattern PATTERN_TRIPLE_STRINGS = 
-            Pattern.compile("\"\"\"[\\s\\S]*?\"\"\"|'''[\\s\\S]*?'''");
-    
-    private static final Pattern PATTERN_SINGLE_COMMENT = 
-            Pattern.compile("//[^\\n]*");
-    
-    private static final Pattern PATTERN_MULTI_COMMENT = 
-            Pattern.compile("/\\*[^*]*\\*+(?:[^/*][^*]*\\*+)*/");
-    
     // Gradle specific keywords
     private static final Pattern PATTERN_GRADLE_KEYWORDS = 
             Pattern.compile("\\b(apply|plugin|id|version|dependencies|repositories|implementation|testImplementation|androidTestImplementation|api|mavenCentral|google|jcenter|classpath|buildscript|android|compileSdkVersion|applicationId|minSdkVersion|targetSdkVersion|versionCode|versionName|buildTypes|sourceSets|release|debug|minifyEnabled|proguardFiles|getDefaultProguardFile|testInstrumentationRunner)\\b");
     
+    // Line states for incremental highlighting
+    private static final int STATE_BLOCK_COMMENT = 1;
+    private static final int STATE_TRIPLE_DOUBLE_STRING = 2;
+    private static final int STATE_TRIPLE_SINGLE_STRING = 3;
+    
     // Set of Groovy keywords for additional validation
     private static final Set<String> GROOVY_KEYWORDS = new HashSet<>();
     
@@ -59,43 +56,125 @@ public class GroovySyntaxHighlighter extends SyntaxHighlighter {
     }
     
     @Override
-    public HighlightResult highlight(String text) {
-        HighlightResult result = new HighlightResult();
+    public LineTokenizer getTokenizer() {
+        return this;
+    }
+    
+    @Override
+    public int tokenizeLine(CharSequence text, int start, int end, int state, TokenCollector collector) {
+        int pos = start;
+        
+        // Finish a comment or triple-quoted string carried over from the previous line
+        if (state != STATE_DEFAULT) {
+            String terminator = getTerminator(state);
+            int close = LineTokenizer.indexOf(text, terminator, pos, end);
+            int type = state == STATE_BLOCK_COMMENT ? TokenType.COMMENT : TokenType.STRING;
+            if (close < 0) {
+                collector.addToken(start, end, type);
+                return state;
+            }
+            pos = close + terminator.length();
+            collector.addToken(start, pos, type);
+        }
+        
+        // Split the line into comments, strings and plain code
+        int codeStart = pos;
+        while (pos < end) {
+            char c = text.charAt(pos);
+            char next = pos + 1 < end ? text.charAt(pos + 1) : 0;
+            
+            if (c == '/' && next == '/') {
+                highlightCode(text, codeStart, pos, collector);
+                collector.addToken(pos, end, TokenType.COMMENT);
+                return STATE_DEFAULT;
+            }
+            
+            int openState = STATE_DEFAULT;
+            if (c == '/' && next == '*') {
+                openState = STATE_BLOCK_COMMENT;
+            } else if ((c == '"' || c == '\'') && next == c && pos + 2 < end && text.charAt(pos + 2) == c) {
+                openState = c == '"' ? STATE_TRIPLE_DOUBLE_STRING : STATE_TRIPLE_SINGLE_STRING;
+            }
+            
+            if (openState != STATE_DEFAULT) {
+                highlightCode(text, codeStart, pos, collector);
+                String terminator = getTerminator(openState);
+                int type = openState == STATE_BLOCK_COMMENT ? TokenType.COMMENT : TokenType.STRING;
+                int close = LineTokenizer.indexOf(text, terminator, pos + terminator.length(), end);
+                if (close < 0) {
+                    collector.addToken(pos, end, type);
+                    return openState;
+                }
+                collector.addToken(pos, close + terminator.length(), type);
+                pos = close + terminator.length();
+                codeStart = pos;
+            } else if (c == '"' || c == '\'') {
+                highlightCode(text, codeStart, pos, collector);
+                int close = LineTokenizer.findClosingQuote(text, pos + 1, end, c);
+                int literalEnd = close < 0 ? end : close;
+                collector.addToken(pos, literalEnd, TokenType.STRING);
+                pos = literalEnd;
+                codeStart = pos;
+            } else {
+                pos++;
+            }
+        }
         
-        // Add spans for different code elements
-        addPatternSpans(result, text, PATTERN_SINGLE_COMMENT, COLOR_COMMENT);
-        addPatternSpans(result, text, PATTERN_MULTI_COMMENT, COLOR_COMMENT);
-        addPatternSpans(result, text, PATTERN_TRIPLE_STRINGS, COLOR_STRING);
-        addPatternSpans(result, text, PATTERN_STRINGS, COLOR_STRING);
-        addPatternSpans(result, text, PATTERN_KEYWORDS, COLOR_KEYWORD);
-        addPatternSpans(result, text, PATTERN_GRADLE_KEYWORDS, COLOR_KEYWORD);
-        addPatternSpans(result, text, PATTERN_NUMBERS, COLOR_NUMBER);
+        highlightCode(text, codeStart, end, collector);
+        return STATE_DEFAULT;
+    }
+    
+    /**
+     * Get the closing delimiter for a multi-line state
+     */
+    private static String getTerminator(int state) {
+        switch (state) {
+            case STATE_TRIPLE_DOUBLE_STRING:
+                return "\"\"\"";
+            case STATE_TRIPLE_SINGLE_STRING:
+                return "'''";
+            default:
+                return "*/";
+        }
+    }
+    
+    /**
+     * Tokenize a stretch of code that contains no comments or strings
+     * @param text The full text
+     * @param start Start of the code
+     * @param end End of the code
+     * @param collector Receiver for the tokens
+     */
+    private void highlightCode(CharSequence text, int start, int end, TokenCollector collector) {
+        if (start >= end) {
+            return;
+        }
+        
+        collectMatches(PATTERN_KEYWORDS, text, start, end, TokenType.KEYWORD, collector);
+        collectMatches(PATTERN_GRADLE_KEYWORDS, text, start, end, TokenType.KEYWORD, collector);
+        collectMatches(PATTERN_NUMBERS, text, start, end, TokenType.NUMBER, collector);
         
         // Methods require special handling to avoid highlighting keywords
         Matcher methodMatcher = PATTERN_METHODS.matcher(text);
+        methodMatcher.region(start, end);
+        methodMatcher.useTransparentBounds(true);
         while (methodMatcher.find()) {
-            String methodName = methodMatcher.group(1);
-            // Only highlight as method if not a keyword
-            if (!GROOVY_KEYWORDS.contains(methodName)) {
-                result.addColorSpan(COLOR_METHOD, methodMatcher.start(1), methodMatcher.end(1));
+            if (!GROOVY_KEYWORDS.contains(methodMatcher.group(1))) {
+                collector.addToken(methodMatcher.start(1), methodMatcher.end(1), TokenType.METHOD);
             }
         }
-        
-        return result;
     }
     
     /**
-     * Add spans for all matches of a pattern
-     * 
-     * @param result HighlightResult to add spans to
-     * @param text Text to search in
-     * @param pattern Pattern to search for
-     * @param color Color to apply to matches
+     * Emit a token for every match of a pattern inside a region
      */
-    private void addPatternSpans(HighlightResult result, String text, Pattern pattern, int color) {
+    private void collectMatches(Pattern pattern, CharSequence text, int start, int end, int type, TokenCollector collector) {
         Matcher matcher = pattern.matcher(text);
+        matcher.region(start, end);
+        matcher.useTransparentBounds(true);
+        
         while (matcher.find()) {
-            result.addColorSpan(color, matcher.start(), matcher.end());
+            collector.addToken(matcher.start(), matcher.end(), type);
         }
     }
 }
\ No newline at end of file
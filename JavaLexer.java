@@ -0,0 +1,324 @@
+package com.mobiledev.androidstudio.syntax;
+
+import java.util.Arrays;
+
+/**
+ * Hand-written, single-pass tokenizer for Java code.
+ *
+ * Walks the text one character at a time and emits each token as soon as it is
+ * recognised, so nothing is matched twice and existing spans are never consulted.
+ * Keywords and built-in types are resolved through a perfect hash table that compares
+ * characters in place, so tokenizing does not allocate.
+ */
+public class JavaLexer implements LineTokenizer {
+    
+    // Line states
+    public static final int STATE_BLOCK_COMMENT = 1;
+    public static final int STATE_TEXT_BLOCK = 2;
+    
+    private static final String[] KEYWORDS = {
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+            "new", "package", "private", "protected", "public", "return", "short", "static", "strictfp", "super",
+            "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void", "volatile", "while",
+            "true", "false", "null"
+    };
+    
+    private static final String[] TYPES = {
+            "String", "Object", "Integer", "Boolean", "Character", "Float", "Double", "Long", "Short",
+            "Byte", "StringBuilder", "List", "ArrayList", "Map", "HashMap", "Set", "HashSet",
+            "Collection", "Iterator", "Thread"
+    };
+    
+    private static final KeywordTable WORDS = new KeywordTable(KEYWORDS, TYPES);
+    
+    @Override
+    public int tokenizeLine(CharSequence text, int start, int end, int state, TokenCollector collector) {
+        int pos = start;
+        
+        // Finish a comment or text block carried over from the previous line
+        if (state == STATE_BLOCK_COMMENT || state == STATE_TEXT_BLOCK) {
+            String terminator = state == STATE_BLOCK_COMMENT ? "*/" : "\"\"\"";
+            int type = state == STATE_BLOCK_COMMENT
+                    ? TokenType.COMMENT
+                    : TokenType.STRING;
+            int close = LineTokenizer.indexOf(text, terminator, pos, end);
+            if (close < 0) {
+                collector.addToken(start, end, type);
+                return state;
+            }
+            pos = close + terminator.length();
+            collector.addToken(start, pos, type);
+        }
+        
+        while (pos < end) {
+            char c = text.charAt(pos);
+            char next = pos + 1 < end ? text.charAt(pos + 1) : 0;
+            
+            if (isIdentifierStart(c)) {
+                int wordEnd = pos + 1;
+                while (wordEnd < end && isIdentifierPart(text.charAt(wordEnd))) {
+                    wordEnd++;
+                }
+                
+                int type = WORDS.lookup(text, pos, wordEnd);
+                if (type != 0) {
+                    collector.addToken(pos, wordEnd, type);
+                }
+                pos = wordEnd;
+            } else if (c >= '0' && c <= '9') {
+                int numberEnd = scanNumber(text, pos, end);
+                collector.addToken(pos, numberEnd, TokenType.NUMBER);
+                pos = numberEnd;
+            } else if (c == '/' && next == '/') {
+                collector.addToken(pos, lineEnd(text, pos, end), TokenType.COMMENT);
+                pos = lineEnd(text, pos, end);
+            } else if (c == '/' && next == '*') {
+                int close = LineTokenizer.indexOf(text, "*/", pos + 2, end);
+                if (close < 0) {
+                    collector.addToken(pos, end, TokenType.COMMENT);
+                    return STATE_BLOCK_COMMENT;
+                }
+                collector.addToken(pos, close + 2, TokenType.COMMENT);
+                pos = close + 2;
+            } else if (c == '"' && next == '"' && pos + 2 < end && text.charAt(pos + 2) == '"') {
+                int close = LineTokenizer.indexOf(text, "\"\"\"", pos + 3, end);
+                if (close < 0) {
+                    collector.addToken(pos, end, TokenType.STRING);
+                    return STATE_TEXT_BLOCK;
+                }
+                collector.addToken(pos, close + 3, TokenType.STRING);
+                pos = close + 3;
+            } else if (c == '"' || c == '\'') {
+                int literalEnd = scanLiteral(text, pos + 1, end, c);
+                collector.addToken(pos, literalEnd, TokenType.STRING);
+                pos = literalEnd;
+            } else if (c == '@' && isIdentifierStart(next)) {
+                int nameEnd = pos + 2;
+                while (nameEnd < end && isIdentifierPart(text.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                collector.addToken(pos, nameEnd, TokenType.ANNOTATION);
+                pos = nameEnd;
+            } else {
+                pos++;
+            }
+        }
+        
+        return STATE_DEFAULT;
+    }
+    
+    /**
+     * Scan a numeric literal: decimal, hex, octal or binary, with underscores,
+     * a fraction, an exponent and a type suffix
+     * @return Position after the literal
+     */
+    private static int scanNumber(CharSequence text, int pos, int end) {
+        int i = pos;
+        
+        if (text.charAt(i) == '0' && i + 1 < end && (text.charAt(i + 1) | 0x20) == 'x') {
+            i += 2;
+            while (i < end && (isHexDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+                i++;
+            }
+        } else if (text.charAt(i) == '0' && i + 1 < end && (text.charAt(i + 1) | 0x20) == 'b') {
+            i += 2;
+            while (i < end && (text.charAt(i) == '0' || text.charAt(i) == '1' || text.charAt(i) == '_')) {
+                i++;
+            }
+        } else {
+            i = skipDigits(text, i, end);
+            if (i + 1 < end && text.charAt(i) == '.' && isDigit(text.charAt(i + 1))) {
+                i = skipDigits(text, i + 1, end);
+            }
+            if (i < end && (text.charAt(i) | 0x20) == 'e') {
+                int exponent = i + 1;
+                if (exponent < end && (text.charAt(exponent) == '+' || text.charAt(exponent) == '-')) {
+                    exponent++;
+                }
+                if (exponent < end && isDigit(text.charAt(exponent))) {
+                    i = skipDigits(text, exponent, end);
+                }
+            }
+        }
+        
+        if (i < end) {
+            char suffix = (char) (text.charAt(i) | 0x20);
+            if (suffix == 'l' || suffix == 'f' || suffix == 'd') {
+                i++;
+            }
+        }
+        
+        return i;
+    }
+    
+    /**
+     * Scan a string or char literal, honouring escapes. An unterminated literal ends at the line break.
+     * @return Position after the closing quote
+     */
+    private static int scanLiteral(CharSequence text, int pos, int end, char quote) {
+        for (int i = pos; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            } else if (c == '\n') {
+                return i;
+            }
+        }
+        
+        return end;
+    }
+    
+    private static int lineEnd(CharSequence text, int pos, int end) {
+        while (pos < end && text.charAt(pos) != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int skipDigits(CharSequence text, int pos, int end) {
+        while (pos < end && (isDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || ((c | 0x20) >= 'a' && (c | 0x20) <= 'f');
+    }
+    
+    private static boolean isIdentifierStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$'
+                || (c > 0x7f && Character.isJavaIdentifierStart(c));
+    }
+    
+    private static boolean isIdentifierPart(char c) {
+        return isIdentifierStart(c) || isDigit(c) || (c > 0x7f && Character.isJavaIdentifierPart(c));
+    }
+    
+    /**
+     * Perfect hash table for keywords and built-in types.
+     *
+     * A word is hashed from its length and its first, middle and last characters. The
+     * multiplier is chosen once, when the table is built, so that no two words share a slot;
+     * a lookup is then one hash and at most one character-by-character comparison.
+     */
+    static final class KeywordTable {
+        
+        private static final int MAX_SEED = 1 << 20;
+        
+        private final char[][] mWords;
+        private final int[] mTypes;
+        private final int mMask;
+        private final int mSeed;
+        private final int mMaxLength;
+        
+        KeywordTable(String[] keywords, String[] types) {
+            int wordCount = keywords.length + types.length;
+            int size = Integer.highestOneBit(wordCount) << 3;
+            int maxLength = 0;
+            
+            for (String word : keywords) {
+                maxLength = Math.max(maxLength, word.length());
+            }
+            for (String word : types) {
+                maxLength = Math.max(maxLength, word.length());
+            }
+            
+            // Search for a multiplier that places every word in its own slot
+            int seed = 1;
+            boolean[] used = new boolean[size];
+            while (!isPerfect(keywords, types, seed, size - 1, used)) {
+                seed++;
+                if (seed > MAX_SEED) {
+                    throw new IllegalStateException("No perfect hash for the keyword table");
+                }
+            }
+            
+            mWords = new char[size][];
+            mTypes = new int[size];
+            mMask = size - 1;
+            mSeed = seed;
+            mMaxLength = maxLength;
+            
+            for (String word : keywords) {
+                put(word, TokenType.KEYWORD);
+            }
+            for (String word : types) {
+                put(word, TokenType.TYPE);
+            }
+        }
+        
+        /**
+         * Look up a word in place
+         * @param text The text containing the word
+         * @param start Start of the word
+         * @param end End of the word
+         * @return The token type of the word, or 0 if it is not a keyword or type
+         */
+        int lookup(CharSequence text, int start, int end) {
+            int length = end - start;
+            if (length < 2 || length > mMaxLength) {
+                return 0;
+            }
+            
+            int slot = hash(length, text.charAt(start), text.charAt(start + length / 2),
+                    text.charAt(end - 1), mSeed) & mMask;
+            char[] word = mWords[slot];
+            if (word == null || word.length != length) {
+                return 0;
+            }
+            
+            for (int i = 0; i < length; i++) {
+                if (word[i] != text.charAt(start + i)) {
+                    return 0;
+                }
+            }
+            
+            return mTypes[slot];
+        }
+        
+        private void put(String word, int type) {
+            int slot = hashWord(word, mSeed) & mMask;
+            mWords[slot] = word.toCharArray();
+            mTypes[slot] = type;
+        }
+        
+        private static boolean isPerfect(String[] keywords, String[] types, int seed, int mask, boolean[] used) {
+            Arrays.fill(used, false);
+            return fill(keywords, seed, mask, used) && fill(types, seed, mask, used);
+        }
+        
+        private static boolean fill(String[] words, int seed, int mask, boolean[] used) {
+            for (String word : words) {
+                int slot = hashWord(word, seed) & mask;
+                if (used[slot]) {
+                    return false;
+                }
+                used[slot] = true;
+            }
+            return true;
+        }
+        
+        private static int hashWord(String word, int seed) {
+            int length = word.length();
+            return hash(length, word.charAt(0), word.charAt(length / 2), word.charAt(length - 1), seed);
+        }
+        
+        private static int hash(int length, char first, char middle, char last, int seed) {
+            int h = ((length * 31 + first) * 31 + middle) * 31 + last;
+            h *= seed;
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return h;
+        }
+    }
+}
\ No newline at end of file
@@ -1,11 +1,5 @@
 package com.mobiledev.androidstudio.syntax;
 
-import android.graphics.Color;
-import android.text.Editable;
-import android.text.Spanned;
-import android.text.style.ForegroundColorSpan;
-
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -14,15 +8,7 @@ import java.util.regex.Pattern;
 /**
  * Syntax highlighter for Java code
  */
-public class JavaSyntaxHighlighter implements SyntaxHighlighter {
-    
-    // Colors
-    private static final int KEYWORD_COLOR = Color.rgb(86, 156, 214);     // Blue
-    private static final int TYPE_COLOR = Color.rgb(78, 201, 176);        // Teal
-    private static final int STRING_COLOR = Color.rgb(214, 157, 133);     // Brown
-    private static final int COMMENT_COLOR = Color.rgb(87, 166, 74);      // Green
-    private static final int NUMBER_COLOR = Color.rgb(181, 206, 168);     // Light green
-    private static final int ANNOTATION_COLOR = Color.rgb(220, 220, 170); // Yellow
+public class JavaSyntaxHighlighter implements SyntaxHighlighter, LineTokenizer {
     
     // Java keywords
     private static final List<String> KEYWORDS = Arrays.asList(
@@ -44,73 +30,96 @@ public class JavaSyntaxHighlighter implements SyntaxHighlighter {
     // Patterns
     private static final Pattern KEYWORD_PATTERN = Pattern.compile("\\b(" + String.join("|", KEYWORDS) + ")\\b");
     private static final Pattern TYPE_PATTERN = Pattern.compile("\\b(" + String.join("|", TYPES) + ")\\b");
-    private static final Pattern STRING_PATTERN = Pattern.compile("\".*?\"");
-    private static final Pattern CHAR_PATTERN = Pattern.compile("'.'");
-    private static final Pattern SINGLE_LINE_COMMENT_PATTERN = Pattern.compile("//.*");
-    private static final Pattern MULTI_LINE_COMMENT_PATTERN = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
     private static final Pattern NUMBER_PATTERN = Pattern.compile("\\b\\d+(\\.\\d+)?([fFL])?\\b");
     private static final Pattern ANNOTATION_PATTERN = Pattern.compile("@\\w+");
     
+    // Line states for incremental highlighting
+    private static final int STATE_BLOCK_COMMENT = 1;
+    
+    @Override
+    public LineTokenizer getTokenizer() {
+        return this;
+    }
+    
     @Override
-    public void highlight(Editable editable) {
-        String text = editable.toString();
+    public int tokenizeLine(CharSequence text, int start, int end, int state, TokenCollector collector) {
+        int pos = start;
         
-        // Apply comment highlighting first (to avoid highlighting keywords within comments)
-        highlightPattern(editable, SINGLE_LINE_COMMENT_PATTERN, COMMENT_COLOR);
-        highlightPattern(editable, MULTI_LINE_COMMENT_PATTERN, COMMENT_COLOR);
+        // Finish a block comment carried over from the previous line
+        if (state == STATE_BLOCK_COMMENT) {
+            int close = LineTokenizer.indexOf(text, "*/", pos, end);
+            if (close < 0) {
+                collector.addToken(start, end, TokenType.COMMENT);
+                return STATE_BLOCK_COMMENT;
+            }
+            pos = close + 2;
+            collector.addToken(start, pos, TokenType.COMMENT);
+        }
         
-        // Apply string highlighting (to avoid highlighting keywords within strings)
-        highlightPattern(editable, STRING_PATTERN, STRING_COLOR);
-        highlightPattern(editable, CHAR_PATTERN, STRING_COLOR);
+        // Split the line into comments, literals and plain code
+        int codeStart = pos;
+        while (pos < end) {
+            char c = text.charAt(pos);
+            char next = pos + 1 < end ? text.charAt(pos + 1) : 0;
+            
+            if (c == '/' && next == '/') {
+                highlightCode(text, codeStart, pos, collector);
+                collector.addToken(pos, end, TokenType.COMMENT);
+                return STATE_DEFAULT;
+            } else if (c == '/' && next == '*') {
+                highlightCode(text, codeStart, pos, collector);
+                int close = LineTokenizer.indexOf(text, "*/", pos + 2, end);
+                if (close < 0) {
+                    collector.addToken(pos, end, TokenType.COMMENT);
+                    return STATE_BLOCK_COMMENT;
+                }
+                collector.addToken(pos, close + 2, TokenType.COMMENT);
+                pos = close + 2;
+                codeStart = pos;
+            } else if (c == '"' || c == '\'') {
+                highlightCode(text, codeStart, pos, collector);
+                int close = LineTokenizer.findClosingQuote(text, pos + 1, end, c);
+                int literalEnd = close < 0 ? end : close;
+                collector.addToken(pos, literalEnd, TokenType.STRING);
+                pos = literalEnd;
+                codeStart = pos;
+            } else {
+                pos++;
+            }
+        }
         
-        // Apply keyword and other highlighting
-        highlightPattern(editable, KEYWORD_PATTERN, KEYWORD_COLOR);
-        highlightPattern(editable, TYPE_PATTERN, TYPE_COLOR);
-        highlightPattern(editable, NUMBER_PATTERN, NUMBER_COLOR);
-        highlightPattern(editable, ANNOTATION_PATTERN, ANNOTATION_COLOR);
+        highlightCode(text, codeStart, end, collector);
+        return STATE_DEFAULT;
     }
     
     /**
-     * Apply highlighting to text matching a pattern
-     * @param editable The text to highlight
-     * @param pattern The pattern to match
-     * @param color The color to apply
+     * Tokenize a stretch of code that contains no comments or literals
+     * @param text The full text
+     * @param start Start of the code
+     * @param end End of the code
+     * @param collector Receiver for the tokens
      */
-    private void highlightPattern(Editable editable, Pattern pattern, int color) {
-        Matcher matcher = pattern.matcher(editable);
-        
-        while (matcher.find()) {
-            // Skip if this span overlaps with an existing comment or string span
-            if (hasOverlappingSpan(editable, matcher.start(), matcher.end())) {
-                continue;
-            }
-            
-            editable.setSpan(
-                    new ForegroundColorSpan(color),
-                    matcher.start(),
-                    matcher.end(),
-                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
-            );
+    private void highlightCode(CharSequence text, int start, int end, TokenCollector collector) {
+        if (start >= end) {
+            return;
         }
+        
+        collectMatches(KEYWORD_PATTERN, text, start, end, TokenType.KEYWORD, collector);
+        collectMatches(TYPE_PATTERN, text, start, end, TokenType.TYPE, collector);
+        collectMatches(NUMBER_PATTERN, text, start, end, TokenType.NUMBER, collector);
+        collectMatches(ANNOTATION_PATTERN, text, start, end, TokenType.ANNOTATION, collector);
     }
     
     /**
-     * Check if a span would overlap with an existing comment or string span
-     * @param editable The text
-     * @param start The start position
-     * @param end The end position
-     * @return True if an overlap would occur
+     * Emit a token for every match of a pattern inside a region
      */
-    private boolean hasOverlappingSpan(Editable editable, int start, int end) {
-        ForegroundColorSpan[] spans = editable.getSpans(start, end, ForegroundColorSpan.class);
+    private void collectMatches(Pattern pattern, CharSequence text, int start, int end, int type, TokenCollector collector) {
+        Matcher matcher = pattern.matcher(text);
+        matcher.region(start, end);
+        matcher.useTransparentBounds(true);
         
-        for (ForegroundColorSpan span : spans) {
-            int spanColor = span.getForegroundColor();
-            if (spanColor == COMMENT_COLOR || spanColor == STRING_COLOR) {
-                return true;
-            }
+        while (matcher.find()) {
+            collector.addToken(matcher.start(), matcher.end(), type);
         }
-        
-        return false;
     }
 }
\ No newline at end of file
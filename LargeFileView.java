@@ -0,0 +1,201 @@
+package com.mobiledev.androidstudio.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.mobiledev.androidstudio.editor.MappedTextFile;
+
+/**
+ * Read-only viewer for files too large for the code editor.
+ *
+ * Lines come from a {@link MappedTextFile} and only the lines on screen are
+ * decoded; the line index is extended as the user scrolls towards its end.
+ */
+public class LargeFileView extends View {
+    
+    // UI constants
+    private static final int LINE_NUMBER_MARGIN = 50;
+    private static final int LINE_NUMBER_PADDING = 10;
+    private static final float TEXT_SIZE_SP = 13;
+    
+    private final Paint mTextPaint;
+    private final Paint mLineNumberPaint;
+    private final Paint mLineNumberBackgroundPaint;
+    private final Paint mDividerPaint;
+    private final int mLineHeight;
+    
+    private MappedTextFile mFile;
+    
+    // Decoded lines currently on screen
+    private String[] mVisibleLines = new String[0];
+    private int mVisibleFirstLine = -1;
+    
+    // Scroll position, in lines vertically and pixels horizontally
+    private int mFirstLine = 0;
+    private float mScrollX = 0;
+    private float mLastTouchX;
+    private float mLastTouchY;
+    private float mPendingScrollY = 0;
+    
+    public LargeFileView(Context context) {
+        this(context, null);
+    }
+    
+    public LargeFileView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+    
+    public LargeFileView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        
+        float density = getResources().getDisplayMetrics().scaledDensity;
+        
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(TEXT_SIZE_SP * density);
+        
+        mLineNumberPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mLineNumberPaint.setTypeface(Typeface.MONOSPACE);
+        mLineNumberPaint.setColor(Color.GRAY);
+        mLineNumberPaint.setTextSize(TEXT_SIZE_SP * density * 0.8f);
+        mLineNumberPaint.setTextAlign(Paint.Align.RIGHT);
+        
+        mLineNumberBackgroundPaint = new Paint();
+        mLineNumberBackgroundPaint.setColor(Color.rgb(50, 50, 50));
+        
+        mDividerPaint = new Paint();
+        mDividerPaint.setColor(Color.rgb(80, 80, 80));
+        mDividerPaint.setStrokeWidth(1);
+        
+        Paint.FontMetrics metrics = mTextPaint.getFontMetrics();
+        mLineHeight = (int) Math.ceil(metrics.bottom - metrics.top);
+        
+        setBackgroundColor(Color.rgb(30, 30, 30));
+    }
+    
+    /**
+     * Show a mapped file
+     * @param file The file, owned by the caller
+     */
+    public void setFile(MappedTextFile file) {
+        mFile = file;
+        mFirstLine = 0;
+        mScrollX = 0;
+        mVisibleLines = new String[0];
+        mVisibleFirstLine = -1;
+        invalidate();
+    }
+    
+    /**
+     * Get the number of lines that fit on screen
+     */
+    private int getVisibleLineCount() {
+        return getHeight() / mLineHeight + 1;
+    }
+    
+    /**
+     * Scroll so that a line is at the top of the screen
+     * @param line Line index
+     */
+    public void scrollToLine(int line) {
+        if (mFile == null) {
+            return;
+        }
+        
+        // Index a screen past the target so the last page can be shown in full
+        int lineCount = mFile.ensureIndexed(line + getVisibleLineCount());
+        int maxFirstLine = Math.max(0, lineCount - getVisibleLineCount() + 1);
+        mFirstLine = Math.max(0, Math.min(line, maxFirstLine));
+        invalidate();
+    }
+    
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mLastTouchX = event.getX();
+                mLastTouchY = event.getY();
+                mPendingScrollY = 0;
+                return true;
+            
+            case MotionEvent.ACTION_MOVE:
+                mScrollX = Math.max(0, mScrollX + mLastTouchX - event.getX());
+                mPendingScrollY += mLastTouchY - event.getY();
+                mLastTouchX = event.getX();
+                mLastTouchY = event.getY();
+                
+                int lines = (int) (mPendingScrollY / mLineHeight);
+                if (lines != 0) {
+                    mPendingScrollY -= lines * mLineHeight;
+                    scrollToLine(mFirstLine + lines);
+                } else {
+                    invalidate();
+                }
+                return true;
+            
+            default:
+                return super.onTouchEvent(event);
+        }
+    }
+    
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        
+        // Draw line number background and divider
+        canvas.drawRect(0, 0, LINE_NUMBER_MARGIN, getHeight(), mLineNumberBackgroundPaint);
+        canvas.drawLine(LINE_NUMBER_MARGIN, 0, LINE_NUMBER_MARGIN, getHeight(), mDividerPaint);
+        
+        if (mFile == null) {
+            return;
+        }
+        
+        int visibleCount = getVisibleLineCount();
+        int lineCount = mFile.ensureIndexed(mFirstLine + visibleCount);
+        int lastLine = Math.min(lineCount, mFirstLine + visibleCount);
+        decodeVisibleLines(mFirstLine, lastLine);
+        
+        float baselineOffset = -mTextPaint.getFontMetrics().top;
+        float textLeft = LINE_NUMBER_MARGIN + LINE_NUMBER_PADDING;
+        
+        for (int line = mFirstLine; line < lastLine; line++) {
+            float baseline = (line - mFirstLine) * mLineHeight + baselineOffset;
+            
+            // Text first, so line numbers stay on top when scrolled horizontally
+            canvas.save();
+            canvas.clipRect(textLeft, 0, getWidth(), getHeight());
+            canvas.drawText(mVisibleLines[line - mFirstLine], textLeft - mScrollX, baseline, mTextPaint);
+            canvas.restore();
+            
+            canvas.drawText(String.valueOf(line + 1), LINE_NUMBER_MARGIN - LINE_NUMBER_PADDING,
+                    baseline, mLineNumberPaint);
+        }
+    }
+    
+    /**
+     * Decode the lines on screen, reusing lines already decoded for the previous frame
+     */
+    private void decodeVisibleLines(int firstLine, int lastLine) {
+        if (firstLine == mVisibleFirstLine && lastLine - firstLine == mVisibleLines.length) {
+            return;
+        }
+        
+        String[] lines = new String[lastLine - firstLine];
+        for (int line = firstLine; line < lastLine; line++) {
+            int previous = line - mVisibleFirstLine;
+            lines[line - firstLine] = mVisibleFirstLine >= 0 && previous >= 0 && previous < mVisibleLines.length
+                    ? mVisibleLines[previous]
+                    : mFile.getLine(line);
+        }
+        
+        mVisibleLines = lines;
+        mVisibleFirstLine = firstLine;
+    }
+}
\ No newline at end of file
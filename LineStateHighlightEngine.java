@@ -0,0 +1,428 @@
+package com.mobiledev.androidstudio.syntax;
+
+import java.util.Arrays;
+
+/**
+ * Incremental highlighting engine.
+ *
+ * Keeps the start offset, the lexer end state and the tokens of every line. After an
+ * edit only the edited lines are re-tokenized, and tokenizing continues onto the
+ * following lines until a line ends in the same state it had before the edit.
+ *
+ * Tokenizing and painting are separate steps: {@link #applyRange} only hands a
+ * {@link TokenApplicator} the lines whose tokens changed since they were last applied,
+ * so a caller can paint just the visible part of the document and let a
+ * {@link BackgroundPass} tokenize the rest on a worker thread.
+ */
+public class LineStateHighlightEngine {
+    
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int[] NO_TOKENS = new int[0];
+    
+    /**
+     * Tokens are stored per line as (offset from line start, length, type) triples
+     */
+    public static final int TOKEN_SIZE = 3;
+    
+    private final LineTokenizer mTokenizer;
+    private final LineBuffer mScratch = new LineBuffer();
+    
+    // Line index
+    private int[] mLineStarts = new int[INITIAL_CAPACITY];
+    private int[] mLineStates = new int[INITIAL_CAPACITY];
+    private int[][] mLineTokens = new int[INITIAL_CAPACITY][];
+    private boolean[] mLinePainted = new boolean[INITIAL_CAPACITY];
+    private int mLineCount = 0;
+    private int mTextLength = 0;
+    
+    // Lines below this index have up-to-date states and tokens
+    private int mValidLines = 0;
+    
+    // Incremented on every edit so results computed for an older text can be discarded
+    private volatile int mVersion = 0;
+    
+    public LineStateHighlightEngine(LineTokenizer tokenizer) {
+        mTokenizer = tokenizer;
+    }
+    
+    /**
+     * Forget all line state so the next call re-tokenizes the whole text
+     */
+    public void reset() {
+        mLineCount = 0;
+        mTextLength = 0;
+        mValidLines = 0;
+        mVersion++;
+    }
+    
+    /**
+     * Update the line index after an edit and re-tokenize the edited lines
+     * @param text The text, already containing the edit
+     * @param start Start of the edit
+     * @param before Number of characters that were replaced
+     * @param count Number of characters that were inserted
+     * @param maxOffset Stop re-tokenizing past this offset even if the line state has not
+     *                  converged yet; the remaining lines are left to a later pass
+     */
+    public void edit(CharSequence text, int start, int before, int count, int maxOffset) {
+        mVersion++;
+        
+        if (mLineCount == 0 || mTextLength + count - before != text.length()) {
+            rebuildLineIndex(text);
+            return;
+        }
+        
+        int firstLine = findLine(start);
+        int lastOldLine = findLine(start + before);
+        int delta = count - before;
+        
+        int inserted = 0;
+        for (int i = start; i < start + count; i++) {
+            if (text.charAt(i) == '\n') {
+                inserted++;
+            }
+        }
+        
+        // Lines after the edit keep their state if the old state was valid past the edit
+        int lineDelta = inserted - (lastOldLine - firstLine);
+        int resumeValidLines = mValidLines > lastOldLine ? mValidLines + lineDelta : -1;
+        
+        // Move the untouched tail of the index into place
+        int editEndState = mLineStates[lastOldLine];
+        int tail = mLineCount - lastOldLine - 1;
+        int lastEditedLine = firstLine + inserted;
+        int newLineCount = lastEditedLine + 1 + tail;
+        ensureLineCapacity(newLineCount);
+        System.arraycopy(mLineStarts, lastOldLine + 1, mLineStarts, lastEditedLine + 1, tail);
+        System.arraycopy(mLineStates, lastOldLine + 1, mLineStates, lastEditedLine + 1, tail);
+        System.arraycopy(mLineTokens, lastOldLine + 1, mLineTokens, lastEditedLine + 1, tail);
+        System.arraycopy(mLinePainted, lastOldLine + 1, mLinePainted, lastEditedLine + 1, tail);
+        mLineCount = newLineCount;
+        mTextLength = text.length();
+        
+        // Line starts created by the inserted text
+        int line = firstLine;
+        for (int i = start; i < start + count; i++) {
+            if (text.charAt(i) == '\n') {
+                mLineStarts[++line] = i + 1;
+            }
+        }
+        
+        for (int i = lastEditedLine + 1; i < mLineCount; i++) {
+            mLineStarts[i] += delta;
+        }
+        
+        for (int i = firstLine; i <= lastEditedLine; i++) {
+            mLineTokens[i] = null;
+            mLinePainted[i] = false;
+        }
+        mLineStates[lastEditedLine] = editEndState;
+        
+        if (firstLine > mValidLines) {
+            // The state entering the edit is not known yet; a later pass catches up
+            return;
+        }
+        
+        // Re-tokenize from the first edited line until the end state matches the old one
+        mValidLines = firstLine;
+        for (line = firstLine; line < mLineCount; line++) {
+            int oldState = mLineStates[line];
+            tokenizeLine(text, line);
+            
+            if (line >= lastEditedLine && resumeValidLines > line && mLineStates[line] == oldState) {
+                mValidLines = resumeValidLines;
+                return;
+            }
+            if (mLineStarts[line] > maxOffset) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Apply the tokens of the lines overlapping a range of text, tokenizing them first if needed
+     * @param text The text
+     * @param start Start of the range
+     * @param end End of the range
+     * @param maxCatchUpLines Largest number of untokenized lines that may be tokenized on this
+     *                        thread to reach the range; past that they are left to a {@link BackgroundPass}
+     * @param applicator Receiver for the lines whose tokens changed since they were last applied
+     * @return The range of text whose highlighting was rewritten, as {start, end}
+     */
+    public int[] applyRange(CharSequence text, int start, int end, int maxCatchUpLines, TokenApplicator applicator) {
+        if (mLineCount == 0) {
+            rebuildLineIndex(text);
+        }
+        
+        int firstLine = findLine(start);
+        int lastLine = findLine(end);
+        
+        if (lastLine >= mValidLines && lastLine - mValidLines < maxCatchUpLines) {
+            while (mValidLines <= lastLine) {
+                tokenizeLine(text, mValidLines);
+            }
+        }
+        
+        int paintedStart = -1;
+        int paintedEnd = -1;
+        for (int line = firstLine; line <= lastLine; line++) {
+            if (mLinePainted[line] || mLineTokens[line] == null) {
+                continue;
+            }
+            
+            applyLine(line, applicator);
+            if (paintedStart < 0) {
+                paintedStart = mLineStarts[line];
+            }
+            paintedEnd = getLineEnd(line);
+        }
+        
+        return paintedStart < 0 ? new int[]{start, start} : new int[]{paintedStart, paintedEnd};
+    }
+    
+    /**
+     * Check whether some lines still need tokenizing
+     */
+    public boolean needsBackgroundPass() {
+        return mValidLines < mLineCount;
+    }
+    
+    /**
+     * Create a pass that tokenizes every line not tokenized yet
+     * @param snapshot An immutable copy of the current text
+     * @return The pass, to be run on a worker thread and handed back to {@link #applyBackgroundPass}
+     */
+    public BackgroundPass createBackgroundPass(CharSequence snapshot) {
+        int firstLine = mValidLines;
+        int startState = firstLine == 0 ? LineTokenizer.STATE_DEFAULT : mLineStates[firstLine - 1];
+        int[] lineStarts = Arrays.copyOfRange(mLineStarts, firstLine, mLineCount);
+        return new BackgroundPass(snapshot, mVersion, firstLine, startState, lineStarts);
+    }
+    
+    /**
+     * Install the results of a background pass
+     * @param pass A pass that has run
+     * @return True if the results were installed, false if the text changed since the pass was created
+     */
+    public boolean applyBackgroundPass(BackgroundPass pass) {
+        if (!pass.mFinished || pass.mVersion != mVersion) {
+            return false;
+        }
+        
+        for (int i = 0; i < pass.mStates.length; i++) {
+            int line = pass.mFirstLine + i;
+            setLineTokens(line, pass.mTokens[i]);
+            mLineStates[line] = pass.mStates[i];
+        }
+        
+        mValidLines = mLineCount;
+        return true;
+    }
+    
+    /**
+     * Mark the lines overlapping a range as not applied, so the next
+     * {@link #applyRange} call covering them hands them out again
+     * @param start Start of the range
+     * @param end End of the range
+     */
+    public void invalidateRange(int start, int end) {
+        int lastLine = findLine(end);
+        for (int line = findLine(start); line <= lastLine; line++) {
+            mLinePainted[line] = false;
+        }
+    }
+    
+    /**
+     * Find the line containing an offset
+     * @param offset Offset in the text as of the last edit
+     * @return Line index
+     */
+    public int findLine(int offset) {
+        int low = 0;
+        int high = mLineCount - 1;
+        
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mLineStarts[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * Tokenize a single line, starting from the end state of the line before it
+     */
+    private void tokenizeLine(CharSequence text, int line) {
+        int lineStart = mLineStarts[line];
+        int startState = line == 0 ? LineTokenizer.STATE_DEFAULT : mLineStates[line - 1];
+        
+        mScratch.reset(lineStart);
+        mLineStates[line] = mTokenizer.tokenizeLine(text, lineStart, getLineEnd(line), startState, mScratch);
+        setLineTokens(line, mScratch.toArray());
+        mValidLines = Math.max(mValidLines, line + 1);
+    }
+    
+    /**
+     * Store new tokens for a line, keeping its spans if they already match
+     */
+    private void setLineTokens(int line, int[] tokens) {
+        if (!Arrays.equals(mLineTokens[line], tokens)) {
+            mLinePainted[line] = false;
+        }
+        mLineTokens[line] = tokens;
+    }
+    
+    /**
+     * Hand the tokens of a line to an applicator
+     */
+    private void applyLine(int line, TokenApplicator applicator) {
+        int nextLineStart = line + 1 < mLineCount ? mLineStarts[line + 1] : mTextLength;
+        applicator.applyTokens(mLineStarts[line], nextLineStart, mLineTokens[line]);
+        mLinePainted[line] = true;
+    }
+    
+    /**
+     * Rebuild the line index from scratch; every line is left untokenized
+     */
+    private void rebuildLineIndex(CharSequence text) {
+        int length = text.length();
+        mLineCount = 1;
+        mLineStarts[0] = 0;
+        
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                ensureLineCapacity(mLineCount + 1);
+                mLineStarts[mLineCount++] = i + 1;
+            }
+        }
+        
+        Arrays.fill(mLineTokens, 0, mLineCount, null);
+        Arrays.fill(mLinePainted, 0, mLineCount, false);
+        mTextLength = length;
+        mValidLines = 0;
+    }
+    
+    /**
+     * Get the end of a line, excluding the line break
+     */
+    private int getLineEnd(int line) {
+        return line + 1 < mLineCount ? mLineStarts[line + 1] - 1 : mTextLength;
+    }
+    
+    private void ensureLineCapacity(int capacity) {
+        if (capacity > mLineStarts.length) {
+            int newCapacity = Math.max(capacity, mLineStarts.length * 2);
+            mLineStarts = Arrays.copyOf(mLineStarts, newCapacity);
+            mLineStates = Arrays.copyOf(mLineStates, newCapacity);
+            mLineTokens = Arrays.copyOf(mLineTokens, newCapacity);
+            mLinePainted = Arrays.copyOf(mLinePainted, newCapacity);
+        }
+    }
+    
+    /**
+     * Tokenizes the lines the engine has not reached yet, on a worker thread.
+     *
+     * The pass works on a snapshot of the text and only writes its own fields while
+     * running. It gives up as soon as the text is edited again.
+     */
+    public final class BackgroundPass implements Runnable {
+        
+        private final CharSequence mText;
+        private final int mVersion;
+        private final int mFirstLine;
+        private final int mStartState;
+        private final int[] mLineStarts;
+        private final int[] mStates;
+        private final int[][] mTokens;
+        private volatile boolean mFinished = false;
+        
+        private BackgroundPass(CharSequence text, int version, int firstLine, int startState, int[] lineStarts) {
+            mText = text;
+            mVersion = version;
+            mFirstLine = firstLine;
+            mStartState = startState;
+            mLineStarts = lineStarts;
+            mStates = new int[lineStarts.length];
+            mTokens = new int[lineStarts.length][];
+        }
+        
+        @Override
+        public void run() {
+            LineBuffer buffer = new LineBuffer();
+            int state = mStartState;
+            
+            for (int i = 0; i < mLineStarts.length; i++) {
+                if (isStale()) {
+                    return;
+                }
+                
+                int lineEnd = i + 1 < mLineStarts.length ? mLineStarts[i + 1] - 1 : mText.length();
+                buffer.reset(mLineStarts[i]);
+                state = mTokenizer.tokenizeLine(mText, mLineStarts[i], lineEnd, state, buffer);
+                mStates[i] = state;
+                mTokens[i] = buffer.toArray();
+            }
+            
+            mFinished = true;
+        }
+        
+        /**
+         * Check whether the text was edited after this pass was created
+         */
+        public boolean isStale() {
+            return mVersion != LineStateHighlightEngine.this.mVersion;
+        }
+    }
+    
+    /**
+     * Receiver for the tokens of lines that need to be highlighted again
+     */
+    public interface TokenApplicator {
+        
+        /**
+         * Replace the highlighting of one line
+         * @param lineStart Start of the line
+         * @param nextLineStart Start of the next line, or the text length for the last line
+         * @param tokens The tokens of the line as (offset from lineStart, length, type) triples
+         */
+        void applyTokens(int lineStart, int nextLineStart, int[] tokens);
+    }
+    
+    /**
+     * Collects the tokens of one line as offsets relative to the line start
+     */
+    private static final class LineBuffer implements LineTokenizer.TokenCollector {
+        
+        private int[] mTokens = new int[64 * TOKEN_SIZE];
+        private int mSize = 0;
+        private int mLineStart = 0;
+        
+        void reset(int lineStart) {
+            mSize = 0;
+            mLineStart = lineStart;
+        }
+        
+        @Override
+        public void addToken(int start, int end, int type) {
+            if (end <= start) {
+                return;
+            }
+            
+            if (mSize + TOKEN_SIZE > mTokens.length) {
+                mTokens = Arrays.copyOf(mTokens, mTokens.length * 2);
+            }
+            
+            mTokens[mSize++] = start - mLineStart;
+            mTokens[mSize++] = end - start;
+            mTokens[mSize++] = type;
+        }
+        
+        int[] toArray() {
+            return mSize == 0 ? NO_TOKENS : Arrays.copyOf(mTokens, mSize);
+        }
+    }
+}
\ No newline at end of file
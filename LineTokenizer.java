@@ -0,0 +1,93 @@
+package com.mobiledev.androidstudio.syntax;
+
+/**
+ * Tokenizer that works one line at a time, carrying the lexer state
+ * (inside a block comment, inside a string, ...) from the end of one line
+ * to the start of the next.
+ *
+ * Implementations must not keep state between calls: the same tokenizer is used
+ * on the UI thread and by background highlighting passes.
+ */
+public interface LineTokenizer {
+    
+    /**
+     * State at the start of the document
+     */
+    int STATE_DEFAULT = 0;
+    
+    /**
+     * Tokenize a single line
+     * @param text The full text
+     * @param start Start of the line
+     * @param end End of the line (exclusive, without the line break)
+     * @param state Lexer state at the end of the previous line
+     * @param collector Receiver for the tokens found on the line
+     * @return Lexer state at the end of this line
+     */
+    int tokenizeLine(CharSequence text, int start, int end, int state, TokenCollector collector);
+    
+    /**
+     * Receiver for tokens produced by a {@link LineTokenizer}
+     */
+    interface TokenCollector {
+        
+        /**
+         * Report a token
+         * @param start Start of the token
+         * @param end End of the token (exclusive)
+         * @param type One of the {@link TokenType} constants
+         */
+        void addToken(int start, int end, int type);
+    }
+    
+    /**
+     * Find a string inside a region of a char sequence
+     * @param text The text to search
+     * @param target The string to find
+     * @param from Start of the region
+     * @param end End of the region (exclusive)
+     * @return Index of the first match, or -1 if not found
+     */
+    static int indexOf(CharSequence text, String target, int from, int end) {
+        int last = end - target.length();
+        char first = target.charAt(0);
+        
+        for (int i = from; i <= last; i++) {
+            if (text.charAt(i) != first) {
+                continue;
+            }
+            
+            int j = 1;
+            while (j < target.length() && text.charAt(i + j) == target.charAt(j)) {
+                j++;
+            }
+            
+            if (j == target.length()) {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Find the end of a quoted literal, honouring backslash escapes
+     * @param text The text to search
+     * @param from Position just after the opening quote
+     * @param end End of the region (exclusive)
+     * @param quote The quote character
+     * @return Position just after the closing quote, or -1 if the literal is not closed in the region
+     */
+    static int findClosingQuote(CharSequence text, int from, int end, char quote) {
+        for (int i = from; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i + 1;
+            }
+        }
+        
+        return -1;
+    }
+}
\ No newline at end of file
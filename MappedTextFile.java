@@ -0,0 +1,147 @@
+package com.mobiledev.androidstudio.editor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a large text file.
+ *
+ * The file is memory-mapped instead of read, so opening it costs no heap and
+ * no decoding. Line starts are found on demand, only as far as the lines that
+ * were asked for, and only those lines are decoded.
+ */
+public class MappedTextFile implements Closeable {
+    
+    // Longest part of a line that is decoded, so a single huge line cannot exhaust memory
+    private static final int MAX_LINE_BYTES = 16 * 1024;
+    
+    // Lines indexed in one step when the index has to grow
+    private static final int INDEX_STEP_LINES = 4096;
+    
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mSize;
+    private final byte[] mLineBytes = new byte[MAX_LINE_BYTES];
+    
+    // Lazily extended line index
+    private int[] mLineStarts = new int[INDEX_STEP_LINES];
+    private int mIndexedLines = 1;
+    private int mIndexedUpTo = 0;
+    
+    private MappedTextFile(RandomAccessFile file, MappedByteBuffer buffer, int size) {
+        mFile = file;
+        mBuffer = buffer;
+        mSize = size;
+    }
+    
+    /**
+     * Map a file for reading
+     * @param file The file to open
+     * @return The mapped file
+     * @throws IOException If the file cannot be mapped
+     */
+    public static MappedTextFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + file.getPath());
+            }
+            
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedTextFile(randomAccessFile, buffer, (int) size);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Get the size of the file in bytes
+     */
+    public int getSize() {
+        return mSize;
+    }
+    
+    /**
+     * Check whether the whole file has been indexed
+     */
+    public boolean isFullyIndexed() {
+        return mIndexedUpTo >= mSize;
+    }
+    
+    /**
+     * Get the number of lines found so far. This is the final line count
+     * once {@link #isFullyIndexed()} returns true.
+     */
+    public int getIndexedLineCount() {
+        return mIndexedLines;
+    }
+    
+    /**
+     * Extend the line index until it covers a line or the end of the file
+     * @param line Line index that should be reachable
+     * @return The number of lines indexed so far
+     */
+    public int ensureIndexed(int line) {
+        if (line < mIndexedLines || mIndexedUpTo >= mSize) {
+            return mIndexedLines;
+        }
+        
+        // Extend by at least a step, so scrolling does not index a few lines at a time
+        int target = Math.max(line + 1, mIndexedLines + INDEX_STEP_LINES);
+        
+        while (mIndexedLines < target && mIndexedUpTo < mSize) {
+            if (mBuffer.get(mIndexedUpTo++) == '\n') {
+                if (mIndexedLines == mLineStarts.length) {
+                    mLineStarts = Arrays.copyOf(mLineStarts, mLineStarts.length * 2);
+                }
+                mLineStarts[mIndexedLines++] = mIndexedUpTo;
+            }
+        }
+        
+        return mIndexedLines;
+    }
+    
+    /**
+     * Decode one line
+     * @param line Line index, which must already be indexed
+     * @return The line without its line break, cut after {@link #MAX_LINE_BYTES} bytes
+     */
+    public String getLine(int line) {
+        int start = mLineStarts[line];
+        int end;
+        if (line + 1 < mIndexedLines) {
+            end = mLineStarts[line + 1] - 1;
+        } else {
+            // Last indexed line: find its end without extending the index
+            end = start;
+            while (end < mSize && end - start < MAX_LINE_BYTES && mBuffer.get(end) != '\n') {
+                end++;
+            }
+        }
+        
+        if (end > start && mBuffer.get(end - 1) == '\r') {
+            end--;
+        }
+        
+        int length = Math.min(end - start, MAX_LINE_BYTES);
+        for (int i = 0; i < length; i++) {
+            mLineBytes[i] = mBuffer.get(start + i);
+        }
+        
+        return new String(mLineBytes, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
\ No newline at end of file
@@ -44,7 +44,7 @@ public class MobileDevApplication extends Application implements Configuration.P
         performanceOptimizer.optimize();
         
         // Initialize PRoot environment manager
-        preRootManager = new PreRootManager(this);
+        preRootManager = new PreRootManager(this, performanceOptimizer.getMaxProotShells());
         
         // First run checks
         if (isFirstRun()) {
@@ -54,6 +54,20 @@ public class MobileDevApplication extends Application implements Configuration.P
         }
     }
     
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        
+        // Idle PRoot shells are started again when needed
+        preRootManager.onTrimMemory(level);
+    }
+    
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        preRootManager.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+    
     @Override
     public Configuration getWorkManagerConfiguration() {
         return new Configuration.Builder()
@@ -1,16 +1,23 @@
 package com.mobiledev.androidstudio.terminal;
 
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.TabHost;
 import android.widget.TabHost.TabSpec;
 import android.widget.TabWidget;
 import android.widget.Toast;
 
+import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
@@ -18,20 +25,64 @@ import androidx.fragment.app.FragmentTransaction;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 /**
- * Activity that hosts multiple terminal tabs
+ * Activity that hosts multiple terminal tabs.
+ *
+ * The sessions live in {@link TerminalService}. When the activity is opened
+ * again, it shows a tab for each session still in the service instead of
+ * starting a new one, so no session is left running without a tab.
  */
 public class MultiTabTerminalActivity extends AppCompatActivity implements TerminalFragment.TerminalSessionCallback {
     private static final String TAG = "MultiTabTerminalActivity";
     private static final int MAX_TABS = 5;
     
+    // Search actions of the current tab
+    private static final int MENU_SEARCH = 4;
+    private static final int MENU_SEARCH_OLDER = 5;
+    private static final int MENU_SEARCH_NEWER = 6;
+    private static final int MENU_SEARCH_END = 7;
+    
+    // Recording actions of the current tab
+    private static final int MENU_RECORD = 8;
+    private static final int MENU_OPEN_RECORDING = 9;
+    private static final int MENU_END_REPLAY = 10;
+    
+    // Looks up a command in the history shared by all tabs
+    private static final int MENU_SEARCH_HISTORY = 11;
+    
     private TabHost tabHost;
     private Map<String, TerminalFragment> terminalFragments;
     private String currentSessionId;
+    private TerminalService terminalService;
+    private boolean serviceBound;
+    private boolean sessionsRestored;
+    private TerminalSearchController searchController;
+    
+    /**
+     * Connection to the service owning the sessions
+     */
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            terminalService = ((TerminalService.TerminalBinder) service).getService();
+            if (!sessionsRestored) {
+                sessionsRestored = true;
+                restoreSessions();
+            }
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            terminalService = null;
+        }
+    };
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,12 +98,41 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
         FloatingActionButton fab = new FloatingActionButton(this);
         fab.setOnClickListener(view -> addNewTerminalTab());
         
-        // Add initial terminal tab
-        if (savedInstanceState == null) {
-            addNewTerminalTab();
+        // Tabs for the sessions in the service are added once it is bound
+        Intent intent = new Intent(this, TerminalService.class);
+        startService(intent);
+        serviceBound = bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+        
+        if (savedInstanceState != null) {
+            sessionsRestored = true;
+            
+            // The fragments were recreated and attach to their sessions in the service again
+            for (Fragment fragment : getSupportFragmentManager().getFragments()) {
+                if (fragment instanceof TerminalFragment) {
+                    String sessionId = ((TerminalFragment) fragment).getSessionId();
+                    terminalFragments.put(sessionId, (TerminalFragment) fragment);
+                    if (!fragment.isHidden()) {
+                        currentSessionId = sessionId;
+                    }
+                }
+            }
         }
     }
     
+    @Override
+    protected void onDestroy() {
+        endSearch();
+        
+        // The sessions keep running in the service and get their tabs back
+        // when the activity is opened again
+        if (serviceBound) {
+            unbindService(serviceConnection);
+            serviceBound = false;
+        }
+        terminalService = null;
+        super.onDestroy();
+    }
+    
     @Override
     protected void onStart() {
         super.onStart();
@@ -72,6 +152,24 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
         // menu.add(Menu.NONE, 1, Menu.NONE, "New Tab");
         // menu.add(Menu.NONE, 2, Menu.NONE, "Close Tab");
         // menu.add(Menu.NONE, 3, Menu.NONE, "Settings");
+        menu.add(Menu.NONE, MENU_SEARCH, Menu.NONE, "Search");
+        menu.add(Menu.NONE, MENU_SEARCH_HISTORY, Menu.NONE, "Search command history");
+        if (searchController != null) {
+            menu.add(Menu.NONE, MENU_SEARCH_OLDER, Menu.NONE, "Older match");
+            menu.add(Menu.NONE, MENU_SEARCH_NEWER, Menu.NONE, "Newer match");
+            menu.add(Menu.NONE, MENU_SEARCH_END, Menu.NONE, "End search");
+        }
+        
+        TerminalFragment fragment = terminalFragments.get(currentSessionId);
+        TerminalSession session = fragment != null ? fragment.getSession() : null;
+        if (session != null) {
+            menu.add(Menu.NONE, MENU_RECORD, Menu.NONE,
+                    session.isRecording() ? "Stop recording" : "Start recording");
+        }
+        menu.add(Menu.NONE, MENU_OPEN_RECORDING, Menu.NONE, "Open recording");
+        if (fragment != null && fragment.isReplaying()) {
+            menu.add(Menu.NONE, MENU_END_REPLAY, Menu.NONE, "Back to session");
+        }
         return true;
     }
     
@@ -90,9 +188,180 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
                 return true;
         }
         */
+        switch (item.getItemId()) {
+            case MENU_SEARCH:
+                showSearchDialog();
+                return true;
+            case MENU_SEARCH_HISTORY:
+                TerminalFragment current = terminalFragments.get(currentSessionId);
+                if (current != null) {
+                    current.showHistorySearch();
+                }
+                return true;
+            case MENU_SEARCH_OLDER:
+                if (searchController != null) {
+                    searchController.showOlder();
+                }
+                return true;
+            case MENU_SEARCH_NEWER:
+                if (searchController != null) {
+                    searchController.showNewer();
+                }
+                return true;
+            case MENU_SEARCH_END:
+                endSearch();
+                return true;
+            case MENU_RECORD:
+                toggleRecording();
+                return true;
+            case MENU_OPEN_RECORDING:
+                showRecordingsDialog();
+                return true;
+            case MENU_END_REPLAY:
+                endReplay();
+                return true;
+        }
         return super.onOptionsItemSelected(item);
     }
     
+    /**
+     * Ask for text and search the scrollback of the current tab for it
+     */
+    private void showSearchDialog() {
+        TerminalFragment fragment = terminalFragments.get(currentSessionId);
+        TerminalView terminalView = fragment != null ? fragment.getTerminalView() : null;
+        if (terminalView == null) {
+            return;
+        }
+        
+        EditText queryEditText = new EditText(this);
+        queryEditText.setSingleLine(true);
+        queryEditText.setHint("Text to find");
+        
+        new AlertDialog.Builder(this)
+                .setTitle("Search output")
+                .setView(queryEditText)
+                .setPositiveButton("Search", (dialog, which) -> {
+                    endSearch();
+                    searchController = new TerminalSearchController(terminalView, this::showSearchStatus);
+                    searchController.start(queryEditText.getText().toString());
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Start or stop recording the output of the current tab
+     */
+    private void toggleRecording() {
+        TerminalFragment fragment = terminalFragments.get(currentSessionId);
+        TerminalSession session = fragment != null ? fragment.getSession() : null;
+        if (session == null) {
+            return;
+        }
+        
+        if (session.isRecording()) {
+            session.stopRecording();
+            Toast.makeText(this, "Recording saved", Toast.LENGTH_SHORT).show();
+        } else {
+            File file = TerminalRecordings.createFile(this);
+            try {
+                session.startRecording(file);
+                Toast.makeText(this, "Recording to " + file.getName(), Toast.LENGTH_SHORT).show();
+            } catch (IOException e) {
+                Toast.makeText(this, "Cannot record: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            }
+        }
+        invalidateOptionsMenu();
+    }
+    
+    /**
+     * Let the user pick a recording to play back in the current tab
+     */
+    private void showRecordingsDialog() {
+        TerminalFragment fragment = terminalFragments.get(currentSessionId);
+        if (fragment == null) {
+            return;
+        }
+        
+        List<File> recordings = TerminalRecordings.list(this);
+        if (recordings.isEmpty()) {
+            Toast.makeText(this, "No recordings yet", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        String[] names = new String[recordings.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = recordings.get(i).getName();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Open recording")
+                .setItems(names, (dialog, which) -> {
+                    endSearch();
+                    try {
+                        fragment.startReplay(recordings.get(which));
+                    } catch (IOException e) {
+                        Toast.makeText(this, "Cannot open recording: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                    invalidateOptionsMenu();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    
+    /**
+     * Show the session of the current tab again after a replay
+     */
+    private void endReplay() {
+        TerminalFragment fragment = terminalFragments.get(currentSessionId);
+        if (fragment != null) {
+            endSearch();
+            fragment.stopReplay();
+        }
+        invalidateOptionsMenu();
+    }
+    
+    /**
+     * Stop the search of the current tab, when it ends or another tab is shown
+     */
+    private void endSearch() {
+        if (searchController != null) {
+            TerminalSearchController controller = searchController;
+            searchController = null;
+            controller.cancel();
+            showSearchStatus(null);
+        }
+    }
+    
+    /**
+     * Show the state of the search below the title
+     * @param status The state, or null when no search is active
+     */
+    private void showSearchStatus(String status) {
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            actionBar.setSubtitle(status);
+        }
+        
+        // The step actions are only shown during a search
+        invalidateOptionsMenu();
+    }
+    
+    /**
+     * Add a tab for each session left in the service by an earlier instance of
+     * the activity, or a new tab if there is none
+     */
+    private void restoreSessions() {
+        for (String sessionId : terminalService.getSessionIds()) {
+            if (!terminalFragments.containsKey(sessionId)) {
+                addTerminalTab(sessionId);
+            }
+        }
+        if (terminalFragments.isEmpty()) {
+            addNewTerminalTab();
+        }
+    }
+    
     /**
      * Add a new terminal tab
      */
@@ -102,7 +371,17 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
             return;
         }
         
-        String sessionId = UUID.randomUUID().toString();
+        addTerminalTab(UUID.randomUUID().toString());
+    }
+    
+    /**
+     * Add a tab for a session, which is started if the service has none with its ID
+     * @param sessionId The ID of the terminal session
+     */
+    private void addTerminalTab(String sessionId) {
+        // The new tab is shown instead of the searched one
+        endSearch();
+        
         String tabName = "Term " + (terminalFragments.size() + 1);
         
         // Create new terminal fragment
@@ -137,7 +416,7 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
         
         currentSessionId = sessionId;
         
-        Log.d(TAG, "Added new terminal tab: " + sessionId);
+        Log.d(TAG, "Added terminal tab: " + sessionId);
     }
     
     /**
@@ -145,16 +424,29 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
      */
     private void closeCurrentTab() {
         if (currentSessionId != null) {
+            closeTab(currentSessionId);
+        }
+    }
+    
+    /**
+     * Close a terminal tab and end its session
+     * @param sessionId The ID of the terminal session
+     */
+    private void closeTab(String sessionId) {
+        if (sessionId != null) {
             // Get the terminal fragment
-            TerminalFragment fragment = terminalFragments.get(currentSessionId);
+            TerminalFragment fragment = terminalFragments.get(sessionId);
             if (fragment != null) {
+                // End the session, which would otherwise keep running in the service
+                fragment.closeSession();
+                
                 // Remove fragment
                 getSupportFragmentManager().beginTransaction()
                     .remove(fragment)
                     .commit();
                 
                 // Remove from map
-                terminalFragments.remove(currentSessionId);
+                terminalFragments.remove(sessionId);
                 
                 // Remove tab
                 // tabHost.clearAllTabs();
@@ -169,6 +461,14 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
                     */
                 }
                 
+                // A background tab was closed, the current one stays
+                if (!sessionId.equals(currentSessionId)) {
+                    return;
+                }
+                
+                // The search was in the closed tab
+                endSearch();
+                
                 // Select first tab if available
                 if (!terminalFragments.isEmpty()) {
                     String firstKey = terminalFragments.keySet().iterator().next();
@@ -190,15 +490,16 @@ public class MultiTabTerminalActivity extends AppCompatActivity implements Termi
     @Override
     public void onSessionStarted(String sessionId) {
         Log.d(TAG, "Terminal session started: " + sessionId);
+        
+        // The recording action needs the session
+        invalidateOptionsMenu();
     }
     
     @Override
     public void onSessionClosed(String sessionId) {
         Log.d(TAG, "Terminal session closed: " + sessionId);
         
-        // If this is the current session, close the tab
-        if (sessionId.equals(currentSessionId)) {
-            runOnUiThread(this::closeCurrentTab);
-        }
+        // Close the tab and remove the finished session, current or not
+        runOnUiThread(() -> closeTab(sessionId));
     }
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.mobiledev.androidstudio.MobileDevApplication;
+import com.mobiledev.androidstudio.utils.CommandExecution;
 import com.mobiledev.androidstudio.utils.PreRootManager;
 
 import java.util.ArrayList;
@@ -31,11 +32,13 @@ import java.util.concurrent.Executors;
  */
 public class PackageManagerActivity extends AppCompatActivity {
     private static final String TAG = "PackageManagerActivity";
+    private static final long PACKAGE_TIMEOUT_MS = 15 * 60 * 1000;
     
     private RecyclerView packagesRecyclerView;
     private PackageAdapter adapter;
     private List<PackageInfo> availablePackages;
     private ExecutorService executorService;
+    private volatile CommandExecution packageExecution;
     private ProgressBar progressBar;
     private TextView statusText;
     private SearchView searchView;
@@ -110,6 +113,10 @@ public class PackageManagerActivity extends AppCompatActivity {
     
     @Override
     protected void onDestroy() {
+        CommandExecution execution = packageExecution;
+        if (execution != null) {
+            execution.cancel();
+        }
         executorService.shutdown();
         super.onDestroy();
     }
@@ -240,14 +247,11 @@ public class PackageManagerActivity extends AppCompatActivity {
             adapter.notifyDataSetChanged();
             
             executorService.execute(() -> {
-                // Get the PRoot manager
-                PreRootManager prootManager = MobileDevApplication.getInstance().getPreRootManager();
-                
                 // Create uninstall command
                 String uninstallCommand = "apt remove -y " + packageInfo.getName();
                 
                 // Execute command
-                int result = prootManager.executeCommand(uninstallCommand);
+                int result = runPackageCommand(uninstallCommand);
                 
                 // Update UI on main thread
                 runOnUiThread(() -> {
@@ -277,11 +281,8 @@ public class PackageManagerActivity extends AppCompatActivity {
             adapter.notifyDataSetChanged();
             
             executorService.execute(() -> {
-                // Get the PRoot manager
-                PreRootManager prootManager = MobileDevApplication.getInstance().getPreRootManager();
-                
                 // Execute install command
-                int result = prootManager.executeCommand(packageInfo.getInstallCommand());
+                int result = runPackageCommand(packageInfo.getInstallCommand());
                 
                 // Update UI on main thread
                 runOnUiThread(() -> {
@@ -307,6 +308,55 @@ public class PackageManagerActivity extends AppCompatActivity {
         }
     }
     
+    /**
+     * Run a package command in the PRoot environment, showing its latest output
+     * line as the status while it runs. Called on the executor thread.
+     * @param command The command to execute
+     * @return The exit code of the command, or -1 if it could not be run
+     */
+    private int runPackageCommand(String command) {
+        PreRootManager prootManager = MobileDevApplication.getInstance().getPreRootManager();
+        packageExecution = prootManager.executeCommand(command, PACKAGE_TIMEOUT_MS, new CommandExecution.Callback() {
+            @Override
+            public void onOutput(String output) {
+                String line = getLastLine(output);
+                if (!line.isEmpty()) {
+                    statusText.setText(line);
+                }
+            }
+            
+            @Override
+            public void onFinished(CommandExecution.Result result) {
+            }
+        });
+        
+        try {
+            return packageExecution.waitFor().getExitCode();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while running package command", e);
+            packageExecution.cancel();
+            Thread.currentThread().interrupt();
+            return -1;
+        } finally {
+            packageExecution = null;
+        }
+    }
+    
+    /**
+     * Get the last non-empty line of some output; apt redraws progress lines with \r
+     */
+    private static String getLastLine(String output) {
+        int end = output.length();
+        while (end > 0 && (output.charAt(end - 1) == '\n' || output.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        int start = end;
+        while (start > 0 && output.charAt(start - 1) != '\n' && output.charAt(start - 1) != '\r') {
+            start--;
+        }
+        return output.substring(start, end).trim();
+    }
+    
     /**
      * Adapter for the package list
      */
@@ -87,7 +87,9 @@ public class PerformanceOptimizer {
                     .putBoolean("enable_syntax_highlighting", true)
                     .putBoolean("enable_auto_complete", false)
                     .putInt("max_terminal_buffer", 5000)
+                    .putInt("max_proot_shells", 1)
                     .putInt("max_editor_tabs", 3)
+                    .putInt("large_file_threshold_kb", 1024)
                     .apply();
                 break;
                 
@@ -100,7 +102,9 @@ public class PerformanceOptimizer {
                     .putBoolean("enable_syntax_highlighting", true)
                     .putBoolean("enable_auto_complete", true)
                     .putInt("max_terminal_buffer", 10000)
+                    .putInt("max_proot_shells", 2)
                     .putInt("max_editor_tabs", 5)
+                    .putInt("large_file_threshold_kb", 2048)
                     .apply();
                 break;
                 
@@ -113,7 +117,9 @@ public class PerformanceOptimizer {
                     .putBoolean("enable_syntax_highlighting", true)
                     .putBoolean("enable_auto_complete", true)
                     .putInt("max_terminal_buffer", 20000)
+                    .putInt("max_proot_shells", 3)
                     .putInt("max_editor_tabs", 10)
+                    .putInt("large_file_threshold_kb", 4096)
                     .apply();
                 break;
         }
@@ -126,6 +132,28 @@ public class PerformanceOptimizer {
         return preferences.getInt("performance_profile", PROFILE_MEDIUM);
     }
     
+    /**
+     * Gets the file size above which files are opened in the read-only large file viewer
+     * @return The threshold in bytes
+     */
+    public long getLargeFileThreshold() {
+        return preferences.getInt("large_file_threshold_kb", 2048) * 1024L;
+    }
+    
+    /**
+     * Gets the number of terminal scrollback lines kept per session
+     */
+    public int getMaxTerminalBuffer() {
+        return preferences.getInt("max_terminal_buffer", 10000);
+    }
+    
+    /**
+     * Gets the number of PRoot shells kept running for commands
+     */
+    public int getMaxProotShells() {
+        return preferences.getInt("max_proot_shells", 2);
+    }
+    
     /**
      * Saves the determined performance profile
      */
@@ -0,0 +1,449 @@
+package com.mobiledev.androidstudio.editor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Text document stored as a piece table.
+ *
+ * All text ever added to the document lives in one append-only buffer made of
+ * fixed-size chunks; the document itself is a list of pieces, each pointing at a
+ * stretch of that buffer. An edit splits at most one piece and never copies the
+ * text around it, and saving streams the pieces out without building one String.
+ *
+ * A line start index is kept next to the pieces so offset to line lookups are a
+ * binary search.
+ */
+public class PieceTableDocument implements CharSequence {
+    
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    // Shared append-only text buffer; chunks are never moved or rewritten
+    private final TextBuffer mBuffer;
+    private final char[][] mChunks;
+    
+    // Pieces, as start in the buffer and length, plus their start offset in the document
+    private int[] mPieceBufferStarts;
+    private int[] mPieceLengths;
+    private int[] mPieceStarts;
+    private int mPieceCount;
+    private int mLength;
+    
+    // Line index
+    private int[] mLineStarts;
+    private int mLineCount;
+    
+    // Last piece found by charAt, since reads are mostly sequential
+    private int mLastPiece = 0;
+    
+    public PieceTableDocument() {
+        mBuffer = new TextBuffer();
+        mChunks = null;
+        mPieceBufferStarts = new int[INITIAL_CAPACITY];
+        mPieceLengths = new int[INITIAL_CAPACITY];
+        mPieceStarts = new int[INITIAL_CAPACITY];
+        mLineStarts = new int[INITIAL_CAPACITY];
+        mLineCount = 1;
+    }
+    
+    /**
+     * Create a read-only copy that shares the text buffer
+     */
+    private PieceTableDocument(PieceTableDocument source) {
+        mBuffer = null;
+        mChunks = source.mBuffer.mChunks.clone();
+        mPieceBufferStarts = Arrays.copyOf(source.mPieceBufferStarts, source.mPieceCount);
+        mPieceLengths = Arrays.copyOf(source.mPieceLengths, source.mPieceCount);
+        mPieceStarts = Arrays.copyOf(source.mPieceStarts, source.mPieceCount);
+        mPieceCount = source.mPieceCount;
+        mLength = source.mLength;
+        mLineStarts = Arrays.copyOf(source.mLineStarts, source.mLineCount);
+        mLineCount = source.mLineCount;
+    }
+    
+    /**
+     * Read a whole document from a reader, chunk by chunk
+     * @param reader The source
+     * @return The document
+     * @throws IOException If reading fails
+     */
+    public static PieceTableDocument read(Reader reader) throws IOException {
+        PieceTableDocument document = new PieceTableDocument();
+        char[] buffer = new char[CHUNK_SIZE];
+        int count;
+        
+        while ((count = reader.read(buffer)) >= 0) {
+            document.insert(document.mLength, new CharArraySequence(buffer, count), 0, count);
+        }
+        
+        return document;
+    }
+    
+    /**
+     * Take an immutable snapshot of the document. The snapshot shares the text
+     * buffer, so it is cheap, and it can be read from another thread while this
+     * document keeps being edited.
+     * @return The snapshot
+     */
+    public PieceTableDocument snapshot() {
+        if (mBuffer == null) {
+            return this;
+        }
+        return new PieceTableDocument(this);
+    }
+    
+    /**
+     * Replace a range of the document
+     * @param start Start of the range
+     * @param end End of the range (exclusive)
+     * @param text Text holding the replacement
+     * @param textStart Start of the replacement in text
+     * @param textEnd End of the replacement in text (exclusive)
+     */
+    public void replace(int start, int end, CharSequence text, int textStart, int textEnd) {
+        if (mBuffer == null) {
+            throw new UnsupportedOperationException("Snapshots are read-only");
+        }
+        if (start < 0 || end < start || end > mLength) {
+            throw new IndexOutOfBoundsException("Range " + start + ".." + end + " out of 0.." + mLength);
+        }
+        
+        if (end > start) {
+            delete(start, end);
+        }
+        if (textEnd > textStart) {
+            insert(start, text, textStart, textEnd);
+        }
+    }
+    
+    @Override
+    public int length() {
+        return mLength;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of 0.." + mLength);
+        }
+        
+        int piece = mLastPiece;
+        if (piece >= mPieceCount || index < mPieceStarts[piece]
+                || index >= mPieceStarts[piece] + mPieceLengths[piece]) {
+            piece = findPiece(index);
+            mLastPiece = piece;
+        }
+        
+        int position = mPieceBufferStarts[piece] + index - mPieceStarts[piece];
+        return chunks()[position >>> CHUNK_SHIFT][position & CHUNK_MASK];
+    }
+    
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        StringBuilder builder = new StringBuilder(end - start);
+        appendRange(builder, start, end);
+        return builder.toString();
+    }
+    
+    /**
+     * Copy the whole document into a String. Prefer {@link #writeTo} for saving.
+     */
+    @Override
+    public String toString() {
+        return subSequence(0, mLength).toString();
+    }
+    
+    /**
+     * Stream the document to a writer, piece by piece
+     * @param writer The destination
+     * @throws IOException If writing fails
+     */
+    public void writeTo(Writer writer) throws IOException {
+        char[][] chunks = chunks();
+        
+        for (int piece = 0; piece < mPieceCount; piece++) {
+            int position = mPieceBufferStarts[piece];
+            int remaining = mPieceLengths[piece];
+            
+            while (remaining > 0) {
+                int offset = position & CHUNK_MASK;
+                int count = Math.min(remaining, CHUNK_SIZE - offset);
+                writer.write(chunks[position >>> CHUNK_SHIFT], offset, count);
+                position += count;
+                remaining -= count;
+            }
+        }
+    }
+    
+    /**
+     * Get the number of lines
+     */
+    public int getLineCount() {
+        return mLineCount;
+    }
+    
+    /**
+     * Get the offset at which a line starts
+     * @param line Line index
+     * @return Offset of the first character of the line
+     */
+    public int getLineStart(int line) {
+        return mLineStarts[line];
+    }
+    
+    /**
+     * Get the offset at which a line ends, excluding the line break
+     * @param line Line index
+     * @return Offset just after the last character of the line
+     */
+    public int getLineEnd(int line) {
+        return line + 1 < mLineCount ? mLineStarts[line + 1] - 1 : mLength;
+    }
+    
+    /**
+     * Find the line containing an offset
+     * @param offset Offset in the document
+     * @return Line index
+     */
+    public int findLine(int offset) {
+        return findLast(mLineStarts, mLineCount, offset);
+    }
+    
+    private void insert(int offset, CharSequence text, int textStart, int textEnd) {
+        int count = textEnd - textStart;
+        int bufferStart = mBuffer.append(text, textStart, textEnd);
+        
+        // Split the piece containing the offset, then add the new piece after the left part
+        int piece = splitAt(offset);
+        if (piece > 0 && mPieceBufferStarts[piece - 1] + mPieceLengths[piece - 1] == bufferStart) {
+            // Typing at the end of the last insertion grows that piece
+            mPieceLengths[piece - 1] += count;
+        } else {
+            ensurePieceCapacity(mPieceCount + 1);
+            System.arraycopy(mPieceBufferStarts, piece, mPieceBufferStarts, piece + 1, mPieceCount - piece);
+            System.arraycopy(mPieceLengths, piece, mPieceLengths, piece + 1, mPieceCount - piece);
+            System.arraycopy(mPieceStarts, piece, mPieceStarts, piece + 1, mPieceCount - piece);
+            mPieceBufferStarts[piece] = bufferStart;
+            mPieceLengths[piece] = count;
+            mPieceStarts[piece] = offset;
+            mPieceCount++;
+            piece++;
+        }
+        
+        for (int i = piece; i < mPieceCount; i++) {
+            mPieceStarts[i] += count;
+        }
+        mLength += count;
+        
+        // Line starts created by the inserted text
+        int inserted = 0;
+        for (int i = textStart; i < textEnd; i++) {
+            if (text.charAt(i) == '\n') {
+                inserted++;
+            }
+        }
+        
+        int line = findLine(offset);
+        ensureLineCapacity(mLineCount + inserted);
+        System.arraycopy(mLineStarts, line + 1, mLineStarts, line + 1 + inserted, mLineCount - line - 1);
+        mLineCount += inserted;
+        
+        for (int i = textStart, next = line + 1; i < textEnd; i++) {
+            if (text.charAt(i) == '\n') {
+                mLineStarts[next++] = offset + i - textStart + 1;
+            }
+        }
+        for (int i = line + 1 + inserted; i < mLineCount; i++) {
+            mLineStarts[i] += count;
+        }
+    }
+    
+    private void delete(int start, int end) {
+        int count = end - start;
+        
+        // Remove the pieces fully inside the range after splitting at both ends
+        int first = splitAt(start);
+        int last = splitAt(end);
+        System.arraycopy(mPieceBufferStarts, last, mPieceBufferStarts, first, mPieceCount - last);
+        System.arraycopy(mPieceLengths, last, mPieceLengths, first, mPieceCount - last);
+        System.arraycopy(mPieceStarts, last, mPieceStarts, first, mPieceCount - last);
+        mPieceCount -= last - first;
+        
+        for (int i = first; i < mPieceCount; i++) {
+            mPieceStarts[i] -= count;
+        }
+        mLength -= count;
+        mLastPiece = 0;
+        
+        // Drop the line starts inside the range
+        int firstLine = findLine(start) + 1;
+        int lastLine = findLine(end);
+        int removed = lastLine - firstLine + 1;
+        System.arraycopy(mLineStarts, lastLine + 1, mLineStarts, firstLine, mLineCount - lastLine - 1);
+        mLineCount -= removed;
+        
+        for (int i = firstLine; i < mLineCount; i++) {
+            mLineStarts[i] -= count;
+        }
+    }
+    
+    /**
+     * Make sure a piece boundary falls on an offset
+     * @return Index of the piece starting at the offset, or the piece count at the end
+     */
+    private int splitAt(int offset) {
+        if (offset >= mLength) {
+            return mPieceCount;
+        }
+        
+        int piece = findPiece(offset);
+        int split = offset - mPieceStarts[piece];
+        if (split == 0) {
+            return piece;
+        }
+        
+        ensurePieceCapacity(mPieceCount + 1);
+        System.arraycopy(mPieceBufferStarts, piece + 1, mPieceBufferStarts, piece + 2, mPieceCount - piece - 1);
+        System.arraycopy(mPieceLengths, piece + 1, mPieceLengths, piece + 2, mPieceCount - piece - 1);
+        System.arraycopy(mPieceStarts, piece + 1, mPieceStarts, piece + 2, mPieceCount - piece - 1);
+        mPieceBufferStarts[piece + 1] = mPieceBufferStarts[piece] + split;
+        mPieceLengths[piece + 1] = mPieceLengths[piece] - split;
+        mPieceStarts[piece + 1] = offset;
+        mPieceLengths[piece] = split;
+        mPieceCount++;
+        
+        return piece + 1;
+    }
+    
+    private int findPiece(int offset) {
+        return findLast(mPieceStarts, mPieceCount, offset);
+    }
+    
+    private void appendRange(StringBuilder builder, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        
+        char[][] chunks = chunks();
+        int piece = findPiece(start);
+        int index = start;
+        
+        while (index < end) {
+            int position = mPieceBufferStarts[piece] + index - mPieceStarts[piece];
+            int count = Math.min(end, mPieceStarts[piece] + mPieceLengths[piece]) - index;
+            
+            while (count > 0) {
+                int offset = position & CHUNK_MASK;
+                int run = Math.min(count, CHUNK_SIZE - offset);
+                builder.append(chunks[position >>> CHUNK_SHIFT], offset, run);
+                position += run;
+                index += run;
+                count -= run;
+            }
+            piece++;
+        }
+    }
+    
+    private char[][] chunks() {
+        return mBuffer != null ? mBuffer.mChunks : mChunks;
+    }
+    
+    /**
+     * Find the last entry of a sorted array that is at most a value
+     */
+    private static int findLast(int[] values, int count, int value) {
+        int low = 0;
+        int high = count - 1;
+        
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (values[mid] <= value) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        
+        return low;
+    }
+    
+    private void ensurePieceCapacity(int capacity) {
+        if (capacity > mPieceLengths.length) {
+            int newCapacity = Math.max(capacity, mPieceLengths.length * 2);
+            mPieceBufferStarts = Arrays.copyOf(mPieceBufferStarts, newCapacity);
+            mPieceLengths = Arrays.copyOf(mPieceLengths, newCapacity);
+            mPieceStarts = Arrays.copyOf(mPieceStarts, newCapacity);
+        }
+    }
+    
+    private void ensureLineCapacity(int capacity) {
+        if (capacity > mLineStarts.length) {
+            mLineStarts = Arrays.copyOf(mLineStarts, Math.max(capacity, mLineStarts.length * 2));
+        }
+    }
+    
+    /**
+     * Append-only text storage in fixed-size chunks
+     */
+    private static final class TextBuffer {
+        
+        private char[][] mChunks = new char[INITIAL_CAPACITY][];
+        private int mLength = 0;
+        
+        /**
+         * Append text to the buffer
+         * @return Position of the appended text in the buffer
+         */
+        int append(CharSequence text, int start, int end) {
+            int position = mLength;
+            
+            for (int i = start; i < end; i++) {
+                int chunk = mLength >>> CHUNK_SHIFT;
+                if (chunk == mChunks.length) {
+                    mChunks = Arrays.copyOf(mChunks, mChunks.length * 2);
+                }
+                if (mChunks[chunk] == null) {
+                    mChunks[chunk] = new char[CHUNK_SIZE];
+                }
+                mChunks[chunk][mLength & CHUNK_MASK] = text.charAt(i);
+                mLength++;
+            }
+            
+            return position;
+        }
+    }
+    
+    /**
+     * Char array viewed as a char sequence, without copying
+     */
+    private static final class CharArraySequence implements CharSequence {
+        
+        private final char[] mChars;
+        private final int mLength;
+        
+        CharArraySequence(char[] chars, int length) {
+            mChars = chars;
+            mLength = length;
+        }
+        
+        @Override
+        public int length() {
+            return mLength;
+        }
+        
+        @Override
+        public char charAt(int index) {
+            return mChars[index];
+        }
+        
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mChars, start, end - start);
+        }
+    }
+}
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.mobiledev.androidstudio.utils;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
@@ -15,23 +16,55 @@ import androidx.work.WorkerParameters;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the PRoot environment for running Linux commands and installing packages
+ *
+ * Commands run on a small pool of long-lived PRoot shells, so starting PRoot and
+ * binding the rootfs is not paid for every command. The pool grows on demand up
+ * to the size set by {@link PerformanceOptimizer}; idle shells are closed when
+ * the system runs low on memory.
  */
 public class PreRootManager {
     private static final String TAG = "PreRootManager";
     private static final String PROOT_DIR = "proot_env";
     private static final String GITHUB_RELEASE_URL = "https://github.com/termux/proot/releases/download/v5.3.0/proot-android-aarch64";
+    private static final long IDLE_THREAD_SECONDS = 30;
     
     private final Context context;
     private final File prootDir;
+    private final int maxShells;
     
-    public PreRootManager(Context context) {
+    // One thread per shell, so commands waiting for a shell do not hold up
+    // the commands of TerminalManager
+    private final ExecutorService commandExecutor;
+    
+    // Shells waiting for a command, most recently used last
+    private final ArrayDeque<ProotShell> idleShells = new ArrayDeque<>();
+    private int busyShells;
+    
+    /**
+     * @param context The application context
+     * @param maxShells Largest number of PRoot shells kept running at once
+     */
+    public PreRootManager(Context context, int maxShells) {
         this.context = context;
         this.prootDir = new File(context.getFilesDir(), PROOT_DIR);
+        this.maxShells = Math.max(1, maxShells);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(this.maxShells, this.maxShells,
+                IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        this.commandExecutor = executor;
         
         // Create PRoot directory if it doesn't exist
         if (!prootDir.exists()) {
@@ -64,6 +97,39 @@ public class PreRootManager {
         WorkManager.getInstance(context).enqueue(prootSetupWork);
     }
     
+    /**
+     * Create the process builder for running a command in the PRoot environment
+     * as a process of its own
+     * @param command The command to execute
+     * @return The process builder, not started yet
+     */
+    public ProcessBuilder createProcessBuilder(String command) {
+        return createShellProcessBuilder("-c", command);
+    }
+    
+    /**
+     * Create the process builder for a shell in the PRoot environment
+     * @param shellArguments Arguments of the shell
+     */
+    private ProcessBuilder createShellProcessBuilder(String... shellArguments) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(
+                new File(prootDir, "proot").getAbsolutePath(),
+                "-r", new File(prootDir, "rootfs").getAbsolutePath(),
+                "-w", "/", 
+                "-b", "/dev", 
+                "-b", "/proc",
+                "-b", "/sys",
+                "/bin/sh"));
+        arguments.addAll(Arrays.asList(shellArguments));
+        ProcessBuilder processBuilder = new ProcessBuilder(arguments);
+        
+        // Set environment variables
+        processBuilder.environment().put("HOME", "/root");
+        processBuilder.environment().put("PATH", "/bin:/usr/bin:/sbin:/usr/sbin");
+        processBuilder.environment().put("TERM", "xterm-256color");
+        return processBuilder;
+    }
+    
     /**
      * Execute a command in the PRoot environment
      * @param command The command to execute
@@ -73,32 +139,205 @@ public class PreRootManager {
         try {
             Log.d(TAG, "Executing command: " + command);
             
-            // Create the process builder for running PRoot with the command
-            ProcessBuilder processBuilder = new ProcessBuilder(
-                    new File(prootDir, "proot").getAbsolutePath(),
-                    "-r", new File(prootDir, "rootfs").getAbsolutePath(),
-                    "-w", "/", 
-                    "-b", "/dev", 
-                    "-b", "/proc",
-                    "-b", "/sys",
-                    "/bin/sh", "-c", command);
-            
-            // Set environment variables
-            processBuilder.environment().put("HOME", "/root");
-            processBuilder.environment().put("PATH", "/bin:/usr/bin:/sbin:/usr/sbin");
-            processBuilder.environment().put("TERM", "xterm-256color");
-            
-            // Start the process
-            Process process = processBuilder.start();
-            
-            // Wait for process to complete and return exit code
-            return process.waitFor();
+            // Run on a pooled shell, discarding the output
+            ShellRunner runner = new ShellRunner(command);
+            runner.prepare();
+            return runner.run(null);
         } catch (IOException | InterruptedException e) {
             Log.e(TAG, "Error executing command", e);
             return -1;
         }
     }
     
+    /**
+     * Execute a command in the PRoot environment, delivering its output while it runs
+     * @param command The command to execute
+     * @param timeoutMillis Time after which the command is stopped, or 0 for no limit
+     * @param callback Callback for the output and result, called on the main thread
+     * @return The running command, for cancelling or waiting for it
+     */
+    public CommandExecution executeCommand(String command, long timeoutMillis, CommandExecution.Callback callback) {
+        Log.d(TAG, "Executing command: " + command);
+        return TerminalManager.getInstance(context).executeCommand(new ShellRunner(command), commandExecutor,
+                timeoutMillis, callback);
+    }
+    
+    /**
+     * Start a shell in the background if none is running, so the next command
+     * does not wait for PRoot to start
+     */
+    public void warmUp() {
+        synchronized (this) {
+            if (!isEnvironmentReady() || !idleShells.isEmpty() || busyShells > 0) {
+                return;
+            }
+        }
+        new Thread(() -> executeCommand("true"), "ProotWarmUp").start();
+    }
+    
+    /**
+     * Close idle shells when the system is low on memory
+     * @param level Level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            closeIdleShells(1);
+        } else {
+            closeIdleShells(0);
+        }
+    }
+    
+    /**
+     * Close the least recently used idle shells
+     * @param keep Number of idle shells to keep
+     */
+    private synchronized void closeIdleShells(int keep) {
+        while (idleShells.size() > keep) {
+            idleShells.pollFirst().destroy();
+        }
+    }
+    
+    /**
+     * Take an idle shell, start one if the pool is not full, or wait for one
+     * @param runner Runner the shell is for
+     * @return The shell, or null if the runner was stopped while waiting
+     */
+    private ProotShell acquireShell(ShellRunner runner) throws IOException, InterruptedException {
+        synchronized (this) {
+            while (true) {
+                if (runner.stopped) {
+                    return null;
+                }
+                ProotShell shell = idleShells.pollLast();
+                if (shell != null) {
+                    if (shell.isAlive()) {
+                        busyShells++;
+                        return shell;
+                    }
+                    continue;
+                }
+                if (busyShells < maxShells) {
+                    busyShells++;
+                    break;
+                }
+                wait();
+            }
+        }
+        
+        // Started outside the lock, other shells can be handed out meanwhile
+        try {
+            return new ProotShell(createShellProcessBuilder());
+        } catch (IOException e) {
+            releaseShell(null, false);
+            throw e;
+        }
+    }
+    
+    /**
+     * Return a shell to the pool
+     * @param shell The shell, or null if it could not be started
+     * @param reusable false if the shell may be in the middle of a command
+     */
+    private synchronized void releaseShell(ProotShell shell, boolean reusable) {
+        busyShells--;
+        if (shell != null) {
+            if (reusable && shell.isAlive()) {
+                idleShells.addLast(shell);
+            } else {
+                shell.destroy();
+            }
+        }
+        notifyAll();
+    }
+    
+    /**
+     * Runs a command on a shell of the pool
+     */
+    private class ShellRunner implements CommandExecution.Runner {
+        private final String command;
+        private ProotShell shell;
+        
+        // Also read by acquireShell() under the lock of the manager
+        private volatile boolean stopped;
+        
+        ShellRunner(String command) {
+            this.command = command;
+        }
+        
+        /**
+         * Wait for a shell of the pool
+         */
+        @Override
+        public void prepare() throws IOException, InterruptedException {
+            ProotShell acquired = acquireShell(this);
+            if (acquired == null) {
+                return;
+            }
+            synchronized (this) {
+                if (stopped) {
+                    releaseShell(acquired, true);
+                    return;
+                }
+                shell = acquired;
+            }
+        }
+        
+        /**
+         * @param output Stream for the output, or null to discard it
+         */
+        @Override
+        public int run(OutputStream output) throws IOException, InterruptedException {
+            ProotShell acquired;
+            synchronized (this) {
+                acquired = shell;
+                if (acquired == null) {
+                    // Stopped before a shell was ready
+                    return -1;
+                }
+                if (stopped) {
+                    // Stopped after the shell was handed over, which closed it
+                    shell = null;
+                    acquired = null;
+                }
+            }
+            if (acquired == null) {
+                releaseShell(null, false);
+                return -1;
+            }
+            
+            boolean completed = false;
+            try {
+                int exitCode = acquired.run(command, output);
+                completed = true;
+                return exitCode;
+            } finally {
+                boolean reusable;
+                synchronized (this) {
+                    shell = null;
+                    reusable = completed && !stopped;
+                }
+                releaseShell(acquired, reusable);
+            }
+        }
+        
+        /**
+         * Stop the command by closing its shell, or stop waiting for one
+         */
+        @Override
+        public void stop() {
+            synchronized (this) {
+                stopped = true;
+                if (shell != null) {
+                    shell.destroy();
+                }
+            }
+            synchronized (PreRootManager.this) {
+                PreRootManager.this.notifyAll();
+            }
+        }
+    }
+    
     /**
      * Check if the PRoot environment is ready
      * @return true if ready, false otherwise
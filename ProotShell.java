@@ -0,0 +1,147 @@
+package com.mobiledev.androidstudio.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * A long-lived shell in the PRoot environment that runs commands one at a time.
+ *
+ * Starting PRoot and setting up the rootfs bindings is paid once per shell
+ * instead of once per command. Each command is written to the shell's input,
+ * run in a subshell with eval so that exit, cd or a syntax error cannot affect
+ * the shell, and followed by a marker with a random part and the exit code. The
+ * output up to the marker is the command's output.
+ *
+ * Commands read no input. Output a command leaves running in the background
+ * would be mixed into the output of the next one.
+ */
+class ProotShell {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Process mProcess;
+    private final OutputStream mInput;
+    private final InputStream mOutput;
+
+    /**
+     * Start a shell
+     * @param processBuilder Builder running a shell that reads commands from its input
+     * @throws IOException If the shell cannot be started
+     */
+    ProotShell(ProcessBuilder processBuilder) throws IOException {
+        processBuilder.redirectErrorStream(true);
+        mProcess = processBuilder.start();
+        mInput = mProcess.getOutputStream();
+        mOutput = mProcess.getInputStream();
+    }
+
+    /**
+     * Run a command. Output is passed on as it arrives.
+     * @param command The command to execute
+     * @param output Stream for the output, or null to discard it
+     * @return The exit code of the command
+     * @throws IOException If the shell exited or was destroyed
+     */
+    int run(String command, OutputStream output) throws IOException {
+        String marker = "__proot_done_" + UUID.randomUUID().toString().replace("-", "") + ":";
+        String line = "( eval " + quote(command) + " ) </dev/null 2>&1; printf '%s%d\\n' '"
+                + marker + "' \"$?\"\n";
+        mInput.write(line.getBytes(StandardCharsets.UTF_8));
+        mInput.flush();
+
+        byte[] pattern = marker.getBytes(StandardCharsets.UTF_8);
+        int[] fallback = getFallback(pattern);
+        byte[] chunk = new byte[BUFFER_SIZE];
+
+        // A partial match of the marker held back from one read can turn out to be output
+        byte[] passed = new byte[BUFFER_SIZE + pattern.length];
+        int matched = 0;
+        int exitCode = 0;
+
+        while (true) {
+            int read = mOutput.read(chunk);
+            if (read < 0) {
+                throw new IOException("PRoot shell exited");
+            }
+
+            // Pass everything before the marker on, a read at a time
+            int position = 0;
+            int passedLength = 0;
+            for (; position < read && matched < pattern.length; position++) {
+                byte b = chunk[position];
+                while (matched > 0 && b != pattern[matched]) {
+                    int kept = fallback[matched - 1];
+                    System.arraycopy(pattern, 0, passed, passedLength, matched - kept);
+                    passedLength += matched - kept;
+                    matched = kept;
+                }
+                if (b == pattern[matched]) {
+                    matched++;
+                } else {
+                    passed[passedLength++] = b;
+                }
+            }
+            if (passedLength > 0 && output != null) {
+                output.write(passed, 0, passedLength);
+            }
+
+            // The exit code follows the marker on the same line
+            for (; position < read; position++) {
+                byte b = chunk[position];
+                if (b == '\n') {
+                    return exitCode;
+                }
+                if (b >= '0' && b <= '9') {
+                    exitCode = exitCode * 10 + (b - '0');
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if the shell can still run commands
+     */
+    boolean isAlive() {
+        try {
+            mProcess.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Stop the shell and the command it is running
+     */
+    void destroy() {
+        mProcess.destroy();
+    }
+
+    /**
+     * Quote a command as one shell word
+     */
+    private static String quote(String command) {
+        return "'" + command.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * For each length of a partial match, the length of the longest end of it
+     * that is also a start of the pattern
+     */
+    private static int[] getFallback(byte[] pattern) {
+        int[] fallback = new int[pattern.length];
+        int length = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (length > 0 && pattern[i] != pattern[length]) {
+                length = fallback[length - 1];
+            }
+            if (pattern[i] == pattern[length]) {
+                length++;
+            }
+            fallback[i] = length;
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,310 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A process running on a pseudo-terminal.
+ *
+ * Unlike a process started with ProcessBuilder, the program sees a real
+ * terminal: the shell offers line editing and job control, libc line-buffers
+ * its output instead of holding it back in large blocks, and programs can ask
+ * for the window size. Standard error goes to the same terminal as standard
+ * output.
+ *
+ * No thread waits for the process: it is reaped when its state is asked for,
+ * or by {@link #waitFor()}.
+ *
+ * The terminal is non-blocking. Its streams still block like those of any
+ * process, by waiting for the terminal to be ready, while
+ * {@link TerminalIoScheduler} uses {@link #readAvailable} and
+ * {@link #writeAvailable} so that a program not reading its input never holds
+ * up a shared thread.
+ *
+ * The native part only uses POSIX and Linux calls, so this class also works on
+ * desktop Linux when libpty is on java.library.path.
+ */
+public class PtyProcess extends Process {
+
+    private static final int SIGHUP = 1;
+
+    static final int POLL_READ = 1;
+    static final int POLL_WRITE = 2;
+
+    private static final boolean AVAILABLE = loadLibrary();
+
+    private final int fd;
+    private final int pid;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private boolean exited;
+    private int exitCode;
+    private volatile boolean closed;
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary("pty");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if the native library could be loaded
+     *
+     * @return true if processes can be started on a pseudo-terminal
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Start a process on a new pseudo-terminal
+     *
+     * @param command Path to the executable
+     * @param arguments Arguments, starting with the program name
+     * @param workingDirectory Working directory, or null to inherit it
+     * @param environment Environment as NAME=value entries, or null to inherit it
+     * @param columns Number of columns of the terminal
+     * @param rows Number of rows of the terminal
+     * @return The started process
+     * @throws IOException If the terminal cannot be opened or the process not started
+     */
+    public static PtyProcess start(String command, String[] arguments, String workingDirectory,
+                                   String[] environment, int columns, int rows) throws IOException {
+        if (!AVAILABLE) {
+            throw new IOException("Pseudo-terminal support is not available");
+        }
+
+        int[] processId = new int[1];
+        int fd = createSubprocess(command, workingDirectory, arguments, environment, processId, rows, columns);
+        return new PtyProcess(fd, processId[0]);
+    }
+
+    private PtyProcess(int fd, int pid) {
+        this.fd = fd;
+        this.pid = pid;
+
+        inputStream = new PtyInputStream();
+        outputStream = new PtyOutputStream();
+    }
+
+    /**
+     * Tell the program that the terminal size changed
+     *
+     * @param columns Number of columns
+     * @param rows Number of rows
+     */
+    public void setWindowSize(int columns, int rows) {
+        if (!isAlive()) {
+            return;
+        }
+        setWindowSize(fd, rows, columns);
+    }
+
+    /**
+     * Get the file descriptor of the terminal, for waiting on it with other terminals
+     *
+     * @return The descriptor of the master side
+     */
+    int getFd() {
+        return fd;
+    }
+
+    /**
+     * Close the terminal, once both of its streams are done with
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            close(fd);
+        }
+    }
+
+    /**
+     * Get the process ID
+     *
+     * @return The process ID
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        // Standard error is part of the terminal output
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        if (isAlive()) {
+            // Not synchronized, so isAlive() does not wait meanwhile
+            setExited(waitFor(pid));
+        }
+        synchronized (this) {
+            return exitCode;
+        }
+    }
+
+    private synchronized void setExited(int code) {
+        // Negative while running, or when another thread reaped the process first
+        if (!exited && code >= 0) {
+            exitCode = code;
+            exited = true;
+        }
+    }
+
+    @Override
+    public synchronized int exitValue() {
+        if (isAlive()) {
+            throw new IllegalThreadStateException("Process has not exited");
+        }
+        return exitCode;
+    }
+
+    @Override
+    public synchronized boolean isAlive() {
+        if (!exited) {
+            setExited(checkExit(pid));
+        }
+        return !exited;
+    }
+
+    /**
+     * Hang up the terminal, as closing a terminal window does
+     */
+    @Override
+    public void destroy() {
+        if (isAlive()) {
+            sendSignal(pid, SIGHUP);
+        }
+    }
+
+    /**
+     * Output of the terminal, waiting for the terminal until output arrives.
+     * Reading the master side fails with EIO once the process and its children
+     * closed the terminal, which is the normal end of the output rather than an
+     * error.
+     */
+    private class PtyInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                if (closed) {
+                    return -1;
+                }
+                int read = readAvailable(fd, buffer, offset, length);
+                if (read != 0) {
+                    return read;
+                }
+                awaitEvents(fd, POLL_READ);
+            }
+        }
+
+        @Override
+        public void close() {
+            PtyProcess.this.close();
+        }
+    }
+
+    /**
+     * Input of the terminal, waiting for the terminal while the program does
+     * not read
+     */
+    private class PtyOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (closed) {
+                    throw new IOException("Terminal is closed");
+                }
+                int written = writeAvailable(fd, buffer, offset, length);
+                if (written < 0) {
+                    throw new IOException("Cannot write to the terminal");
+                }
+                if (written == 0) {
+                    awaitEvents(fd, POLL_WRITE);
+                }
+                offset += written;
+                length -= written;
+            }
+        }
+
+        @Override
+        public void close() {
+            PtyProcess.this.close();
+        }
+    }
+
+    private static native int createSubprocess(String command, String workingDirectory, String[] arguments,
+                                               String[] environment, int[] processId, int rows, int columns)
+            throws IOException;
+
+    /**
+     * Read what the terminal has without waiting
+     *
+     * @return Bytes read, 0 if nothing can be read yet, -1 at the end of the output
+     */
+    static native int readAvailable(int fd, byte[] buffer, int offset, int length);
+
+    /**
+     * Write what the terminal can take without waiting
+     *
+     * @return Bytes written, 0 if the terminal cannot take more yet, -1 on an error
+     */
+    static native int writeAvailable(int fd, byte[] buffer, int offset, int length);
+
+    private static native void awaitEvents(int fd, int events);
+
+    private static native void close(int fd);
+
+    private static native void setWindowSize(int fd, int rows, int columns);
+
+    private static native int waitFor(int pid);
+
+    private static native int checkExit(int pid);
+
+    static native int createEventFd() throws IOException;
+
+    static native void signalEventFd(int fd);
+
+    /**
+     * Wait until terminals are ready for the {@link #POLL_READ} and
+     * {@link #POLL_WRITE} events asked for, or the eventfd is signalled
+     *
+     * @return Number of terminals with ready events
+     */
+    static native int poll(int[] fds, int[] events, int count, int eventFd, int[] ready) throws IOException;
+
+    private static native void sendSignal(int pid, int signal);
+}
\ No newline at end of file
@@ -0,0 +1,466 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Scrollback that no longer fits in the in-memory transcript of a screen.
+ *
+ * Rows are encoded compactly, gathered in blocks of {@link #LINES_PER_BLOCK}
+ * lines, deflated and appended to segment files in a directory of their own.
+ * An in-memory index of block offsets gives random access by line number, and
+ * the last blocks read are kept decoded so scrolling through them is cheap.
+ * Each block also records which characters occur in it, so a search for text
+ * can skip blocks without reading them.
+ *
+ * Once {@link #MAX_SEGMENTS} segments exist the oldest one is deleted, so
+ * both memory and disk use are bounded however much a session prints.
+ *
+ * Like the screen it belongs to, the archive is used under the emulator lock.
+ */
+public class ScrollbackArchive {
+
+    static final int LINES_PER_BLOCK = 256;
+    private static final int BLOCKS_PER_SEGMENT = 256;
+    private static final int LINES_PER_SEGMENT = LINES_PER_BLOCK * BLOCKS_PER_SEGMENT;
+    private static final int MAX_SEGMENTS = 16;
+    private static final int INDEX_SIZE = BLOCKS_PER_SEGMENT * MAX_SEGMENTS;
+
+    private final File directory;
+
+    // Global line numbers: lines before firstLine were dropped with their segment
+    private long firstLine;
+    private long endLine;
+
+    // Encoded rows of the block being filled
+    private byte[] pending = new byte[16 * 1024];
+    private int pendingLength;
+    private long pendingMask;
+
+    // File position and compressed length of each stored block, indexed by block number modulo INDEX_SIZE
+    private final long[] blockOffsets = new long[INDEX_SIZE];
+    private final int[] blockLengths = new int[INDEX_SIZE];
+
+    // Characters occurring in each stored block, see getCharacterMask
+    private final long[] blockMasks = new long[INDEX_SIZE];
+    private RandomAccessFile segmentFile;
+    private long segmentNumber = -1;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[8 * 1024];
+
+    // Two most recently decoded blocks
+    private final DecodedBlock[] decodedBlocks = {new DecodedBlock(), new DecodedBlock()};
+
+    private boolean failed;
+
+    /**
+     * Create a new, empty archive
+     *
+     * @param directory Directory for the segment files, created if needed and owned by the archive
+     */
+    public ScrollbackArchive(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            failed = true;
+        }
+    }
+
+    /**
+     * Get the number of the oldest line still available
+     *
+     * @return Line number
+     */
+    public long getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * Get the number after the newest line
+     *
+     * @return Line number
+     */
+    public long getEndLine() {
+        return endLine;
+    }
+
+    /**
+     * Get the bit standing for a character in the character masks of blocks.
+     * Upper and lower case share a bit.
+     *
+     * @param codePoint The character
+     * @return Mask with one bit set
+     */
+    public static long getCharacterMask(int codePoint) {
+        return 1L << (Character.toLowerCase(codePoint) & 63);
+    }
+
+    /**
+     * Check if a line may contain all characters of a mask. A false result is
+     * certain and found without reading the line.
+     *
+     * @param line Line number, from {@link #getFirstLine()} up to {@link #getEndLine()}
+     * @param mask Combined masks of the characters
+     * @return false if the block of the line lacks one of the characters
+     */
+    public boolean mayContain(long line, long mask) {
+        long blockNumber = line / LINES_PER_BLOCK;
+        long blockMask = blockNumber == endLine / LINES_PER_BLOCK
+                ? pendingMask : blockMasks[(int) (blockNumber % INDEX_SIZE)];
+        return (blockMask & mask) == mask;
+    }
+
+    /**
+     * Add a row as the newest line
+     *
+     * @param text Code points of the row
+     * @param styles Styles of the row
+     * @param offset Start of the row in the arrays
+     * @param columns Number of cells
+     */
+    public void appendRow(int[] text, int[] styles, int offset, int columns) {
+        if (failed) {
+            return;
+        }
+
+        // Trailing blank cells are not stored
+        int length = columns;
+        while (length > 0 && text[offset + length - 1] == ' '
+                && styles[offset + length - 1] == TextStyle.NORMAL) {
+            length--;
+        }
+
+        int row = (int) (endLine % LINES_PER_BLOCK);
+        ensurePending(5 + length * 15);
+        writeVarInt(length);
+        for (int i = offset; i < offset + length; i++) {
+            writeVarInt(text[i]);
+            pendingMask |= getCharacterMask(text[i]);
+        }
+
+        // Styles as runs of equal values
+        int i = offset;
+        while (i < offset + length) {
+            int style = styles[i];
+            int run = 1;
+            while (i + run < offset + length && styles[i + run] == style) {
+                run++;
+            }
+            writeVarInt(run);
+            writeVarInt(style);
+            i += run;
+        }
+
+        endLine++;
+        if (row + 1 == LINES_PER_BLOCK) {
+            try {
+                writeBlock();
+            } catch (IOException e) {
+                e.printStackTrace();
+                failed = true;
+            }
+            pendingLength = 0;
+            pendingMask = 0;
+        }
+    }
+
+    /**
+     * Get the code point in a cell of a line
+     *
+     * @param line Line number, from {@link #getFirstLine()} up to {@link #getEndLine()}
+     * @param column Column index
+     * @return The code point, a space past the end of the line
+     */
+    public int getCodePoint(long line, int column) {
+        DecodedBlock block = getBlock(line);
+        int row = (int) (line % LINES_PER_BLOCK);
+        int index = block.rowStarts[row] + column;
+        return index < block.rowStarts[row + 1] ? block.text[index] : ' ';
+    }
+
+    /**
+     * Get the style of a cell of a line
+     *
+     * @param line Line number, from {@link #getFirstLine()} up to {@link #getEndLine()}
+     * @param column Column index
+     * @return The packed style
+     */
+    public int getStyle(long line, int column) {
+        DecodedBlock block = getBlock(line);
+        int row = (int) (line % LINES_PER_BLOCK);
+        int index = block.rowStarts[row] + column;
+        return index < block.rowStarts[row + 1] ? block.styles[index] : TextStyle.NORMAL;
+    }
+
+    /**
+     * Append the text of a line, without trailing blanks
+     *
+     * @param line Line number, from {@link #getFirstLine()} up to {@link #getEndLine()}
+     * @param builder Builder to append to
+     * @return Number of cells appended
+     */
+    public int getLineText(long line, StringBuilder builder) {
+        DecodedBlock block = getBlock(line);
+        int row = (int) (line % LINES_PER_BLOCK);
+        int end = block.rowStarts[row + 1];
+        while (end > block.rowStarts[row] && block.text[end - 1] == ' ') {
+            end--;
+        }
+        for (int i = block.rowStarts[row]; i < end; i++) {
+            builder.appendCodePoint(block.text[i]);
+        }
+        return end - block.rowStarts[row];
+    }
+
+    /**
+     * Drop all lines
+     */
+    public void clear() {
+        closeSegment();
+        deleteSegments();
+        firstLine = endLine = (endLine / LINES_PER_SEGMENT + 1) * LINES_PER_SEGMENT;
+        pendingLength = 0;
+        pendingMask = 0;
+        for (DecodedBlock block : decodedBlocks) {
+            block.blockNumber = -1;
+        }
+    }
+
+    /**
+     * Delete the archive and its files
+     */
+    public void close() {
+        closeSegment();
+        deleteSegments();
+        directory.delete();
+        deflater.end();
+        inflater.end();
+        failed = true;
+    }
+
+    private void writeBlock() throws IOException {
+        long blockNumber = (endLine - 1) / LINES_PER_BLOCK;
+        long segment = blockNumber / BLOCKS_PER_SEGMENT;
+        if (segment != segmentNumber) {
+            startSegment(segment);
+        }
+
+        deflater.reset();
+        deflater.setInput(pending, 0, pendingLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = grow(compressed, length + 1);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        int slot = (int) (blockNumber % INDEX_SIZE);
+        blockOffsets[slot] = segmentFile.length();
+        blockLengths[slot] = length;
+        blockMasks[slot] = pendingMask;
+        segmentFile.seek(blockOffsets[slot]);
+        segmentFile.write(compressed, 0, length);
+    }
+
+    private void startSegment(long segment) throws IOException {
+        closeSegment();
+
+        // Make room by dropping the oldest segment
+        long dropped = segment - MAX_SEGMENTS;
+        if (dropped >= 0) {
+            getSegmentFile(dropped).delete();
+            firstLine = Math.max(firstLine, (dropped + 1) * LINES_PER_SEGMENT);
+        }
+
+        segmentFile = new RandomAccessFile(getSegmentFile(segment), "rw");
+        segmentNumber = segment;
+    }
+
+    private void closeSegment() {
+        if (segmentFile != null) {
+            try {
+                segmentFile.close();
+            } catch (IOException e) {
+                // The file is not used any more
+            }
+            segmentFile = null;
+            segmentNumber = -1;
+        }
+    }
+
+    private void deleteSegments() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(directory, "segment-" + segment);
+    }
+
+    /**
+     * Get the decoded block holding a line, reading it from disk if needed
+     */
+    private DecodedBlock getBlock(long line) {
+        long blockNumber = line / LINES_PER_BLOCK;
+        for (DecodedBlock block : decodedBlocks) {
+            // The block still being filled is only valid until the next line is added
+            if (block.blockNumber == blockNumber && (block.complete || block.endLine == endLine)) {
+                return block;
+            }
+        }
+
+        // Replace the block used least recently
+        DecodedBlock block = decodedBlocks[1];
+        decodedBlocks[1] = decodedBlocks[0];
+        decodedBlocks[0] = block;
+
+        block.blockNumber = blockNumber;
+        block.endLine = endLine;
+        if (blockNumber == endLine / LINES_PER_BLOCK) {
+            block.decode(pending, (int) (endLine % LINES_PER_BLOCK));
+            block.complete = false;
+            return block;
+        }
+
+        try {
+            int slot = (int) (blockNumber % INDEX_SIZE);
+            byte[] data = readBlock(blockNumber / BLOCKS_PER_SEGMENT, blockOffsets[slot], blockLengths[slot]);
+            block.decode(data, LINES_PER_BLOCK);
+            block.complete = true;
+        } catch (IOException | DataFormatException e) {
+            e.printStackTrace();
+            block.clear();
+        }
+        return block;
+    }
+
+    private byte[] readBlock(long segment, long offset, int length) throws IOException, DataFormatException {
+        byte[] data = new byte[length];
+        if (segment == segmentNumber) {
+            segmentFile.seek(offset);
+            segmentFile.readFully(data);
+        } else {
+            try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "r")) {
+                file.seek(offset);
+                file.readFully(data);
+            }
+        }
+
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] result = new byte[Math.max(length * 4, 1024)];
+        int size = 0;
+        while (!inflater.finished()) {
+            if (size == result.length) {
+                result = grow(result, size + 1);
+            }
+            int count = inflater.inflate(result, size, result.length - size);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated block");
+            }
+            size += count;
+        }
+
+        byte[] decoded = new byte[size];
+        System.arraycopy(result, 0, decoded, 0, size);
+        return decoded;
+    }
+
+    private void ensurePending(int extra) {
+        if (pendingLength + extra > pending.length) {
+            pending = grow(pending, pendingLength + extra);
+        }
+    }
+
+    private static byte[] grow(byte[] array, int minLength) {
+        byte[] grown = new byte[Math.max(minLength, array.length * 2)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7f) != 0) {
+            pending[pendingLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        pending[pendingLength++] = (byte) value;
+    }
+
+    /**
+     * Cells of the lines of one block, in the layout the screen reads them in
+     */
+    private static class DecodedBlock {
+        long blockNumber = -1;
+        long endLine;
+        boolean complete;
+        final int[] rowStarts = new int[LINES_PER_BLOCK + 1];
+        int[] text = new int[0];
+        int[] styles = new int[0];
+        private int position;
+
+        void decode(byte[] data, int rows) {
+            position = 0;
+            int cells = 0;
+            for (int row = 0; row < rows; row++) {
+                int count = readVarInt(data);
+                rowStarts[row] = cells;
+                if (text.length < cells + count) {
+                    int size = Math.max(cells + count, text.length * 2);
+                    int[] newText = new int[size];
+                    int[] newStyles = new int[size];
+                    System.arraycopy(text, 0, newText, 0, cells);
+                    System.arraycopy(styles, 0, newStyles, 0, cells);
+                    text = newText;
+                    styles = newStyles;
+                }
+
+                for (int i = 0; i < count; i++) {
+                    text[cells + i] = readVarInt(data);
+                }
+                int i = 0;
+                while (i < count) {
+                    int run = readVarInt(data);
+                    int style = readVarInt(data);
+                    for (int end = i + run; i < end; i++) {
+                        styles[cells + i] = style;
+                    }
+                }
+                cells += count;
+            }
+
+            for (int row = rows; row <= LINES_PER_BLOCK; row++) {
+                rowStarts[row] = cells;
+            }
+        }
+
+        void clear() {
+            blockNumber = -1;
+            for (int row = 0; row <= LINES_PER_BLOCK; row++) {
+                rowStarts[row] = 0;
+            }
+        }
+
+        private int readVarInt(byte[] data) {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = data[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
\ No newline at end of file
@@ -1,15 +1,25 @@
 package com.mobiledev.androidstudio.syntax;
 
-import android.text.Editable;
-
 /**
- * Interface for syntax highlighting implementations
+ * Interface for syntax highlighting implementations.
+ *
+ * A highlighter does not touch the text itself: its tokenizer produces
+ * (start, length, type) tokens per line and the editor turns them into spans.
  */
 public interface SyntaxHighlighter {
     
     /**
-     * Apply syntax highlighting to the text
-     * @param editable The text to highlight
+     * Get the line tokenizer behind this highlighter
+     * @return A tokenizer that is safe to use from a background thread
+     */
+    LineTokenizer getTokenizer();
+    
+    /**
+     * Get the color used for a token type
+     * @param tokenType One of the {@link TokenType} constants
+     * @return The color
      */
-    void highlight(Editable editable);
+    default int getColor(int tokenType) {
+        return TokenType.getDefaultColor(tokenType);
+    }
 }
\ No newline at end of file
@@ -6,27 +6,41 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
-import android.text.Editable;
-import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 
 import com.mobiledev.androidstudio.R;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Activity for the terminal interface.
  */
 public class TerminalActivity extends AppCompatActivity implements TerminalSession.SessionCallback {
 
+    // Items added to the menu of menu_terminal
+    private static final int MENU_SEARCH = 101;
+    private static final int MENU_SEARCH_OLDER = 102;
+    private static final int MENU_SEARCH_NEWER = 103;
+    private static final int MENU_SEARCH_END = 104;
+    private static final int MENU_RECORD = 105;
+    private static final int MENU_OPEN_RECORDING = 106;
+    private static final int MENU_END_REPLAY = 107;
+    private static final int MENU_SEARCH_HISTORY = 108;
+
     private TerminalView terminalView;
     private EditText inputEditText;
     private TextView infoTextView;
@@ -34,6 +48,10 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
     private TerminalSession currentSession;
     private boolean serviceBound = false;
     private String currentWorkingDirectory;
+    private TerminalSearchController searchController;
+    private boolean replaying;
+
+    private CommandHistoryInput commandInput;
 
     /**
      * Service connection for the terminal service
@@ -44,6 +62,7 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
             TerminalService.TerminalBinder binder = (TerminalService.TerminalBinder) service;
             terminalService = binder.getService();
             serviceBound = true;
+            commandInput.setHistory(terminalService.getCommandHistory());
             
             // Get or create a terminal session
             if (terminalService.getSessions().isEmpty()) {
@@ -54,18 +73,24 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
                 currentSession = terminalService.getSessions().get(0);
             }
             
-            // Attach session to view
+            if (currentSession == null) {
+                return;
+            }
+            
+            // Attach session to view; its current screen is shown right away
             terminalView.attachSession(currentSession);
             currentSession.setCallback(TerminalActivity.this);
             
-            // Update information
+            // Update information and the session actions
             updateSessionInfo();
+            invalidateOptionsMenu();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             terminalService = null;
             serviceBound = false;
+            commandInput.setHistory(null);
         }
     };
 
@@ -88,6 +113,9 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
         inputEditText = findViewById(R.id.edit_terminal_input);
         infoTextView = findViewById(R.id.text_terminal_info);
         
+        // Search through the scrollback of the session shown
+        searchController = new TerminalSearchController(terminalView, this::showSearchStatus);
+        
         // Set up the command input
         setupCommandInput();
         
@@ -101,41 +129,25 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
      * Set up the command input field
      */
     private void setupCommandInput() {
-        inputEditText.setOnEditorActionListener((v, actionId, event) -> {
-            executeCommand(inputEditText.getText().toString());
-            inputEditText.setText("");
-            return true;
-        });
-        
-        inputEditText.addTextChangedListener(new TextWatcher() {
-            @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-            }
-
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {
-            }
-
-            @Override
-            public void afterTextChanged(Editable s) {
-                // Implement command history and auto-completion here if desired
-            }
-        });
+        commandInput = new CommandHistoryInput(inputEditText, this::executeCommand);
     }
 
     /**
      * Execute a command in the terminal
      *
      * @param command Command to execute
+     * @return true if the command was sent to the session
      */
-    private void executeCommand(String command) {
+    private boolean executeCommand(String command) {
         if (currentSession != null && command != null && !command.trim().isEmpty()) {
             // Send the command to the terminal session
             currentSession.write(command + "\n");
             
             // Focus the terminal view to show output
             terminalView.requestFocus();
+            return true;
         }
+        return false;
     }
 
     /**
@@ -154,7 +166,18 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
      */
     private void createNewSession() {
         if (terminalService != null) {
-            currentSession = terminalService.createSession();
+            TerminalSession session = terminalService.createSession();
+            if (session == null) {
+                return;
+            }
+            
+            // The previous session keeps running in the service
+            if (currentSession != null) {
+                currentSession.setCallback(null);
+            }
+            searchController.cancel();
+            replaying = false;
+            currentSession = session;
             terminalView.attachSession(currentSession);
             currentSession.setCallback(this);
             updateSessionInfo();
@@ -189,9 +212,128 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
         }
     }
 
+    /**
+     * Ask for text and search the scrollback of the session for it
+     */
+    private void showSearchDialog() {
+        EditText queryEditText = new EditText(this);
+        queryEditText.setSingleLine(true);
+        queryEditText.setHint("Text to find");
+        
+        new AlertDialog.Builder(this)
+                .setTitle("Search output")
+                .setView(queryEditText)
+                .setPositiveButton("Search", (dialog, which) ->
+                        searchController.start(queryEditText.getText().toString()))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Show the state of the search below the title
+     *
+     * @param status The state, or null when no search is active
+     */
+    private void showSearchStatus(String status) {
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            actionBar.setSubtitle(status);
+        }
+        
+        // The step actions are only shown during a search
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Start or stop recording the output of the session
+     */
+    private void toggleRecording() {
+        if (currentSession == null) {
+            return;
+        }
+        
+        if (currentSession.isRecording()) {
+            currentSession.stopRecording();
+            Toast.makeText(this, "Recording saved", Toast.LENGTH_SHORT).show();
+        } else {
+            File file = TerminalRecordings.createFile(this);
+            try {
+                currentSession.startRecording(file);
+                Toast.makeText(this, "Recording to " + file.getName(), Toast.LENGTH_SHORT).show();
+            } catch (IOException e) {
+                Toast.makeText(this, "Cannot record: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            }
+        }
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Let the user pick a recording to play back
+     */
+    private void showRecordingsDialog() {
+        List<File> recordings = TerminalRecordings.list(this);
+        if (recordings.isEmpty()) {
+            Toast.makeText(this, "No recordings yet", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        
+        String[] names = new String[recordings.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = recordings.get(i).getName();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Open recording")
+                .setItems(names, (dialog, which) -> startReplay(recordings.get(which)))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Play back a recording in the terminal view; the session keeps running
+     *
+     * @param file The recording
+     */
+    private void startReplay(File file) {
+        searchController.cancel();
+        try {
+            terminalView.startReplay(file, 1);
+            replaying = true;
+        } catch (IOException e) {
+            Toast.makeText(this, "Cannot open recording: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Show the session again after a replay
+     */
+    private void endReplay() {
+        searchController.cancel();
+        replaying = false;
+        if (currentSession != null) {
+            terminalView.attachSession(currentSession);
+        }
+        invalidateOptionsMenu();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_terminal, menu);
+        menu.add(Menu.NONE, MENU_SEARCH, Menu.NONE, "Search");
+        menu.add(Menu.NONE, MENU_SEARCH_HISTORY, Menu.NONE, "Search command history");
+        if (searchController.isActive()) {
+            menu.add(Menu.NONE, MENU_SEARCH_OLDER, Menu.NONE, "Older match");
+            menu.add(Menu.NONE, MENU_SEARCH_NEWER, Menu.NONE, "Newer match");
+            menu.add(Menu.NONE, MENU_SEARCH_END, Menu.NONE, "End search");
+        }
+        if (currentSession != null) {
+            menu.add(Menu.NONE, MENU_RECORD, Menu.NONE,
+                    currentSession.isRecording() ? "Stop recording" : "Start recording");
+        }
+        menu.add(Menu.NONE, MENU_OPEN_RECORDING, Menu.NONE, "Open recording");
+        if (replaying) {
+            menu.add(Menu.NONE, MENU_END_REPLAY, Menu.NONE, "Back to session");
+        }
         return true;
     }
 
@@ -214,6 +356,30 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
         } else if (id == R.id.action_preferences) {
             // Open terminal preferences (not implemented yet)
             return true;
+        } else if (id == MENU_SEARCH) {
+            showSearchDialog();
+            return true;
+        } else if (id == MENU_SEARCH_HISTORY) {
+            commandInput.showSearchDialog();
+            return true;
+        } else if (id == MENU_SEARCH_OLDER) {
+            searchController.showOlder();
+            return true;
+        } else if (id == MENU_SEARCH_NEWER) {
+            searchController.showNewer();
+            return true;
+        } else if (id == MENU_SEARCH_END) {
+            searchController.cancel();
+            return true;
+        } else if (id == MENU_RECORD) {
+            toggleRecording();
+            return true;
+        } else if (id == MENU_OPEN_RECORDING) {
+            showRecordingsDialog();
+            return true;
+        } else if (id == MENU_END_REPLAY) {
+            endReplay();
+            return true;
         }
         
         return super.onOptionsItemSelected(item);
@@ -221,6 +387,12 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
 
     @Override
     protected void onDestroy() {
+        searchController.cancel();
+        
+        // Detach from the session, which keeps running in the service
+        if (currentSession != null) {
+            currentSession.setCallback(null);
+        }
         if (serviceBound) {
             unbindService(serviceConnection);
             serviceBound = false;
@@ -233,15 +405,20 @@ public class TerminalActivity extends AppCompatActivity implements TerminalSessi
     @Override
     public void onSessionFinished(TerminalSession session) {
         if (session == currentSession) {
-            finish(); // Close the activity when session ends
+            runOnUiThread(() -> {
+                if (terminalService != null) {
+                    terminalService.removeSession(session);
+                }
+                finish(); // Close the activity when session ends
+            });
         }
     }
 
     @Override
     public void onTextChanged(TerminalSession session) {
-        // Update the terminal view when text changes
+        // Called on the session thread; the view redraws on the next frame
         if (session == currentSession) {
-            terminalView.invalidate();
+            terminalView.onScreenUpdated();
         }
     }
 
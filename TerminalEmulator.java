@@ -0,0 +1,1041 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * VT100/xterm escape sequence parser.
+ *
+ * Bytes from the shell are run through a state machine driven by a transition
+ * table, after the DEC ANSI parser described by Paul Williams, and the resulting
+ * actions update a {@link TerminalScreen}. Parameters and string sequences are
+ * collected into fixed buffers, so parsing does not allocate per byte.
+ *
+ * Printable text is UTF-8. ASCII goes straight to the screen; runs containing
+ * other bytes go through a reused decoder, which keeps an incomplete sequence
+ * at the end of one chunk of output until the next chunk completes it.
+ *
+ * The emulator does not depend on Android and can be fed recorded output on the
+ * plain JVM. It is not thread safe; callers synchronize on it.
+ */
+public class TerminalEmulator {
+
+    /**
+     * Receiver for the emulator's replies and notifications
+     */
+    public interface Client {
+        void write(byte[] data, int offset, int length);
+        void onBell();
+        void onTitleChanged(String title);
+        void onWorkingDirectoryChanged(String directory);
+    }
+
+    // Parser states
+    private static final int STATE_GROUND = 0;
+    private static final int STATE_ESCAPE = 1;
+    private static final int STATE_ESCAPE_INTERMEDIATE = 2;
+    private static final int STATE_CSI_ENTRY = 3;
+    private static final int STATE_CSI_PARAM = 4;
+    private static final int STATE_CSI_INTERMEDIATE = 5;
+    private static final int STATE_CSI_IGNORE = 6;
+    private static final int STATE_OSC_STRING = 7;
+    private static final int STATE_STRING_IGNORE = 8;
+    private static final int STATE_COUNT = 9;
+
+    // Parser actions
+    private static final int ACTION_NONE = 0;
+    private static final int ACTION_PRINT = 1;
+    private static final int ACTION_EXECUTE = 2;
+    private static final int ACTION_CLEAR = 3;
+    private static final int ACTION_COLLECT = 4;
+    private static final int ACTION_PARAM = 5;
+    private static final int ACTION_ESC_DISPATCH = 6;
+    private static final int ACTION_CSI_DISPATCH = 7;
+    private static final int ACTION_OSC_START = 8;
+    private static final int ACTION_OSC_PUT = 9;
+
+    // Transitions indexed by state * 256 + byte, holding the action in the high byte
+    // and the next state in the low byte
+    private static final short[] TRANSITIONS = new short[STATE_COUNT * 256];
+
+    static {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            // Stay in the state and ignore the byte unless a rule below says otherwise
+            addTransition(state, 0x00, 0xff, ACTION_NONE, state);
+
+            // C0 controls are executed in the middle of most sequences
+            if (state != STATE_OSC_STRING && state != STATE_STRING_IGNORE) {
+                addTransition(state, 0x00, 0x17, ACTION_EXECUTE, state);
+                addTransition(state, 0x19, 0x19, ACTION_EXECUTE, state);
+                addTransition(state, 0x1c, 0x1f, ACTION_EXECUTE, state);
+            }
+        }
+
+        addTransition(STATE_GROUND, 0x20, 0x7e, ACTION_PRINT, STATE_GROUND);
+        addTransition(STATE_GROUND, 0x80, 0xff, ACTION_PRINT, STATE_GROUND);
+
+        addTransition(STATE_ESCAPE, 0x20, 0x2f, ACTION_COLLECT, STATE_ESCAPE_INTERMEDIATE);
+        addTransition(STATE_ESCAPE, 0x30, 0x7e, ACTION_ESC_DISPATCH, STATE_GROUND);
+        addTransition(STATE_ESCAPE, '[', '[', ACTION_CLEAR, STATE_CSI_ENTRY);
+        addTransition(STATE_ESCAPE, ']', ']', ACTION_OSC_START, STATE_OSC_STRING);
+        addTransition(STATE_ESCAPE, 'P', 'P', ACTION_NONE, STATE_STRING_IGNORE);
+        addTransition(STATE_ESCAPE, 'X', 'X', ACTION_NONE, STATE_STRING_IGNORE);
+        addTransition(STATE_ESCAPE, '^', '_', ACTION_NONE, STATE_STRING_IGNORE);
+
+        addTransition(STATE_ESCAPE_INTERMEDIATE, 0x20, 0x2f, ACTION_COLLECT, STATE_ESCAPE_INTERMEDIATE);
+        addTransition(STATE_ESCAPE_INTERMEDIATE, 0x30, 0x7e, ACTION_ESC_DISPATCH, STATE_GROUND);
+
+        addTransition(STATE_CSI_ENTRY, 0x20, 0x2f, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        addTransition(STATE_CSI_ENTRY, 0x30, 0x3b, ACTION_PARAM, STATE_CSI_PARAM);
+        addTransition(STATE_CSI_ENTRY, 0x3c, 0x3f, ACTION_COLLECT, STATE_CSI_PARAM);
+        addTransition(STATE_CSI_ENTRY, 0x40, 0x7e, ACTION_CSI_DISPATCH, STATE_GROUND);
+
+        addTransition(STATE_CSI_PARAM, 0x20, 0x2f, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        addTransition(STATE_CSI_PARAM, 0x30, 0x3b, ACTION_PARAM, STATE_CSI_PARAM);
+        addTransition(STATE_CSI_PARAM, 0x3c, 0x3f, ACTION_NONE, STATE_CSI_IGNORE);
+        addTransition(STATE_CSI_PARAM, 0x40, 0x7e, ACTION_CSI_DISPATCH, STATE_GROUND);
+
+        addTransition(STATE_CSI_INTERMEDIATE, 0x20, 0x2f, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        addTransition(STATE_CSI_INTERMEDIATE, 0x30, 0x3f, ACTION_NONE, STATE_CSI_IGNORE);
+        addTransition(STATE_CSI_INTERMEDIATE, 0x40, 0x7e, ACTION_CSI_DISPATCH, STATE_GROUND);
+
+        addTransition(STATE_CSI_IGNORE, 0x40, 0x7e, ACTION_NONE, STATE_GROUND);
+
+        // OSC strings end with BEL or ST (ESC \); leaving the state dispatches them
+        addTransition(STATE_OSC_STRING, 0x07, 0x07, ACTION_NONE, STATE_GROUND);
+        addTransition(STATE_OSC_STRING, 0x20, 0xff, ACTION_OSC_PUT, STATE_OSC_STRING);
+
+        // Transitions from anywhere
+        for (int state = 0; state < STATE_COUNT; state++) {
+            addTransition(state, 0x18, 0x18, ACTION_EXECUTE, STATE_GROUND);
+            addTransition(state, 0x1a, 0x1a, ACTION_EXECUTE, STATE_GROUND);
+            addTransition(state, 0x1b, 0x1b, ACTION_CLEAR, STATE_ESCAPE);
+        }
+    }
+
+    private static void addTransition(int state, int fromByte, int toByte, int action, int nextState) {
+        for (int b = fromByte; b <= toByte; b++) {
+            TRANSITIONS[state * 256 + b] = (short) ((action << 8) | nextState);
+        }
+    }
+
+    // DEC special graphics for 0x5f-0x7e, used by programs that draw boxes
+    private static final char[] LINE_DRAWING = {
+            ' ', '\u25c6', '\u2592', '\u2409', '\u240c', '\u240d', '\u240a', '\u00b0',
+            '\u00b1', '\u2424', '\u240b', '\u2518', '\u2510', '\u250c', '\u2514', '\u253c',
+            '\u23ba', '\u23bb', '\u2500', '\u23bc', '\u23bd', '\u251c', '\u2524', '\u2534',
+            '\u252c', '\u2502', '\u2264', '\u2265', '\u03c0', '\u2260', '\u00a3', '\u00b7'
+    };
+
+    private static final int MAX_PARAMS = 16;
+    private static final int MAX_PARAM_VALUE = 9999;
+    private static final int MAX_OSC_LENGTH = 1024;
+    private static final int TAB_WIDTH = 8;
+    private static final int DECODE_BUFFER_SIZE = 1024;
+
+    private final Client client;
+    private final TerminalScreen mainScreen;
+    private TerminalScreen altScreen;
+    private TerminalScreen screen;
+    private int columns;
+    private int rows;
+
+    // Parser state
+    private int state = STATE_GROUND;
+    private final int[] params = new int[MAX_PARAMS];
+    private int paramCount;
+    private int privateMarker;
+    private int intermediate;
+    private final byte[] oscBuffer = new byte[MAX_OSC_LENGTH];
+    private int oscLength;
+
+    // UTF-8 decoding of printable runs; decodeInput keeps an incomplete sequence between calls
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer decodeInput = ByteBuffer.allocate(DECODE_BUFFER_SIZE);
+    private final CharBuffer decodeOutput = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+
+    // Cursor and current attributes
+    private int cursorRow;
+    private int cursorColumn;
+    private boolean wrapPending;
+    private int style = TextStyle.NORMAL;
+    private int lastPrinted = ' ';
+    private int scrollTop;
+    private int scrollBottom;
+
+    // Character sets, true for DEC special graphics
+    private boolean g0LineDrawing;
+    private boolean g1LineDrawing;
+    private boolean shiftedOut;
+
+    // Modes
+    private boolean autoWrap = true;
+    private boolean originMode;
+    private boolean insertMode;
+    private boolean newLineMode;
+    private boolean cursorVisible = true;
+    private boolean applicationCursorKeys;
+    private boolean applicationKeypad;
+    private boolean bracketedPaste;
+
+    // Saved cursor (DECSC)
+    private int savedRow;
+    private int savedColumn;
+    private int savedStyle = TextStyle.NORMAL;
+    private boolean savedOriginMode;
+    private boolean savedG0LineDrawing;
+
+    private String title;
+    private String workingDirectory;
+
+    /**
+     * Create a new emulator
+     *
+     * @param columns Number of columns
+     * @param rows Number of rows
+     * @param transcriptRows Number of scrollback rows kept for the main screen
+     * @param client Receiver for replies to the program and notifications
+     */
+    public TerminalEmulator(int columns, int rows, int transcriptRows, Client client) {
+        this.columns = columns;
+        this.rows = rows;
+        this.client = client;
+        mainScreen = new TerminalScreen(columns, rows, transcriptRows);
+        screen = mainScreen;
+        scrollBottom = rows;
+    }
+
+    /**
+     * Process output of the program
+     *
+     * @param data Buffer holding the output
+     * @param offset Start of the output in the buffer
+     * @param length Number of bytes
+     */
+    public void append(byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = data[i] & 0xff;
+            int transition = TRANSITIONS[(state << 8) | b];
+            int nextState = transition & 0xff;
+
+            if (transition >>> 8 == ACTION_PRINT && (b >= 0x80 || decodeInput.position() > 0)) {
+                i = decodeRun(data, i, end) - 1;
+                continue;
+            }
+            if (decodeInput.position() > 0) {
+                // A sequence cut short by a control character
+                finishDecoding();
+            }
+
+            if (state == STATE_OSC_STRING && nextState != STATE_OSC_STRING) {
+                dispatchOsc();
+            }
+            state = nextState;
+
+            switch (transition >>> 8) {
+                case ACTION_PRINT:
+                    print(b);
+                    break;
+                case ACTION_EXECUTE:
+                    execute(b);
+                    break;
+                case ACTION_CLEAR:
+                    clearSequence();
+                    break;
+                case ACTION_COLLECT:
+                    if (b >= 0x3c) {
+                        privateMarker = b;
+                    } else {
+                        intermediate = b;
+                    }
+                    break;
+                case ACTION_PARAM:
+                    addParamByte(b);
+                    break;
+                case ACTION_ESC_DISPATCH:
+                    dispatchEscape(b);
+                    break;
+                case ACTION_CSI_DISPATCH:
+                    dispatchCsi(b);
+                    break;
+                case ACTION_OSC_START:
+                    oscLength = 0;
+                    break;
+                case ACTION_OSC_PUT:
+                    if (oscLength < MAX_OSC_LENGTH) {
+                        oscBuffer[oscLength++] = (byte) b;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Decode and print a run of printable bytes
+     *
+     * @param data Buffer holding the output
+     * @param start Start of the run
+     * @param end End of the output
+     * @return End of the run
+     */
+    private int decodeRun(byte[] data, int start, int end) {
+        int runEnd = start;
+        while (runEnd < end && (data[runEnd] & 0xff) >= 0x20 && data[runEnd] != 0x7f) {
+            runEnd++;
+        }
+
+        int position = start;
+        while (position < runEnd) {
+            int count = Math.min(decodeInput.remaining(), runEnd - position);
+            decodeInput.put(data, position, count);
+            position += count;
+
+            decodeInput.flip();
+            decoder.decode(decodeInput, decodeOutput, false);
+            printDecoded();
+            decodeInput.compact();
+        }
+        return runEnd;
+    }
+
+    /**
+     * Print a dangling incomplete sequence as a replacement character and reset the decoder
+     */
+    private void finishDecoding() {
+        decodeInput.flip();
+        decoder.decode(decodeInput, decodeOutput, true);
+        decoder.flush(decodeOutput);
+        printDecoded();
+        decoder.reset();
+        decodeInput.clear();
+    }
+
+    private void printDecoded() {
+        decodeOutput.flip();
+        while (decodeOutput.hasRemaining()) {
+            char c = decodeOutput.get();
+            // The decoder never splits a surrogate pair between calls
+            if (Character.isHighSurrogate(c) && decodeOutput.hasRemaining()) {
+                print(Character.toCodePoint(c, decodeOutput.get()));
+            } else {
+                print(c);
+            }
+        }
+        decodeOutput.clear();
+    }
+
+    private void clearSequence() {
+        for (int i = 0; i < MAX_PARAMS; i++) {
+            params[i] = 0;
+        }
+        paramCount = 0;
+        privateMarker = 0;
+        intermediate = 0;
+    }
+
+    private void addParamByte(int b) {
+        if (paramCount == 0) {
+            paramCount = 1;
+        }
+
+        if (b == ';' || b == ':') {
+            if (paramCount < MAX_PARAMS) {
+                paramCount++;
+            }
+        } else {
+            int index = paramCount - 1;
+            params[index] = Math.min(params[index] * 10 + (b - '0'), MAX_PARAM_VALUE);
+        }
+    }
+
+    /**
+     * Get a parameter of the current sequence
+     *
+     * @param index Parameter index
+     * @param defaultValue Value used when the parameter is missing or zero
+     * @return The parameter value
+     */
+    private int getParam(int index, int defaultValue) {
+        return index < paramCount && params[index] != 0 ? params[index] : defaultValue;
+    }
+
+    private void print(int codePoint) {
+        boolean lineDrawing = shiftedOut ? g1LineDrawing : g0LineDrawing;
+        if (lineDrawing && codePoint >= 0x5f && codePoint <= 0x7e) {
+            codePoint = LINE_DRAWING[codePoint - 0x5f];
+        }
+
+        if (wrapPending) {
+            cursorColumn = 0;
+            lineFeed();
+        }
+
+        if (insertMode) {
+            screen.insertCells(cursorRow, cursorColumn, 1, style);
+        }
+        screen.setChar(cursorRow, cursorColumn, codePoint, style);
+        lastPrinted = codePoint;
+
+        if (cursorColumn == columns - 1) {
+            wrapPending = autoWrap;
+        } else {
+            cursorColumn++;
+        }
+    }
+
+    private void execute(int b) {
+        switch (b) {
+            case 0x07:
+                client.onBell();
+                break;
+            case 0x08:
+                if (cursorColumn > 0) {
+                    cursorColumn--;
+                }
+                wrapPending = false;
+                break;
+            case 0x09:
+                cursorColumn = Math.min(columns - 1, (cursorColumn / TAB_WIDTH + 1) * TAB_WIDTH);
+                break;
+            case 0x0a:
+            case 0x0b:
+            case 0x0c:
+                if (newLineMode) {
+                    cursorColumn = 0;
+                }
+                lineFeed();
+                break;
+            case 0x0d:
+                cursorColumn = 0;
+                wrapPending = false;
+                break;
+            case 0x0e:
+                shiftedOut = true;
+                break;
+            case 0x0f:
+                shiftedOut = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void lineFeed() {
+        wrapPending = false;
+        if (cursorRow == scrollBottom - 1) {
+            screen.scrollUp(scrollTop, scrollBottom, 1, getEraseStyle());
+        } else if (cursorRow < rows - 1) {
+            cursorRow++;
+        }
+    }
+
+    private void reverseIndex() {
+        wrapPending = false;
+        if (cursorRow == scrollTop) {
+            screen.scrollDown(scrollTop, scrollBottom, 1, getEraseStyle());
+        } else if (cursorRow > 0) {
+            cursorRow--;
+        }
+    }
+
+    /**
+     * Get the style of erased cells: the current background color without effects
+     */
+    private int getEraseStyle() {
+        return TextStyle.encode(TextStyle.COLOR_INDEX_FOREGROUND, TextStyle.getBackColor(style), 0);
+    }
+
+    private void dispatchEscape(int b) {
+        if (intermediate == '(' || intermediate == ')') {
+            // Character set designation: '0' is DEC special graphics, anything else text
+            boolean lineDrawing = b == '0';
+            if (intermediate == '(') {
+                g0LineDrawing = lineDrawing;
+            } else {
+                g1LineDrawing = lineDrawing;
+            }
+            return;
+        }
+        if (intermediate != 0) {
+            return;
+        }
+
+        switch (b) {
+            case '7':
+                saveCursor();
+                break;
+            case '8':
+                restoreCursor();
+                break;
+            case 'D':
+                lineFeed();
+                break;
+            case 'E':
+                cursorColumn = 0;
+                lineFeed();
+                break;
+            case 'M':
+                reverseIndex();
+                break;
+            case 'c':
+                reset();
+                break;
+            case '=':
+                applicationKeypad = true;
+                break;
+            case '>':
+                applicationKeypad = false;
+                break;
+            default:
+                // Includes the ST that ends OSC and ignored strings
+                break;
+        }
+    }
+
+    private void dispatchCsi(int b) {
+        if (privateMarker == '?') {
+            if (b == 'h' || b == 'l') {
+                for (int i = 0; i < Math.max(1, paramCount); i++) {
+                    setPrivateMode(params[i], b == 'h');
+                }
+            }
+            return;
+        }
+        if (privateMarker != 0 || intermediate != 0) {
+            // Secondary device attributes, cursor style and other sequences without screen effects
+            return;
+        }
+
+        switch (b) {
+            case '@':
+                screen.insertCells(cursorRow, cursorColumn, getParam(0, 1), getEraseStyle());
+                wrapPending = false;
+                break;
+            case 'A':
+                setCursor(Math.max(cursorRow - getParam(0, 1), cursorRow >= scrollTop ? scrollTop : 0), cursorColumn);
+                break;
+            case 'B':
+            case 'e':
+                setCursor(Math.min(cursorRow + getParam(0, 1), cursorRow < scrollBottom ? scrollBottom - 1 : rows - 1), cursorColumn);
+                break;
+            case 'C':
+            case 'a':
+                setCursor(cursorRow, cursorColumn + getParam(0, 1));
+                break;
+            case 'D':
+                setCursor(cursorRow, cursorColumn - getParam(0, 1));
+                break;
+            case 'E':
+                setCursor(Math.min(cursorRow + getParam(0, 1), scrollBottom - 1), 0);
+                break;
+            case 'F':
+                setCursor(Math.max(cursorRow - getParam(0, 1), scrollTop), 0);
+                break;
+            case 'G':
+            case '`':
+                setCursor(cursorRow, getParam(0, 1) - 1);
+                break;
+            case 'H':
+            case 'f':
+                setCursorAbsolute(getParam(0, 1) - 1, getParam(1, 1) - 1);
+                break;
+            case 'J':
+                eraseInDisplay(getParam(0, 0));
+                break;
+            case 'K':
+                eraseInLine(getParam(0, 0));
+                break;
+            case 'L':
+                if (cursorRow >= scrollTop && cursorRow < scrollBottom) {
+                    screen.scrollDown(cursorRow, scrollBottom, getParam(0, 1), getEraseStyle());
+                    cursorColumn = 0;
+                    wrapPending = false;
+                }
+                break;
+            case 'M':
+                if (cursorRow >= scrollTop && cursorRow < scrollBottom) {
+                    screen.scrollUp(cursorRow, scrollBottom, getParam(0, 1), getEraseStyle());
+                    cursorColumn = 0;
+                    wrapPending = false;
+                }
+                break;
+            case 'P':
+                screen.deleteCells(cursorRow, cursorColumn, getParam(0, 1), getEraseStyle());
+                wrapPending = false;
+                break;
+            case 'S':
+                screen.scrollUp(scrollTop, scrollBottom, getParam(0, 1), getEraseStyle());
+                break;
+            case 'T':
+                screen.scrollDown(scrollTop, scrollBottom, getParam(0, 1), getEraseStyle());
+                break;
+            case 'X':
+                screen.erase(cursorRow, cursorColumn, Math.min(columns, cursorColumn + getParam(0, 1)), getEraseStyle());
+                wrapPending = false;
+                break;
+            case 'b':
+                for (int i = getParam(0, 1); i > 0; i--) {
+                    print(lastPrinted);
+                }
+                break;
+            case 'c':
+                reply("\033[?1;2c");
+                break;
+            case 'd':
+                setCursorAbsolute(getParam(0, 1) - 1, cursorColumn);
+                break;
+            case 'h':
+            case 'l':
+                for (int i = 0; i < paramCount; i++) {
+                    if (params[i] == 4) {
+                        insertMode = b == 'h';
+                    } else if (params[i] == 20) {
+                        newLineMode = b == 'h';
+                    }
+                }
+                break;
+            case 'm':
+                selectGraphicRendition();
+                break;
+            case 'n':
+                if (getParam(0, 0) == 5) {
+                    reply("\033[0n");
+                } else if (getParam(0, 0) == 6) {
+                    int row = originMode ? cursorRow - scrollTop : cursorRow;
+                    reply("\033[" + (row + 1) + ";" + (cursorColumn + 1) + "R");
+                }
+                break;
+            case 'r':
+                setScrollRegion(getParam(0, 1) - 1, getParam(1, rows));
+                break;
+            case 's':
+                saveCursor();
+                break;
+            case 'u':
+                restoreCursor();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void setPrivateMode(int mode, boolean enabled) {
+        switch (mode) {
+            case 1:
+                applicationCursorKeys = enabled;
+                break;
+            case 6:
+                originMode = enabled;
+                setCursorAbsolute(0, 0);
+                break;
+            case 7:
+                autoWrap = enabled;
+                break;
+            case 25:
+                cursorVisible = enabled;
+                break;
+            case 47:
+            case 1047:
+                useAlternateScreen(enabled);
+                break;
+            case 1048:
+                if (enabled) {
+                    saveCursor();
+                } else {
+                    restoreCursor();
+                }
+                break;
+            case 1049:
+                if (enabled) {
+                    saveCursor();
+                    useAlternateScreen(true);
+                    altScreen.eraseRows(0, rows, TextStyle.NORMAL);
+                } else {
+                    useAlternateScreen(false);
+                    restoreCursor();
+                }
+                break;
+            case 2004:
+                bracketedPaste = enabled;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void useAlternateScreen(boolean alternate) {
+        if (alternate) {
+            if (altScreen == null || altScreen.getColumns() != columns || altScreen.getRows() != rows) {
+                altScreen = new TerminalScreen(columns, rows);
+            }
+            screen = altScreen;
+        } else {
+            screen = mainScreen;
+        }
+    }
+
+    private void selectGraphicRendition() {
+        int foreColor = TextStyle.getForeColor(style);
+        int backColor = TextStyle.getBackColor(style);
+        int effect = TextStyle.getEffect(style);
+
+        for (int i = 0; i < Math.max(1, paramCount); i++) {
+            int code = params[i];
+            if (code == 0) {
+                foreColor = TextStyle.COLOR_INDEX_FOREGROUND;
+                backColor = TextStyle.COLOR_INDEX_BACKGROUND;
+                effect = 0;
+            } else if (code == 1) {
+                effect |= TextStyle.EFFECT_BOLD;
+            } else if (code == 2) {
+                effect |= TextStyle.EFFECT_DIM;
+            } else if (code == 3) {
+                effect |= TextStyle.EFFECT_ITALIC;
+            } else if (code == 4) {
+                effect |= TextStyle.EFFECT_UNDERLINE;
+            } else if (code == 5) {
+                effect |= TextStyle.EFFECT_BLINK;
+            } else if (code == 7) {
+                effect |= TextStyle.EFFECT_INVERSE;
+            } else if (code == 8) {
+                effect |= TextStyle.EFFECT_INVISIBLE;
+            } else if (code == 9) {
+                effect |= TextStyle.EFFECT_STRIKETHROUGH;
+            } else if (code == 22) {
+                effect &= ~(TextStyle.EFFECT_BOLD | TextStyle.EFFECT_DIM);
+            } else if (code == 23) {
+                effect &= ~TextStyle.EFFECT_ITALIC;
+            } else if (code == 24) {
+                effect &= ~TextStyle.EFFECT_UNDERLINE;
+            } else if (code == 25) {
+                effect &= ~TextStyle.EFFECT_BLINK;
+            } else if (code == 27) {
+                effect &= ~TextStyle.EFFECT_INVERSE;
+            } else if (code == 28) {
+                effect &= ~TextStyle.EFFECT_INVISIBLE;
+            } else if (code == 29) {
+                effect &= ~TextStyle.EFFECT_STRIKETHROUGH;
+            } else if (code >= 30 && code <= 37) {
+                foreColor = code - 30;
+            } else if (code == 39) {
+                foreColor = TextStyle.COLOR_INDEX_FOREGROUND;
+            } else if (code >= 40 && code <= 47) {
+                backColor = code - 40;
+            } else if (code == 49) {
+                backColor = TextStyle.COLOR_INDEX_BACKGROUND;
+            } else if (code >= 90 && code <= 97) {
+                foreColor = code - 90 + 8;
+            } else if (code >= 100 && code <= 107) {
+                backColor = code - 100 + 8;
+            } else if (code == 38 || code == 48) {
+                // Extended color: 5;index or 2;red;green;blue
+                int color = -1;
+                if (i + 2 < paramCount && params[i + 1] == 5) {
+                    color = Math.min(params[i + 2], 255);
+                    i += 2;
+                } else if (i + 4 < paramCount && params[i + 1] == 2) {
+                    color = TextStyle.getClosestColorIndex(Math.min(params[i + 2], 255),
+                            Math.min(params[i + 3], 255), Math.min(params[i + 4], 255));
+                    i += 4;
+                }
+
+                if (color >= 0 && code == 38) {
+                    foreColor = color;
+                } else if (color >= 0) {
+                    backColor = color;
+                }
+            }
+        }
+
+        style = TextStyle.encode(foreColor, backColor, effect);
+    }
+
+    private void eraseInDisplay(int mode) {
+        int eraseStyle = getEraseStyle();
+        if (mode == 0) {
+            screen.erase(cursorRow, cursorColumn, columns, eraseStyle);
+            screen.eraseRows(cursorRow + 1, rows, eraseStyle);
+        } else if (mode == 1) {
+            screen.eraseRows(0, cursorRow, eraseStyle);
+            screen.erase(cursorRow, 0, cursorColumn + 1, eraseStyle);
+        } else if (mode == 2) {
+            screen.eraseRows(0, rows, eraseStyle);
+        } else if (mode == 3) {
+            screen.clearTranscript();
+        }
+        wrapPending = false;
+    }
+
+    private void eraseInLine(int mode) {
+        int eraseStyle = getEraseStyle();
+        if (mode == 0) {
+            screen.erase(cursorRow, cursorColumn, columns, eraseStyle);
+        } else if (mode == 1) {
+            screen.erase(cursorRow, 0, cursorColumn + 1, eraseStyle);
+        } else if (mode == 2) {
+            screen.erase(cursorRow, 0, columns, eraseStyle);
+        }
+        wrapPending = false;
+    }
+
+    private void setScrollRegion(int top, int bottom) {
+        bottom = Math.min(bottom, rows);
+        if (top >= 0 && bottom - top >= 2) {
+            scrollTop = top;
+            scrollBottom = bottom;
+            setCursorAbsolute(0, 0);
+        }
+    }
+
+    /**
+     * Move the cursor, keeping it on the screen
+     */
+    private void setCursor(int row, int column) {
+        cursorRow = Math.max(0, Math.min(row, rows - 1));
+        cursorColumn = Math.max(0, Math.min(column, columns - 1));
+        wrapPending = false;
+    }
+
+    /**
+     * Move the cursor to a position given by the program, relative to the scroll
+     * region in origin mode
+     */
+    private void setCursorAbsolute(int row, int column) {
+        if (originMode) {
+            setCursor(Math.min(row + scrollTop, scrollBottom - 1), column);
+        } else {
+            setCursor(row, column);
+        }
+    }
+
+    private void saveCursor() {
+        savedRow = cursorRow;
+        savedColumn = cursorColumn;
+        savedStyle = style;
+        savedOriginMode = originMode;
+        savedG0LineDrawing = g0LineDrawing;
+    }
+
+    private void restoreCursor() {
+        style = savedStyle;
+        originMode = savedOriginMode;
+        g0LineDrawing = savedG0LineDrawing;
+        setCursor(savedRow, savedColumn);
+    }
+
+    private void dispatchOsc() {
+        // Ps ; Pt
+        int separator = 0;
+        int command = 0;
+        while (separator < oscLength && oscBuffer[separator] >= '0' && oscBuffer[separator] <= '9') {
+            command = command * 10 + (oscBuffer[separator] - '0');
+            separator++;
+        }
+        if (separator == 0 || separator >= oscLength || oscBuffer[separator] != ';') {
+            return;
+        }
+
+        String text = new String(oscBuffer, separator + 1, oscLength - separator - 1, StandardCharsets.UTF_8);
+        if (command == 0 || command == 2) {
+            title = text;
+            client.onTitleChanged(text);
+        } else if (command == 7) {
+            // Current directory reported by the shell's prompt, as file://host/path
+            String directory = getFileUrlPath(text);
+            if (directory != null && !directory.equals(workingDirectory)) {
+                workingDirectory = directory;
+                client.onWorkingDirectoryChanged(directory);
+            }
+        }
+    }
+
+    /**
+     * Get the decoded path of a file URL, ignoring the host
+     *
+     * @return The path, or null if the text is not a file URL
+     */
+    static String getFileUrlPath(String url) {
+        if (!url.startsWith("file://")) {
+            return null;
+        }
+        int pathStart = url.indexOf('/', "file://".length());
+        if (pathStart < 0) {
+            return null;
+        }
+
+        // Percent escapes stand for bytes of UTF-8
+        byte[] bytes = new byte[url.length() - pathStart];
+        int length = 0;
+        for (int i = pathStart; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '%' && i + 2 < url.length()
+                    && Character.digit(url.charAt(i + 1), 16) >= 0 && Character.digit(url.charAt(i + 2), 16) >= 0) {
+                bytes[length++] = (byte) (Character.digit(url.charAt(i + 1), 16) * 16
+                        + Character.digit(url.charAt(i + 2), 16));
+                i += 2;
+            } else if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else {
+                return url.substring(pathStart);
+            }
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void reply(String response) {
+        byte[] data = response.getBytes(StandardCharsets.US_ASCII);
+        client.write(data, 0, data.length);
+    }
+
+    /**
+     * Reset the terminal to its initial state, as ESC c does
+     */
+    public void reset() {
+        state = STATE_GROUND;
+        decoder.reset();
+        decodeInput.clear();
+        style = TextStyle.NORMAL;
+        cursorRow = 0;
+        cursorColumn = 0;
+        wrapPending = false;
+        scrollTop = 0;
+        scrollBottom = rows;
+        g0LineDrawing = false;
+        g1LineDrawing = false;
+        shiftedOut = false;
+        autoWrap = true;
+        originMode = false;
+        insertMode = false;
+        newLineMode = false;
+        cursorVisible = true;
+        applicationCursorKeys = false;
+        applicationKeypad = false;
+        bracketedPaste = false;
+        screen = mainScreen;
+        mainScreen.eraseRows(0, rows, TextStyle.NORMAL);
+    }
+
+    /**
+     * Change the size of the terminal, keeping the cursor row on screen
+     *
+     * @param newColumns New number of columns
+     * @param newRows New number of rows
+     */
+    public void resize(int newColumns, int newRows) {
+        if (newColumns == columns && newRows == rows) {
+            return;
+        }
+
+        int shift = Math.max(0, cursorRow - newRows + 1);
+        mainScreen.resize(newColumns, newRows, screen == mainScreen ? shift : 0);
+        if (altScreen != null) {
+            altScreen.resize(newColumns, newRows, screen == altScreen ? shift : 0);
+        }
+
+        columns = newColumns;
+        rows = newRows;
+        scrollTop = 0;
+        scrollBottom = newRows;
+        setCursor(cursorRow - shift, cursorColumn);
+    }
+
+    /**
+     * Get the screen being shown, which is the alternate screen while a full
+     * screen program such as vim is running. Only the main screen has a transcript.
+     *
+     * @return The screen
+     */
+    public TerminalScreen getScreen() {
+        return screen;
+    }
+
+    /**
+     * Get the main screen, which holds the scrollback also while the alternate
+     * screen is shown
+     *
+     * @return The main screen
+     */
+    public TerminalScreen getMainScreen() {
+        return mainScreen;
+    }
+
+    /**
+     * Keep scrollback that falls out of the main screen's transcript in an archive
+     *
+     * @param archive Archive for older rows, or null to drop them
+     */
+    public void setScrollbackArchive(ScrollbackArchive archive) {
+        mainScreen.setArchive(archive);
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getCursorRow() {
+        return cursorRow;
+    }
+
+    public int getCursorColumn() {
+        return cursorColumn;
+    }
+
+    /**
+     * Set whether a line feed also returns the cursor to the first column (LNM),
+     * for output that was not passed through a terminal driver
+     *
+     * @param newLineMode true to treat LF as CR LF
+     */
+    public void setNewLineMode(boolean newLineMode) {
+        this.newLineMode = newLineMode;
+    }
+
+    public boolean isCursorVisible() {
+        return cursorVisible;
+    }
+
+    public boolean isApplicationCursorKeys() {
+        return applicationCursorKeys;
+    }
+
+    public boolean isApplicationKeypad() {
+        return applicationKeypad;
+    }
+
+    public boolean isBracketedPaste() {
+        return bracketedPaste;
+    }
+
+    public boolean isAlternateScreen() {
+        return screen != mainScreen;
+    }
+
+    /**
+     * Get the window title set by the program
+     *
+     * @return The title, or null if none was set
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get the working directory last reported by the shell with OSC 7
+     *
+     * @return The directory, or null if none was reported
+     */
+    public String getWorkingDirectory() {
+        return workingDirectory;
+    }
+}
\ No newline at end of file
@@ -1,12 +1,17 @@
 package com.mobiledev.androidstudio.terminal;
 
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.util.Log;
+import android.os.IBinder;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.TextView;
+import android.view.inputmethod.EditorInfo;
+import android.widget.EditText;
+import android.widget.LinearLayout;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -15,30 +20,82 @@ import androidx.fragment.app.Fragment;
 import com.mobiledev.androidstudio.MobileDevApplication;
 import com.mobiledev.androidstudio.utils.PreRootManager;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
- * Terminal Fragment for handling terminal sessions
+ * Terminal Fragment for showing a terminal session.
+ *
+ * The session itself is owned by {@link TerminalService} and keeps running
+ * when the fragment is destroyed, for example on rotation. A new fragment for
+ * the same session ID attaches to it again and shows its current screen.
  */
 public class TerminalFragment extends Fragment {
-    private static final String TAG = "TerminalFragment";
     private static final String ARG_SESSION_ID = "session_id";
     
     private String sessionId;
-    private TextView terminalOutput;
-    private Process terminalProcess;
-    private BufferedWriter terminalInput;
-    private ExecutorService executorService;
+    private TerminalView terminalOutput;
+    private CommandHistoryInput commandInput;
+    private TerminalService terminalService;
+    private TerminalSession session;
+    private boolean serviceBound;
+    private boolean replaying;
     private TerminalSessionCallback callback;
     
+    /**
+     * Connection to the service owning the session
+     */
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            terminalService = ((TerminalService.TerminalBinder) service).getService();
+            if (commandInput != null) {
+                commandInput.setHistory(terminalService.getCommandHistory());
+            }
+            attachTerminalSession();
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            terminalService = null;
+            if (commandInput != null) {
+                commandInput.setHistory(null);
+            }
+        }
+    };
+    
+    /**
+     * Forwards events of the session to the view and the activity, while attached
+     */
+    private final TerminalSession.SessionCallback sessionCallback = new TerminalSession.SessionCallback() {
+        @Override
+        public void onSessionFinished(TerminalSession finishedSession) {
+            MobileDevApplication.getInstance().runOnUiThread(() -> {
+                appendToTerminal("\nTerminal session ended");
+                if (callback != null) {
+                    callback.onSessionClosed(sessionId);
+                }
+            });
+        }
+        
+        @Override
+        public void onTextChanged(TerminalSession changedSession) {
+            // Called on the session thread; the view redraws on the next frame
+            TerminalView view = terminalOutput;
+            if (view != null) {
+                view.onScreenUpdated();
+            }
+        }
+        
+        @Override
+        public void onBell(TerminalSession bellSession) {
+        }
+        
+        @Override
+        public void onDirectoryChanged(TerminalSession changedSession, String newDirectory) {
+        }
+    };
+    
     public static TerminalFragment newInstance(String sessionId) {
         TerminalFragment fragment = new TerminalFragment();
         Bundle args = new Bundle();
@@ -53,26 +110,55 @@ public class TerminalFragment extends Fragment {
         if (getArguments() != null) {
             sessionId = getArguments().getString(ARG_SESSION_ID);
         }
-        
-        executorService = Executors.newFixedThreadPool(2);
     }
     
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-        // Create a TextView for now (in a real app, this would be a custom terminal view)
-        terminalOutput = new TextView(getContext());
-        terminalOutput.setTextColor(0xFFFFFFFF); // White text
-        terminalOutput.setBackgroundColor(0xFF000000); // Black background
-        terminalOutput.setTextSize(14);
-        return terminalOutput;
+        Context context = requireContext();
+        terminalOutput = new TerminalView(context);
+        
+        // Commands are typed below the output, with the history shared by all tabs
+        EditText inputEditText = new EditText(context);
+        inputEditText.setSingleLine(true);
+        inputEditText.setImeOptions(EditorInfo.IME_ACTION_SEND);
+        inputEditText.setHint("Command");
+        commandInput = new CommandHistoryInput(inputEditText, this::sendCommand);
+        
+        LinearLayout layout = new LinearLayout(context);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(terminalOutput, new LinearLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, 0, 1));
+        layout.addView(inputEditText, new LinearLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        return layout;
     }
     
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
         
-        // Start terminal session
-        startTerminalSession();
+        // Attach to the session once the service is bound
+        Context context = requireContext();
+        Intent intent = new Intent(context, TerminalService.class);
+        context.startService(intent);
+        serviceBound = context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+    
+    @Override
+    public void onDestroyView() {
+        // Detach only; the session keeps running in the service
+        if (session != null) {
+            session.setCallback(null);
+            session = null;
+        }
+        if (serviceBound) {
+            requireContext().unbindService(serviceConnection);
+            serviceBound = false;
+        }
+        terminalService = null;
+        terminalOutput = null;
+        commandInput = null;
+        super.onDestroyView();
     }
     
     @Override
@@ -91,18 +177,71 @@ public class TerminalFragment extends Fragment {
         callback = null;
     }
     
-    @Override
-    public void onDestroy() {
-        stopTerminalSession();
-        executorService.shutdown();
-        super.onDestroy();
+    /**
+     * Get the ID of the session shown by this fragment
+     * @return The session ID
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+    
+    /**
+     * Get the view showing the session
+     * @return The view, or null while the fragment has none
+     */
+    public TerminalView getTerminalView() {
+        return terminalOutput;
+    }
+    
+    /**
+     * Get the session shown by this fragment
+     * @return The session, or null while none is attached
+     */
+    public TerminalSession getSession() {
+        return session;
+    }
+    
+    /**
+     * Play back a recording in place of the session, which keeps running
+     * @param file Recording in asciicast v2 format
+     * @throws IOException If the recording cannot be read
+     */
+    public void startReplay(File file) throws IOException {
+        if (terminalOutput != null) {
+            terminalOutput.startReplay(file, 1);
+            replaying = true;
+        }
+    }
+    
+    /**
+     * Show the session again after a replay
+     */
+    public void stopReplay() {
+        replaying = false;
+        if (terminalOutput != null && session != null) {
+            terminalOutput.attachSession(session);
+        }
+    }
+    
+    /**
+     * Check if a recording is shown instead of the session
+     * @return true while replaying
+     */
+    public boolean isReplaying() {
+        return replaying;
     }
     
     /**
-     * Start the terminal session
+     * Show the session with this fragment's ID, starting it if the service has none
      */
-    private void startTerminalSession() {
-        try {
+    private void attachTerminalSession() {
+        if (terminalOutput == null || terminalService == null) {
+            return;
+        }
+        
+        session = terminalService.getSession(sessionId);
+        boolean started = false;
+        if (session == null) {
             PreRootManager prootManager = MobileDevApplication.getInstance().getPreRootManager();
             
             // Check if PRoot environment is ready
@@ -113,68 +252,46 @@ public class TerminalFragment extends Fragment {
             
             // For simplicity, we'll use a basic shell process
             // In a real implementation, this would use the PRoot environment
-            ProcessBuilder processBuilder = new ProcessBuilder("/system/bin/sh");
-            processBuilder.redirectErrorStream(true);
-            
-            terminalProcess = processBuilder.start();
-            
-            // Get process streams
-            InputStream stdout = terminalProcess.getInputStream();
-            OutputStream stdin = terminalProcess.getOutputStream();
-            
-            // Create buffered writers for input
-            terminalInput = new BufferedWriter(new OutputStreamWriter(stdin));
-            
-            // Start output reading thread
-            executorService.execute(() -> {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(stdout));
-                String line;
-                
-                try {
-                    while ((line = reader.readLine()) != null) {
-                        final String output = line;
-                        MobileDevApplication.getInstance().runOnUiThread(() -> {
-                            appendToTerminal(output);
-                        });
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Error reading terminal output", e);
-                }
-                
-                // Terminal session ended
-                MobileDevApplication.getInstance().runOnUiThread(() -> {
-                    appendToTerminal("\nTerminal session ended");
-                    if (callback != null) {
-                        callback.onSessionClosed(sessionId);
-                    }
-                });
-            });
-            
-            // Notify activity that session started
-            if (callback != null) {
-                callback.onSessionStarted(sessionId);
+            session = terminalService.createSession(sessionId);
+            if (session == null) {
+                appendToTerminal("Error starting terminal");
+                return;
             }
-            
-        } catch (IOException e) {
-            Log.e(TAG, "Error starting terminal session", e);
-            appendToTerminal("Error starting terminal: " + e.getMessage());
+            started = true;
+        }
+        
+        // The session's screen is drawn as it is now, output is not replayed
+        terminalOutput.attachSession(session);
+        session.setCallback(sessionCallback);
+        
+        // Notify activity that session started
+        if (started && callback != null) {
+            callback.onSessionStarted(sessionId);
+        }
+        if (!session.isAlive()) {
+            sessionCallback.onSessionFinished(session);
         }
     }
     
     /**
-     * Send input to the terminal
-     * @param input The input to send
+     * Run a command typed in the input field
+     * @param command The command
+     * @return true if the command was sent to the session
      */
-    public void sendInput(String input) {
-        if (terminalInput != null) {
-            executorService.execute(() -> {
-                try {
-                    terminalInput.write(input);
-                    terminalInput.flush();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error writing to terminal", e);
-                }
-            });
+    private boolean sendCommand(String command) {
+        if (session == null || command.trim().isEmpty()) {
+            return false;
+        }
+        session.write(command + "\n");
+        return true;
+    }
+    
+    /**
+     * Let the user pick a command from the history to put in the input field
+     */
+    public void showHistorySearch() {
+        if (commandInput != null) {
+            commandInput.showSearchDialog();
         }
     }
     
@@ -183,16 +300,21 @@ public class TerminalFragment extends Fragment {
      * @param text The text to append
      */
     private void appendToTerminal(String text) {
-        terminalOutput.append(text + "\n");
+        if (terminalOutput != null) {
+            terminalOutput.addText(text + "\n");
+        }
     }
     
     /**
-     * Stop the terminal session
+     * End the session for good, when its tab is closed
      */
-    private void stopTerminalSession() {
-        if (terminalProcess != null) {
-            terminalProcess.destroy();
-            terminalProcess = null;
+    public void closeSession() {
+        if (session != null) {
+            session.setCallback(null);
+            session = null;
+        }
+        if (terminalService != null) {
+            terminalService.removeSession(sessionId);
         }
     }
     
@@ -203,4 +325,4 @@ public class TerminalFragment extends Fragment {
         void onSessionStarted(String sessionId);
         void onSessionClosed(String sessionId);
     }
-}
\ No newline at end of file
+}
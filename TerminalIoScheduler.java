@@ -0,0 +1,504 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared scheduler for the input and output of all terminal sessions.
+ *
+ * One poller thread waits for output on every pseudo-terminal at once, and a
+ * small fixed pool of workers does the reading, parsing and writing. Each
+ * session has its own queues of read and write work, and a session runs one
+ * task per turn before going to the back of the pool's queue, so a session
+ * printing a lot cannot starve the others. A read task handles at most
+ * {@link #READ_BUFFER_SIZE} bytes, then waits for the poller again.
+ *
+ * The terminals are non-blocking, so no task ever waits for a program. Input
+ * is queued per session and a write task writes only what the terminal takes
+ * at once; while the program is not reading, the poller waits until there is
+ * room again and the workers go on with the other sessions.
+ *
+ * The thread count therefore stays the same however many sessions are open.
+ * Only sessions without a pseudo-terminal, whose pipes cannot be polled, still
+ * get a reading and a writing thread of their own.
+ */
+public class TerminalIoScheduler {
+
+    /**
+     * Receiver of a session's output, called on a worker thread, one call at a time
+     */
+    public interface OutputHandler {
+        void onOutput(byte[] data, int length);
+        void onEnd();
+    }
+
+    static final int WORKER_THREADS = 2;
+    static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_POLL_FAILURES = 3;
+    private static final long POLL_RETRY_DELAY_MS = 100;
+
+    private static TerminalIoScheduler instance;
+
+    private final ExecutorService workers;
+    private final AtomicInteger ownThreads = new AtomicInteger();
+
+    // Channels waiting for the terminal, guarded by this
+    private final List<Channel> channels = new ArrayList<>();
+    private Thread poller;
+    private int eventFd = -1;
+
+    /**
+     * Get the scheduler shared by all sessions
+     *
+     * @return The scheduler
+     */
+    public static synchronized TerminalIoScheduler getInstance() {
+        if (instance == null) {
+            instance = new TerminalIoScheduler();
+        }
+        return instance;
+    }
+
+    private TerminalIoScheduler() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "TerminalIo-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        workers = Executors.newFixedThreadPool(WORKER_THREADS, threadFactory);
+    }
+
+    /**
+     * Start handling the input and output of a process on a pseudo-terminal
+     *
+     * @param process The process
+     * @param handler Receiver of the output
+     * @return The channel for writing to the process
+     * @throws IOException If the poller cannot be started
+     */
+    public Channel register(PtyProcess process, OutputHandler handler) throws IOException {
+        Channel channel = new Channel(process.getInputStream(), process.getOutputStream(), handler, process.getFd());
+        synchronized (this) {
+            if (poller == null) {
+                eventFd = PtyProcess.createEventFd();
+                poller = new Thread(this::poll, "TerminalIoPoller");
+                poller.setDaemon(true);
+                poller.start();
+            }
+        }
+        arm(channel, PtyProcess.POLL_READ);
+        return channel;
+    }
+
+    /**
+     * Start handling the input and output of a process without a pseudo-terminal.
+     * Its output is read and its input written on threads of its own.
+     *
+     * @param input Output of the process
+     * @param output Input of the process
+     * @param handler Receiver of the output
+     * @return The channel for writing to the process
+     */
+    public Channel register(InputStream input, OutputStream output, OutputHandler handler) {
+        Channel channel = new Channel(input, output, handler, -1);
+        Thread reader = new Thread(() -> {
+            ownThreads.incrementAndGet();
+            try {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    handler.onOutput(buffer, read);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                channel.end();
+                ownThreads.decrementAndGet();
+            }
+        }, "TerminalIoReader");
+        Thread writer = new Thread(() -> {
+            ownThreads.incrementAndGet();
+            try {
+                channel.writeBlocking();
+            } finally {
+                ownThreads.decrementAndGet();
+            }
+        }, "TerminalIoWriter");
+        reader.start();
+        writer.start();
+        return channel;
+    }
+
+    /**
+     * Get the number of threads doing terminal input and output
+     *
+     * @return Workers, the poller once started, and reading and writing threads
+     *         of sessions without a pseudo-terminal
+     */
+    public synchronized int getThreadCount() {
+        return WORKER_THREADS + (poller != null ? 1 : 0) + ownThreads.get();
+    }
+
+    /**
+     * Get the number of sessions waiting for output or for room for input
+     *
+     * @return Number of polled channels
+     */
+    public synchronized int getPolledChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * Wait for the terminal of the channel to be ready for an event again
+     */
+    private void arm(Channel channel, int event) {
+        synchronized (this) {
+            if (channel.closed) {
+                return;
+            }
+            if (channel.events == 0) {
+                channels.add(channel);
+            }
+            channel.events |= event;
+        }
+        PtyProcess.signalEventFd(eventFd);
+    }
+
+    /**
+     * Stop waiting for the terminal of a channel that is closed
+     */
+    private void disarm(Channel channel) {
+        synchronized (this) {
+            if (channel.events != 0) {
+                channel.events = 0;
+                channels.remove(channel);
+            }
+        }
+        PtyProcess.signalEventFd(eventFd);
+    }
+
+    private void poll() {
+        int[] fds = new int[0];
+        int[] events = new int[0];
+        int[] ready = new int[0];
+        Channel[] polled = new Channel[0];
+        int failures = 0;
+        while (true) {
+            int count;
+            synchronized (this) {
+                count = channels.size();
+                if (fds.length < count) {
+                    fds = new int[count * 2];
+                    events = new int[count * 2];
+                    ready = new int[count * 2];
+                    polled = new Channel[count * 2];
+                }
+                for (int i = 0; i < count; i++) {
+                    polled[i] = channels.get(i);
+                    fds[i] = polled[i].fd;
+                    events[i] = polled[i].events;
+                }
+            }
+
+            try {
+                PtyProcess.poll(fds, events, count, eventFd, ready);
+                failures = 0;
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (++failures >= MAX_POLL_FAILURES) {
+                    // The terminals cannot be waited for, end their sessions instead of freezing them
+                    for (int i = 0; i < count; i++) {
+                        polled[i].end();
+                    }
+                    failures = 0;
+                }
+                Arrays.fill(polled, 0, count, null);
+                try {
+                    Thread.sleep(POLL_RETRY_DELAY_MS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+
+            // A channel is not polled for an event again until its task for it ran
+            for (int i = 0; i < count; i++) {
+                Channel channel = polled[i];
+                polled[i] = null;
+                int readyEvents;
+                synchronized (this) {
+                    // Unless the channel was closed meanwhile
+                    readyEvents = ready[i] & channel.events;
+                    if (readyEvents == 0) {
+                        continue;
+                    }
+                    channel.events &= ~readyEvents;
+                    if (channel.events == 0) {
+                        channels.remove(channel);
+                    }
+                }
+                if ((readyEvents & PtyProcess.POLL_READ) != 0) {
+                    channel.reads.execute(channel.readTask);
+                }
+                if ((readyEvents & PtyProcess.POLL_WRITE) != 0) {
+                    channel.writes.execute(channel.flushTask);
+                }
+            }
+        }
+    }
+
+    /**
+     * Input and output of one session
+     */
+    public class Channel {
+        private final InputStream input;
+        private final OutputStream output;
+        private final OutputHandler handler;
+        private final int fd;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private final SerialQueue reads = new SerialQueue();
+        private final SerialQueue writes = new SerialQueue();
+        private final AtomicInteger queuedWriteBytes = new AtomicInteger();
+        private volatile boolean closed;
+
+        // Events the poller waits for, guarded by the scheduler
+        private int events;
+
+        // Input not written yet, guarded by this
+        private final ArrayDeque<byte[]> pendingWrites = new ArrayDeque<>();
+        private int pendingOffset;
+        private boolean flushing;
+
+        private final Runnable readTask = this::read;
+        private final Runnable flushTask = this::flush;
+
+        Channel(InputStream input, OutputStream output, OutputHandler handler, int fd) {
+            this.input = input;
+            this.output = output;
+            this.handler = handler;
+            this.fd = fd;
+        }
+
+        /**
+         * Queue data to be written to the process. Returns right away; the data
+         * is copied.
+         *
+         * @param data Buffer holding the data
+         * @param offset Start of the data in the buffer
+         * @param length Number of bytes
+         */
+        public void write(byte[] data, int offset, int length) {
+            if (closed || length == 0) {
+                return;
+            }
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+
+            boolean flush;
+            synchronized (this) {
+                pendingWrites.add(copy);
+                queuedWriteBytes.addAndGet(length);
+                flush = !flushing && fd >= 0;
+                flushing = true;
+                notifyAll();
+            }
+            if (flush) {
+                writes.execute(flushTask);
+            }
+        }
+
+        /**
+         * Get the amount of work of this session waiting for a worker or the terminal
+         *
+         * @return Queued read tasks and writes
+         */
+        public int getQueueDepth() {
+            synchronized (this) {
+                return reads.size() + pendingWrites.size();
+            }
+        }
+
+        /**
+         * Get the number of bytes waiting to be written to the process
+         *
+         * @return Number of bytes
+         */
+        public int getQueuedWriteBytes() {
+            return queuedWriteBytes.get();
+        }
+
+        private void read() {
+            if (closed) {
+                return;
+            }
+            int read = PtyProcess.readAvailable(fd, buffer, 0, buffer.length);
+            if (read < 0) {
+                end();
+                return;
+            }
+            if (read > 0) {
+                handler.onOutput(buffer, read);
+            }
+            arm(this, PtyProcess.POLL_READ);
+        }
+
+        /**
+         * Write what the terminal takes of the queued input, one write per turn
+         */
+        private void flush() {
+            byte[] data;
+            int offset;
+            synchronized (this) {
+                data = pendingWrites.peek();
+                if (closed || data == null) {
+                    flushing = false;
+                    return;
+                }
+                offset = pendingOffset;
+            }
+
+            int written = PtyProcess.writeAvailable(fd, data, offset, data.length - offset);
+            if (written == 0) {
+                // Full while the program is not reading, wait for room
+                arm(this, PtyProcess.POLL_WRITE);
+                return;
+            }
+
+            synchronized (this) {
+                if (written < 0) {
+                    dropPendingWrites();
+                    flushing = false;
+                    return;
+                }
+                queuedWriteBytes.addAndGet(-written);
+                pendingOffset += written;
+                if (pendingOffset == data.length) {
+                    pendingWrites.poll();
+                    pendingOffset = 0;
+                }
+                if (pendingWrites.isEmpty()) {
+                    flushing = false;
+                    return;
+                }
+            }
+            writes.execute(flushTask);
+        }
+
+        /**
+         * Write the queued input of a process without a pseudo-terminal on the
+         * calling thread until the channel is closed
+         */
+        void writeBlocking() {
+            while (true) {
+                byte[] data;
+                synchronized (this) {
+                    while (pendingWrites.isEmpty() && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    data = pendingWrites.poll();
+                }
+
+                try {
+                    output.write(data);
+                    output.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    queuedWriteBytes.addAndGet(-data.length);
+                }
+            }
+        }
+
+        private void dropPendingWrites() {
+            pendingWrites.clear();
+            pendingOffset = 0;
+            queuedWriteBytes.set(0);
+        }
+
+        /**
+         * Report the end of the output once. Input not written yet is dropped.
+         */
+        void end() {
+            writes.execute(() -> {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    dropPendingWrites();
+                    notifyAll();
+                }
+                if (fd >= 0) {
+                    disarm(this);
+                }
+                closeQuietly(input);
+                closeQuietly(output);
+                handler.onEnd();
+            });
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with the stream
+        }
+    }
+
+    /**
+     * Tasks of one session that run one at a time, in order, on the shared
+     * workers. After each task the queue goes to the back of the pool's queue.
+     */
+    private class SerialQueue {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+
+        synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (!scheduled) {
+                scheduled = true;
+                workers.execute(this::runNext);
+            }
+        }
+
+        synchronized int size() {
+            return tasks.size();
+        }
+
+        private void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        scheduled = false;
+                    } else {
+                        workers.execute(this::runNext);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -5,14 +5,13 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -23,6 +22,9 @@ public class TerminalManager {
     
     private static final String TAG = "TerminalManager";
     
+    // Commands beyond this many wait in the queue instead of each getting a thread
+    private static final int MAX_COMMAND_THREADS = 2;
+    
     // Built-in languages and tools that should be available in the terminal
     private static final String[] REQUIRED_PACKAGES = {
             "gcc", "g++", "make", "git", "python", "nodejs", "npm",
@@ -48,7 +50,7 @@ public class TerminalManager {
     
     private TerminalManager(Context context) {
         mContext = context;
-        mExecutor = Executors.newCachedThreadPool();
+        mExecutor = Executors.newFixedThreadPool(MAX_COMMAND_THREADS);
         mMainHandler = new Handler(Looper.getMainLooper());
     }
     
@@ -148,44 +150,70 @@ public class TerminalManager {
     /**
      * Execute a command in the terminal environment
      * @param command The command to execute
-     * @param callback Callback for command execution results
+     * @param callback Callback for command execution results, with at most the
+     *                 last {@link CommandExecution#TAIL_SIZE} characters of output
      */
     public void executeCommand(String command, CommandCallback callback) {
-        mExecutor.execute(() -> {
-            try {
-                ProcessBuilder pb = new ProcessBuilder("/system/bin/sh", "-c", command);
-                pb.redirectErrorStream(true);
-                
-                Process process = pb.start();
-                
-                // Read output
-                StringBuilder output = new StringBuilder();
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        output.append(line).append("\n");
-                    }
+        executeCommand(command, 0, new CommandExecution.Callback() {
+            @Override
+            public void onOutput(String output) {
+            }
+            
+            @Override
+            public void onFinished(CommandExecution.Result result) {
+                if (result.getExitCode() == 0) {
+                    callback.onCommandSuccess(result.getOutput());
+                } else {
+                    callback.onCommandError("Exit code: " + result.getExitCode() + "\n" + result.getOutput());
                 }
-                
-                // Wait for process to complete
-                int exitCode = process.waitFor();
-                
-                // Report result on main thread
-                final String result = output.toString();
-                mMainHandler.post(() -> {
-                    if (exitCode == 0) {
-                        callback.onCommandSuccess(result);
-                    } else {
-                        callback.onCommandError("Exit code: " + exitCode + "\n" + result);
-                    }
-                });
-            } catch (Exception e) {
-                Log.e(TAG, "Error executing command", e);
-                mMainHandler.post(() -> callback.onCommandError("Error: " + e.getMessage()));
             }
         });
     }
     
+    /**
+     * Execute a command in the terminal environment, delivering its output while it runs
+     * @param command The command to execute
+     * @param timeoutMillis Time after which the command is stopped, or 0 for no limit
+     * @param callback Callback for the output and result, called on the main thread
+     * @return The running command, for cancelling or waiting for it
+     */
+    public CommandExecution executeCommand(String command, long timeoutMillis, CommandExecution.Callback callback) {
+        return executeCommand(new ProcessBuilder("/system/bin/sh", "-c", command), timeoutMillis, callback);
+    }
+    
+    /**
+     * Run a process, delivering its output while it runs. Standard error is
+     * merged into the output.
+     * @param processBuilder Builder of the process, such as one from
+     *                       {@link PreRootManager#createProcessBuilder(String)}
+     * @param timeoutMillis Time after which the process is stopped, or 0 for no limit
+     * @param callback Callback for the output and result, called on the main thread
+     * @return The running command, for cancelling or waiting for it
+     */
+    public CommandExecution executeCommand(ProcessBuilder processBuilder, long timeoutMillis,
+                                           CommandExecution.Callback callback) {
+        processBuilder.redirectErrorStream(true);
+        CommandExecution execution = new CommandExecution(processBuilder, timeoutMillis, callback, mMainHandler);
+        mExecutor.execute(execution::run);
+        return execution;
+    }
+    
+    /**
+     * Run a command through a runner, delivering its output while it runs
+     * @param runner Runner of the command, such as one on a pooled PRoot shell
+     * @param executor Executor to run the command on, instead of the threads of
+     *                 this manager when the runner may have to wait
+     * @param timeoutMillis Time after which the command is stopped, or 0 for no limit
+     * @param callback Callback for the output and result, called on the main thread
+     * @return The running command, for cancelling or waiting for it
+     */
+    CommandExecution executeCommand(CommandExecution.Runner runner, Executor executor, long timeoutMillis,
+                                    CommandExecution.Callback callback) {
+        CommandExecution execution = new CommandExecution(runner, timeoutMillis, callback, mMainHandler);
+        executor.execute(execution::run);
+        return execution;
+    }
+    
     /**
      * Callback interface for environment initialization
      */
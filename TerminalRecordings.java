@@ -0,0 +1,57 @@
+package com.mobiledev.androidstudio.terminal;
+
+import android.content.Context;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Location of the asciicast recordings of terminal sessions, shared by the
+ * terminal activities
+ */
+public class TerminalRecordings {
+
+    private static final String DIRECTORY = "terminal-recordings";
+    private static final String EXTENSION = ".cast";
+
+    private TerminalRecordings() {
+    }
+
+    /**
+     * Get a new file for a recording, named after the current time
+     *
+     * @param context Context
+     * @return The file, which does not exist yet
+     */
+    public static File createFile(Context context) {
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        directory.mkdirs();
+        String name = new SimpleDateFormat("yyyy-MM-dd-HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, "session-" + name + EXTENSION);
+        for (int i = 2; file.exists(); i++) {
+            file = new File(directory, "session-" + name + "-" + i + EXTENSION);
+        }
+        return file;
+    }
+
+    /**
+     * Get the recordings made so far
+     *
+     * @param context Context
+     * @return The recordings, newest first
+     */
+    public static List<File> list(Context context) {
+        File[] files = new File(context.getFilesDir(), DIRECTORY).listFiles(
+                (directory, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+}
@@ -0,0 +1,479 @@
+package com.mobiledev.androidstudio.terminal;
+
+/**
+ * Grid of terminal cells with scrollback.
+ *
+ * Each cell is a code point and a packed {@link TextStyle}, kept in two
+ * primitive arrays. The screen rows and the transcript (rows scrolled off the
+ * top) share one ring of rows, so scrolling the whole screen moves the ring
+ * start instead of copying every row, and a row pushed into a full transcript
+ * simply reuses the slot of the oldest one.
+ *
+ * Screen rows are indexed from 0; transcript rows have negative indices, down
+ * to -{@link #getActiveTranscriptRows()}. With a {@link ScrollbackArchive}
+ * attached, rows that fall out of the transcript are archived instead of lost
+ * and keep their negative indices, down to -{@link #getHistoryRows()}.
+ *
+ * Changes are tracked per screen row so a view only redraws the rows that
+ * changed, and whole-screen scrolls are counted so it can move what it already
+ * drew instead of redrawing it. The damage is cleared by the one view drawing
+ * the screen.
+ */
+public class TerminalScreen {
+
+    private int columns;
+    private int rows;
+    private final int transcriptRows;
+    private int totalRows;
+    private int activeTranscriptRows;
+    private int[] text;
+    private int[] styles;
+
+    // Ring index of screen row 0
+    private int firstRow;
+
+    // Rows changed since the damage was last cleared
+    private boolean[] dirtyRows;
+
+    // Rows the whole screen scrolled up by since the damage was last cleared
+    private int scrolledRows;
+
+    // Older rows than the transcript holds, or null to drop them
+    private ScrollbackArchive archive;
+
+    // Rows moved off the top of the screen since it was created
+    private long totalScrolledRows;
+
+    /**
+     * Create a new blank screen without scrollback
+     *
+     * @param columns Number of columns
+     * @param rows Number of rows
+     */
+    public TerminalScreen(int columns, int rows) {
+        this(columns, rows, 0);
+    }
+
+    /**
+     * Create a new blank screen
+     *
+     * @param columns Number of columns
+     * @param rows Number of rows
+     * @param transcriptRows Maximum number of rows kept after scrolling off the top
+     */
+    public TerminalScreen(int columns, int rows, int transcriptRows) {
+        this.columns = columns;
+        this.rows = rows;
+        this.transcriptRows = transcriptRows;
+        totalRows = rows + transcriptRows;
+        text = new int[columns * totalRows];
+        styles = new int[columns * totalRows];
+        dirtyRows = new boolean[rows];
+        eraseRows(0, rows, TextStyle.NORMAL);
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the number of rows above the screen that can be scrolled back to
+     *
+     * @return Number of transcript rows in use
+     */
+    public int getActiveTranscriptRows() {
+        return activeTranscriptRows;
+    }
+
+    /**
+     * Get the number of rows above the screen that can be scrolled back to,
+     * including the archived ones
+     *
+     * @return Number of transcript and archived rows
+     */
+    public int getHistoryRows() {
+        if (archive == null) {
+            return activeTranscriptRows;
+        }
+        return activeTranscriptRows + (int) (archive.getEndLine() - archive.getFirstLine());
+    }
+
+    /**
+     * Get the number of rows moved off the top of the screen since it was
+     * created. Adding it to a row index gives a line number that stays the
+     * same while more output arrives.
+     *
+     * @return Number of rows
+     */
+    public long getTotalScrolledRows() {
+        return totalScrolledRows;
+    }
+
+    /**
+     * Keep rows that fall out of the transcript in an archive
+     *
+     * @param archive Archive for older rows, or null to drop them
+     */
+    public void setArchive(ScrollbackArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Check if a screen row changed since the damage was last cleared
+     *
+     * @param row Row index
+     * @return true if the row has to be redrawn
+     */
+    public boolean isRowDirty(int row) {
+        return dirtyRows[row];
+    }
+
+    /**
+     * Get the number of rows the whole screen scrolled up by since the damage was
+     * last cleared. Rows that were already drawn moved up by this amount; the
+     * rows that appeared at the bottom are marked dirty.
+     *
+     * @return Number of rows scrolled
+     */
+    public int getScrolledRows() {
+        return scrolledRows;
+    }
+
+    /**
+     * Mark every row as drawn
+     */
+    public void clearDamage() {
+        for (int row = 0; row < rows; row++) {
+            dirtyRows[row] = false;
+        }
+        scrolledRows = 0;
+    }
+
+    /**
+     * Mark every row as changed
+     */
+    public void markAllDirty() {
+        for (int row = 0; row < rows; row++) {
+            dirtyRows[row] = true;
+        }
+    }
+
+    /**
+     * Drop all transcript rows
+     */
+    public void clearTranscript() {
+        activeTranscriptRows = 0;
+        if (archive != null) {
+            archive.clear();
+        }
+    }
+
+    /**
+     * Get the offset of the first cell of a row in the cell arrays
+     */
+    private int rowOffset(int row) {
+        int index = firstRow + row;
+        if (index >= totalRows) {
+            index -= totalRows;
+        } else if (index < 0) {
+            index += totalRows;
+        }
+        return index * columns;
+    }
+
+    /**
+     * Get the code point in a cell
+     *
+     * @param row Row index
+     * @param column Column index
+     * @return The code point, a space for blank cells
+     */
+    public int getCodePoint(int row, int column) {
+        if (row < -activeTranscriptRows) {
+            return archive.getCodePoint(getArchiveLine(row), column);
+        }
+        return text[rowOffset(row) + column];
+    }
+
+    /**
+     * Get the style of a cell
+     *
+     * @param row Row index
+     * @param column Column index
+     * @return The packed style
+     */
+    public int getStyle(int row, int column) {
+        if (row < -activeTranscriptRows) {
+            return archive.getStyle(getArchiveLine(row), column);
+        }
+        return styles[rowOffset(row) + column];
+    }
+
+    private long getArchiveLine(int row) {
+        return archive.getEndLine() + activeTranscriptRows + row;
+    }
+
+    /**
+     * Archive the oldest rows before their slots are reused
+     *
+     * @param count Number of rows, counted from the oldest transcript row
+     */
+    private void archiveRows(int count) {
+        if (archive == null) {
+            return;
+        }
+        for (int row = -activeTranscriptRows; row < count - activeTranscriptRows; row++) {
+            archive.appendRow(text, styles, rowOffset(row), columns);
+        }
+    }
+
+    /**
+     * Set the contents of a cell
+     *
+     * @param row Row index
+     * @param column Column index
+     * @param codePoint Code point to show
+     * @param style Packed style
+     */
+    public void setChar(int row, int column, int codePoint, int style) {
+        int index = rowOffset(row) + column;
+        text[index] = codePoint;
+        styles[index] = style;
+        dirtyRows[row] = true;
+    }
+
+    /**
+     * Blank a range of cells in a row
+     *
+     * @param row Row index
+     * @param startColumn First column to blank
+     * @param endColumn End of the range (exclusive)
+     * @param style Style of the blanked cells
+     */
+    public void erase(int row, int startColumn, int endColumn, int style) {
+        int offset = rowOffset(row);
+        for (int i = offset + startColumn; i < offset + endColumn; i++) {
+            text[i] = ' ';
+            styles[i] = style;
+        }
+        dirtyRows[row] = true;
+    }
+
+    /**
+     * Blank whole rows
+     *
+     * @param startRow First row to blank
+     * @param endRow End of the range (exclusive)
+     * @param style Style of the blanked cells
+     */
+    public void eraseRows(int startRow, int endRow, int style) {
+        for (int row = startRow; row < endRow; row++) {
+            erase(row, 0, columns, style);
+        }
+    }
+
+    /**
+     * Scroll a region of rows up, blanking the rows that appear at its bottom.
+     * Rows scrolled off the top of the whole screen go to the transcript.
+     *
+     * @param top First row of the region
+     * @param bottom End of the region (exclusive)
+     * @param count Number of rows to scroll by
+     * @param style Style of the new rows
+     */
+    public void scrollUp(int top, int bottom, int count, int style) {
+        count = Math.min(count, bottom - top);
+
+        if (top == 0 && bottom == rows) {
+            archiveRows(activeTranscriptRows + count - transcriptRows);
+            totalScrolledRows += count;
+            firstRow = (firstRow + count) % totalRows;
+            activeTranscriptRows = Math.min(activeTranscriptRows + count, transcriptRows);
+
+            // The damage moves with the rows
+            System.arraycopy(dirtyRows, count, dirtyRows, 0, rows - count);
+            scrolledRows = Math.min(scrolledRows + count, rows);
+        } else {
+            for (int row = top; row < bottom - count; row++) {
+                copyRow(row + count, row);
+            }
+        }
+        eraseRows(bottom - count, bottom, style);
+    }
+
+    /**
+     * Scroll a region of rows down, blanking the rows that appear at its top
+     *
+     * @param top First row of the region
+     * @param bottom End of the region (exclusive)
+     * @param count Number of rows to scroll by
+     * @param style Style of the new rows
+     */
+    public void scrollDown(int top, int bottom, int count, int style) {
+        count = Math.min(count, bottom - top);
+
+        if (top == 0 && bottom == rows && transcriptRows == 0) {
+            firstRow = (firstRow + rows - count) % rows;
+            markAllDirty();
+        } else {
+            for (int row = bottom - 1; row >= top + count; row--) {
+                copyRow(row - count, row);
+            }
+        }
+        eraseRows(top, top + count, style);
+    }
+
+    private void copyRow(int from, int to) {
+        int fromOffset = rowOffset(from);
+        int toOffset = rowOffset(to);
+        System.arraycopy(text, fromOffset, text, toOffset, columns);
+        System.arraycopy(styles, fromOffset, styles, toOffset, columns);
+        dirtyRows[to] = true;
+    }
+
+    /**
+     * Insert blank cells, shifting the rest of the row right
+     *
+     * @param row Row index
+     * @param column Column to insert at
+     * @param count Number of cells to insert
+     * @param style Style of the inserted cells
+     */
+    public void insertCells(int row, int column, int count, int style) {
+        count = Math.min(count, columns - column);
+        int offset = rowOffset(row) + column;
+        System.arraycopy(text, offset, text, offset + count, columns - column - count);
+        System.arraycopy(styles, offset, styles, offset + count, columns - column - count);
+        erase(row, column, column + count, style);
+    }
+
+    /**
+     * Delete cells, shifting the rest of the row left and blanking its end
+     *
+     * @param row Row index
+     * @param column First column to delete
+     * @param count Number of cells to delete
+     * @param style Style of the cells blanked at the end of the row
+     */
+    public void deleteCells(int row, int column, int count, int style) {
+        count = Math.min(count, columns - column);
+        int offset = rowOffset(row) + column;
+        System.arraycopy(text, offset + count, text, offset, columns - column - count);
+        System.arraycopy(styles, offset + count, styles, offset, columns - column - count);
+        erase(row, columns - count, columns, style);
+    }
+
+    /**
+     * Change the size of the screen, keeping the content from a given row on.
+     * Rows above it move to the transcript; rows are cut or padded, not rewrapped.
+     *
+     * @param newColumns New number of columns
+     * @param newRows New number of rows
+     * @param topRow Row that becomes the first row
+     */
+    public void resize(int newColumns, int newRows, int topRow) {
+        int newTotalRows = newRows + transcriptRows;
+        int keptTranscriptRows = Math.min(activeTranscriptRows + topRow, transcriptRows);
+        int[] newText = new int[newColumns * newTotalRows];
+        int[] newStyles = new int[newColumns * newTotalRows];
+        int copyColumns = Math.min(columns, newColumns);
+        archiveRows(activeTranscriptRows + topRow - keptTranscriptRows);
+
+        // The new ring starts with the oldest transcript row
+        for (int row = -keptTranscriptRows; row < newRows; row++) {
+            int start = (row + keptTranscriptRows) * newColumns;
+            int column = 0;
+            if (topRow + row < rows) {
+                int offset = rowOffset(topRow + row);
+                System.arraycopy(text, offset, newText, start, copyColumns);
+                System.arraycopy(styles, offset, newStyles, start, copyColumns);
+                column = copyColumns;
+            }
+            for (; column < newColumns; column++) {
+                newText[start + column] = ' ';
+                newStyles[start + column] = TextStyle.NORMAL;
+            }
+        }
+
+        columns = newColumns;
+        rows = newRows;
+        totalRows = newTotalRows;
+        activeTranscriptRows = keptTranscriptRows;
+        totalScrolledRows += topRow;
+        text = newText;
+        styles = newStyles;
+        firstRow = keptTranscriptRows;
+        dirtyRows = new boolean[newRows];
+        scrolledRows = 0;
+        markAllDirty();
+    }
+
+    /**
+     * Get the text of a row, without trailing blanks
+     *
+     * @param row Row index, negative for transcript and archived rows
+     * @return The text
+     */
+    public String getRowText(int row) {
+        StringBuilder builder = new StringBuilder(columns);
+        appendRowText(row, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Append the text of a row, without trailing blanks
+     *
+     * @param row Row index, negative for transcript and archived rows
+     * @param builder Builder to append to
+     * @return Number of cells appended, which differs from the number of chars
+     *         for characters outside the Basic Multilingual Plane
+     */
+    public int appendRowText(int row, StringBuilder builder) {
+        if (row < -activeTranscriptRows) {
+            return archive.getLineText(getArchiveLine(row), builder);
+        }
+
+        int offset = rowOffset(row);
+        int end = columns;
+        while (end > 0 && text[offset + end - 1] == ' ') {
+            end--;
+        }
+        for (int column = 0; column < end; column++) {
+            builder.appendCodePoint(text[offset + column]);
+        }
+        return end;
+    }
+
+    /**
+     * Check if a row may contain all characters of a mask built with
+     * {@link ScrollbackArchive#getCharacterMask(int)}. Only archived rows can
+     * be ruled out without reading them.
+     *
+     * @param row Row index, negative for transcript and archived rows
+     * @param mask Combined masks of the characters
+     * @return false if the row certainly lacks one of the characters
+     */
+    public boolean mayContain(int row, long mask) {
+        return row >= -activeTranscriptRows || archive.mayContain(getArchiveLine(row), mask);
+    }
+
+    /**
+     * Get the text of the whole screen, one line per row
+     *
+     * @return The text
+     */
+    public String getText() {
+        StringBuilder builder = new StringBuilder();
+        for (int row = 0; row < rows; row++) {
+            if (row > 0) {
+                builder.append('\n');
+            }
+            builder.append(getRowText(row));
+        }
+        return builder.toString();
+    }
+}
\ No newline at end of file
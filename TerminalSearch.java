@@ -0,0 +1,213 @@
+package com.mobiledev.androidstudio.terminal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Search through the whole scrollback of a session, including the archived
+ * part, on a background thread.
+ *
+ * Rows are searched from the bottom of the screen up, a chunk at a time under
+ * the emulator lock, so output keeps being processed while a long search runs.
+ * Matches are reported per chunk as they are found. They are identified by line
+ * numbers that stay valid while more output arrives (see
+ * {@link TerminalScreen#getTotalScrolledRows()}), so a view can jump to one
+ * later. A match does not span rows.
+ *
+ * For patterns without regular expression syntax, archived blocks lacking one
+ * of the searched characters are skipped without being read.
+ */
+public class TerminalSearch {
+
+    /**
+     * Receiver of search results, called on the search thread
+     */
+    public interface Listener {
+        void onMatchesFound(TerminalSearch search, List<Match> matches);
+        void onSearchFinished(TerminalSearch search, int matchCount);
+    }
+
+    /**
+     * A match in one line
+     */
+    public static class Match {
+        private final long line;
+        private final int startColumn;
+        private final int endColumn;
+
+        public Match(long line, int startColumn, int endColumn) {
+            this.line = line;
+            this.startColumn = startColumn;
+            this.endColumn = endColumn;
+        }
+
+        /**
+         * Get the line number, which is a row index plus
+         * {@link TerminalScreen#getTotalScrolledRows()}
+         *
+         * @return Line number
+         */
+        public long getLine() {
+            return line;
+        }
+
+        public int getStartColumn() {
+            return startColumn;
+        }
+
+        /**
+         * Get the end of the match
+         *
+         * @return Column after the last matched cell
+         */
+        public int getEndColumn() {
+            return endColumn;
+        }
+    }
+
+    private static final int CHUNK_ROWS = 512;
+    private static final String REGEX_SYNTAX = "\\[](){}.*+?^$|";
+
+    private final TerminalEmulator emulator;
+    private final Pattern pattern;
+    private final long characterMask;
+    private final Listener listener;
+    private volatile boolean cancelled;
+
+    /**
+     * Create a search
+     *
+     * @param emulator Emulator whose main screen and archive are searched
+     * @param pattern Pattern to look for
+     * @param listener Receiver of the results
+     */
+    public TerminalSearch(TerminalEmulator emulator, Pattern pattern, Listener listener) {
+        this.emulator = emulator;
+        this.pattern = pattern;
+        this.listener = listener;
+        characterMask = getCharacterMask(pattern);
+    }
+
+    /**
+     * Create a search for plain text, ignoring case
+     *
+     * @param emulator Emulator whose main screen and archive are searched
+     * @param text Text to look for
+     * @param listener Receiver of the results
+     * @return The search, not started yet
+     */
+    public static TerminalSearch forText(TerminalEmulator emulator, String text, Listener listener) {
+        Pattern pattern = Pattern.compile(text,
+                Pattern.LITERAL | Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        return new TerminalSearch(emulator, pattern, listener);
+    }
+
+    /**
+     * Get the characters every match contains, when they can be told from the pattern
+     */
+    private static long getCharacterMask(Pattern pattern) {
+        String text = pattern.pattern();
+        if ((pattern.flags() & Pattern.COMMENTS) != 0) {
+            return 0;
+        }
+        if ((pattern.flags() & Pattern.LITERAL) == 0) {
+            for (int i = 0; i < text.length(); i++) {
+                if (REGEX_SYNTAX.indexOf(text.charAt(i)) >= 0) {
+                    return 0;
+                }
+            }
+        }
+
+        long mask = 0;
+        for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i))) {
+            mask |= ScrollbackArchive.getCharacterMask(text.codePointAt(i));
+        }
+        return mask;
+    }
+
+    /**
+     * Start searching on a new thread
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "TerminalSearch");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stop the search. Matches of the chunk being searched may still be reported.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void run() {
+        Matcher matcher = pattern.matcher("");
+        StringBuilder rowText = new StringBuilder();
+        int matchCount = 0;
+        long line = Long.MIN_VALUE;
+
+        while (!cancelled) {
+            List<Match> matches = new ArrayList<>();
+            boolean done = false;
+            synchronized (emulator) {
+                TerminalScreen screen = emulator.getMainScreen();
+                long totalScrolledRows = screen.getTotalScrolledRows();
+                if (line == Long.MIN_VALUE) {
+                    line = totalScrolledRows + screen.getRows() - 1;
+                }
+
+                // Rows move up as output arrives, line numbers stay the same
+                for (int i = 0; i < CHUNK_ROWS; i++, line--) {
+                    int row = (int) (line - totalScrolledRows);
+                    if (row < -screen.getHistoryRows()) {
+                        done = true;
+                        break;
+                    }
+                    if (!screen.mayContain(row, characterMask)) {
+                        continue;
+                    }
+
+                    rowText.setLength(0);
+                    int cells = screen.appendRowText(row, rowText);
+                    matcher.reset(rowText);
+                    while (matcher.find()) {
+                        if (matcher.end() == matcher.start()) {
+                            continue;
+                        }
+                        matches.add(new Match(line, getColumn(rowText, cells, matcher.start()),
+                                getColumn(rowText, cells, matcher.end())));
+                    }
+                }
+            }
+
+            if (!matches.isEmpty() && !cancelled) {
+                matchCount += matches.size();
+                listener.onMatchesFound(this, matches);
+            }
+            if (done) {
+                break;
+            }
+        }
+
+        if (!cancelled) {
+            listener.onSearchFinished(this, matchCount);
+        }
+    }
+
+    /**
+     * Convert an index in the text of a row to a column
+     */
+    private static int getColumn(StringBuilder rowText, int cells, int index) {
+        if (cells == rowText.length()) {
+            return index;
+        }
+        return Character.codePointCount(rowText, 0, index);
+    }
+}
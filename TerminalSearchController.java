@@ -0,0 +1,155 @@
+package com.mobiledev.androidstudio.terminal;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a {@link TerminalSearch} over what a terminal view shows and steps
+ * through the matches, for the search actions of the terminal activities.
+ *
+ * Matches arrive from the bottom of the screen up while the search runs. The
+ * first one is shown as soon as it is found, and stepping works on the
+ * matches found so far. Everything except the search itself runs on the main
+ * thread.
+ */
+public class TerminalSearchController implements TerminalSearch.Listener {
+
+    /**
+     * Receiver of the state of the search, called on the main thread
+     */
+    public interface StatusListener {
+        /**
+         * @param status Text such as "Match 2 of 15", or null when no search is active
+         */
+        void onSearchStatusChanged(@Nullable String status);
+    }
+
+    private final TerminalView view;
+    private final StatusListener statusListener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private TerminalSearch search;
+    private final List<TerminalSearch.Match> matches = new ArrayList<>();
+    private int current = -1;
+    private boolean finished;
+
+    /**
+     * Create a controller
+     *
+     * @param view View whose output is searched and which shows the matches
+     * @param statusListener Receiver of the state of the search
+     */
+    public TerminalSearchController(TerminalView view, StatusListener statusListener) {
+        this.view = view;
+        this.statusListener = statusListener;
+    }
+
+    /**
+     * Start searching for text, ignoring case. A search in progress is cancelled.
+     *
+     * @param text Text to look for
+     */
+    public void start(String text) {
+        cancel();
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+
+        search = TerminalSearch.forText(view.getEmulator(), text, this);
+        search.start();
+        updateStatus();
+    }
+
+    /**
+     * Stop the search and remove the highlight
+     */
+    public void cancel() {
+        if (search == null) {
+            return;
+        }
+        search.cancel();
+        search = null;
+        matches.clear();
+        current = -1;
+        finished = false;
+        view.showMatch(null);
+        statusListener.onSearchStatusChanged(null);
+    }
+
+    /**
+     * Check if a search was started and not cancelled, whether it still runs or not
+     *
+     * @return true while matches can be stepped through
+     */
+    public boolean isActive() {
+        return search != null;
+    }
+
+    /**
+     * Show the next match further back in the output
+     */
+    public void showOlder() {
+        if (current + 1 < matches.size()) {
+            current++;
+            showCurrent();
+        }
+    }
+
+    /**
+     * Show the previous match, closer to the end of the output
+     */
+    public void showNewer() {
+        if (current > 0) {
+            current--;
+            showCurrent();
+        }
+    }
+
+    @Override
+    public void onMatchesFound(TerminalSearch foundSearch, List<TerminalSearch.Match> found) {
+        mainHandler.post(() -> {
+            if (foundSearch != search) {
+                return;
+            }
+            matches.addAll(found);
+            if (current < 0) {
+                current = 0;
+                showCurrent();
+            } else {
+                updateStatus();
+            }
+        });
+    }
+
+    @Override
+    public void onSearchFinished(TerminalSearch finishedSearch, int matchCount) {
+        mainHandler.post(() -> {
+            if (finishedSearch != search) {
+                return;
+            }
+            finished = true;
+            updateStatus();
+        });
+    }
+
+    private void showCurrent() {
+        view.showMatch(matches.get(current));
+        updateStatus();
+    }
+
+    private void updateStatus() {
+        String status;
+        if (matches.isEmpty()) {
+            status = finished ? "No matches" : "Searching...";
+        } else {
+            // More matches may still be found further back
+            status = "Match " + (current + 1) + " of " + matches.size() + (finished ? "" : "+");
+        }
+        statusListener.onSearchStatusChanged(status);
+    }
+}
@@ -15,26 +15,44 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
- * Foreground service for keeping terminal sessions running in the background
+ * Foreground service for keeping terminal sessions running in the background.
+ *
+ * The service owns the sessions: the shell process, the emulator and its
+ * screen live as long as the service, not as long as the activity or fragment
+ * showing them. A session keeps reading and parsing output while no view is
+ * attached, so attaching a view again after a rotation or app switch only
+ * draws the current screen.
  */
 public class TerminalService extends Service {
     private static final String TAG = "TerminalService";
     private static final int NOTIFICATION_ID = 1;
     private static final String CHANNEL_ID = "terminal_service_channel";
+    private static final String SHELL_PATH = "/system/bin/sh";
     
     private final IBinder binder = new TerminalBinder();
-    private Map<String, Process> backgroundProcesses;
+    
+    // Sessions by ID, in the order they were created
+    private Map<String, TerminalSession> sessions;
+    
+    // Commands of all sessions, kept across restarts
+    private CommandHistory commandHistory;
     
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "Terminal service created");
         
-        backgroundProcesses = new HashMap<>();
+        sessions = new LinkedHashMap<>();
+        commandHistory = new CommandHistory(new File(getFilesDir(), "terminal-history"));
         
         // Create notification channel for Android O and above
         createNotificationChannel();
@@ -53,14 +71,14 @@ public class TerminalService extends Service {
     public void onDestroy() {
         Log.d(TAG, "Terminal service destroyed");
         
-        // Kill all background processes
-        for (Process process : backgroundProcesses.values()) {
-            if (process.isAlive()) {
-                process.destroy();
-            }
+        // End all sessions
+        for (TerminalSession session : sessions.values()) {
+            session.setCallback(null);
+            session.finish();
         }
         
-        backgroundProcesses.clear();
+        sessions.clear();
+        commandHistory.close();
         super.onDestroy();
     }
     
@@ -71,28 +89,94 @@ public class TerminalService extends Service {
     }
     
     /**
-     * Register a terminal process to keep running in the background
+     * Get all sessions, including ones whose shell has exited but that were
+     * not removed yet
+     * @return The sessions, in the order they were created
+     */
+    public List<TerminalSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+    
+    /**
+     * Get the IDs of all sessions, for attaching to them again
+     * @return The session IDs, in the order the sessions were created
+     */
+    public List<String> getSessionIds() {
+        return new ArrayList<>(sessions.keySet());
+    }
+    
+    /**
+     * Get the history of commands run in all sessions
+     * @return The command history
+     */
+    public CommandHistory getCommandHistory() {
+        return commandHistory;
+    }
+    
+    /**
+     * Get a session by ID
      * @param sessionId The ID of the terminal session
-     * @param process The process to keep running
+     * @return The session, or null if there is none with this ID
      */
-    public void registerBackgroundProcess(String sessionId, Process process) {
-        backgroundProcesses.put(sessionId, process);
-        
-        // Update notification to show number of background processes
-        updateNotification();
+    public TerminalSession getSession(String sessionId) {
+        return sessions.get(sessionId);
     }
     
     /**
-     * Unregister a terminal process
+     * Start a new shell session with a generated ID
+     * @return The session, or null if the shell could not be started
+     */
+    public TerminalSession createSession() {
+        return createSession(UUID.randomUUID().toString());
+    }
+    
+    /**
+     * Start a new shell session
      * @param sessionId The ID of the terminal session
+     * @return The session, or null if the shell could not be started
      */
-    public void unregisterBackgroundProcess(String sessionId) {
-        Process process = backgroundProcesses.remove(sessionId);
+    public TerminalSession createSession(String sessionId) {
+        try {
+            TerminalSession session = new TerminalSession(SHELL_PATH, null, getFilesDir().getAbsolutePath());
+            sessions.put(sessionId, session);
+            
+            // Update notification to show number of sessions
+            updateNotification();
+            return session;
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting terminal session", e);
+            return null;
+        }
+    }
+    
+    /**
+     * End a session and forget it
+     * @param sessionId The ID of the terminal session
+     */
+    public void removeSession(String sessionId) {
+        TerminalSession session = sessions.remove(sessionId);
+        if (session != null) {
+            session.setCallback(null);
+            session.finish();
+        }
         
         // Update notification
         updateNotification();
     }
     
+    /**
+     * End a session and forget it
+     * @param session The session
+     */
+    public void removeSession(TerminalSession session) {
+        for (Map.Entry<String, TerminalSession> entry : sessions.entrySet()) {
+            if (entry.getValue() == session) {
+                removeSession(entry.getKey());
+                return;
+            }
+        }
+    }
+    
     /**
      * Create notification channel for Android O and above
      */
@@ -120,7 +204,7 @@ public class TerminalService extends Service {
         // Create notification
         NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle("Terminal Service")
-                .setContentText("Running terminal sessions: " + backgroundProcesses.size())
+                .setContentText("Running terminal sessions: " + sessions.size())
                 .setContentIntent(pendingIntent)
                 .setOngoing(true);
         
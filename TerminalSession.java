@@ -1,9 +1,18 @@
 package com.mobiledev.androidstudio.terminal;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mobiledev.androidstudio.MobileDevApplication;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A terminal session, which handles the communication with the shell process.
@@ -11,24 +20,69 @@ import java.io.OutputStream;
 public class TerminalSession {
 
     /**
-     * Callback interface for terminal session events
+     * Callback interface for terminal session events. Except where noted, the
+     * methods are called on a thread of the I/O scheduler.
      */
     public interface SessionCallback {
         void onSessionFinished(TerminalSession session);
         void onTextChanged(TerminalSession session);
         void onBell(TerminalSession session);
+
+        /**
+         * Called on the main thread when the shell reports a new working directory
+         */
         void onDirectoryChanged(TerminalSession session, String newDirectory);
     }
 
+    private static final int DEFAULT_COLUMNS = 80;
+    private static final int DEFAULT_ROWS = 24;
+    private static final int DEFAULT_TRANSCRIPT_ROWS = 10000;
+    private static final String TERMINAL_TYPE = "xterm-256color";
+    private static final String SCROLLBACK_DIRECTORY = "terminal-scrollback";
+    private static final String PROMPT_HOOK_FILE = "terminal-prompt-hook.sh";
+    private static final String ANDROID_SHELL_RC = "/system/etc/mkshrc";
+
+    // Sourced by interactive shells through $ENV. Makes the prompt report the
+    // working directory with OSC 7, which the emulator parses with the output.
+    // The emulator decodes the URL, so a % in the path is sent as %25; plain
+    // POSIX shells cannot replace text in a variable and send the path as is.
+    private static final String PROMPT_HOOK =
+            "if [ -n \"$TERMINAL_USER_ENV\" ] && [ -r \"$TERMINAL_USER_ENV\" ]; then\n"
+            + "    . \"$TERMINAL_USER_ENV\"\n"
+            + "fi\n"
+            + "if [ -n \"$BASH_VERSION\" ]; then\n"
+            + "    __terminal_osc7() { printf '\\033]7;file://%s%s\\007' \"${HOSTNAME:-localhost}\" \"${PWD//\\%/%25}\"; }\n"
+            + "    PROMPT_COMMAND=\"__terminal_osc7${PROMPT_COMMAND:+; $PROMPT_COMMAND}\"\n"
+            + "else\n"
+            + "    __terminal_esc=$(printf '\\033')\n"
+            + "    __terminal_bel=$(printf '\\007')\n"
+            + "    if [ -n \"$KSH_VERSION\" ]; then\n"
+            + "        __terminal_pwd='${PWD//\\%/%25}'\n"
+            + "    else\n"
+            + "        __terminal_pwd='${PWD}'\n"
+            + "    fi\n"
+            + "    __terminal_osc7=\"$__terminal_esc]7;file://localhost$__terminal_pwd$__terminal_bel\"\n"
+            + "    if [ -n \"$KSH_VERSION\" ]; then\n"
+            + "        # mksh leaves text between two of the characters before a leading CR out of the prompt width\n"
+            + "        __terminal_soh=$(printf '\\001')\n"
+            + "        PS1=\"$__terminal_soh$(printf '\\r')$__terminal_soh$__terminal_osc7$__terminal_soh${PS1:-\\$ }\"\n"
+            + "    else\n"
+            + "        PS1=\"$__terminal_osc7${PS1:-\\$ }\"\n"
+            + "    fi\n"
+            + "fi\n";
+    private static final AtomicInteger nextArchiveNumber = new AtomicInteger();
+
     private final Process process;
     private final String shellPath;
     private final String[] arguments;
     private final String initialWorkingDirectory;
-    private String currentWorkingDirectory;
-    private final InputStream terminalOutput;
-    private final OutputStream terminalInput;
-    private final byte[] buffer = new byte[4096];
-    private SessionCallback callback;
+    private volatile String currentWorkingDirectory;
+    private final TerminalIoScheduler.Channel channel;
+    private final TerminalEmulator emulator;
+    private ScrollbackArchive scrollbackArchive;
+    private volatile AsciicastRecorder recorder;
+    private volatile SessionCallback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Create a new terminal session with a shell process
@@ -39,75 +93,267 @@ public class TerminalSession {
      * @throws IOException If the process cannot be started
      */
     public TerminalSession(String shellPath, String[] arguments, String initialWorkingDirectory) throws IOException {
+        this(shellPath, arguments, initialWorkingDirectory, getDefaultTranscriptRows());
+    }
+
+    /**
+     * Create a new terminal session with a shell process
+     *
+     * @param shellPath Path to the shell executable
+     * @param arguments Arguments to pass to the shell
+     * @param initialWorkingDirectory Initial working directory
+     * @param transcriptRows Number of scrollback lines to keep
+     * @throws IOException If the process cannot be started
+     */
+    public TerminalSession(String shellPath, String[] arguments, String initialWorkingDirectory,
+                           int transcriptRows) throws IOException {
         this.shellPath = shellPath;
         this.arguments = arguments;
         this.initialWorkingDirectory = initialWorkingDirectory;
         this.currentWorkingDirectory = initialWorkingDirectory;
+        this.emulator = new TerminalEmulator(DEFAULT_COLUMNS, DEFAULT_ROWS, transcriptRows, new TerminalEmulator.Client() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                writeBytes(data, offset, length);
+            }
 
-        ProcessBuilder processBuilder = new ProcessBuilder(shellPath);
-        if (arguments != null) {
-            processBuilder.command().addAll(java.util.Arrays.asList(arguments));
-        }
-        
-        // Set the working directory if it exists
+            @Override
+            public void onBell() {
+                SessionCallback callback = TerminalSession.this.callback;
+                if (callback != null) {
+                    callback.onBell(TerminalSession.this);
+                }
+            }
+
+            @Override
+            public void onTitleChanged(String title) {
+                // The title is read from the emulator when the view is updated
+            }
+
+            @Override
+            public void onWorkingDirectoryChanged(String directory) {
+                currentWorkingDirectory = directory;
+
+                // Called with the emulator locked, listeners update views
+                mainHandler.post(() -> {
+                    SessionCallback callback = TerminalSession.this.callback;
+                    if (callback != null) {
+                        callback.onDirectoryChanged(TerminalSession.this, directory);
+                    }
+                });
+            }
+        });
+        scrollbackArchive = createScrollbackArchive();
+        emulator.setScrollbackArchive(scrollbackArchive);
+
+        // Use the working directory if it exists
+        File workingDirectory = null;
         if (initialWorkingDirectory != null) {
-            File workingDirectory = new File(initialWorkingDirectory);
-            if (workingDirectory.exists() && workingDirectory.isDirectory()) {
-                processBuilder.directory(workingDirectory);
+            workingDirectory = new File(initialWorkingDirectory);
+            if (!workingDirectory.exists() || !workingDirectory.isDirectory()) {
+                workingDirectory = null;
             }
         }
         
-        // Start the process
-        process = processBuilder.start();
-        terminalOutput = process.getInputStream();
-        terminalInput = process.getOutputStream();
+        // Start the process, on a pseudo-terminal when the native library is there
+        if (PtyProcess.isAvailable()) {
+            String[] command = new String[arguments != null ? arguments.length + 1 : 1];
+            command[0] = new File(shellPath).getName();
+            if (arguments != null) {
+                System.arraycopy(arguments, 0, command, 1, arguments.length);
+            }
+            process = PtyProcess.start(shellPath, command,
+                    workingDirectory != null ? workingDirectory.getPath() : null,
+                    buildEnvironment(), DEFAULT_COLUMNS, DEFAULT_ROWS);
+        } else {
+            ProcessBuilder processBuilder = new ProcessBuilder(shellPath);
+            if (arguments != null) {
+                processBuilder.command().addAll(java.util.Arrays.asList(arguments));
+            }
+            processBuilder.directory(workingDirectory);
+            processBuilder.redirectErrorStream(true);
+            process = processBuilder.start();
+        }
 
         // Start reading output from the terminal
-        startReading();
+        channel = startReading();
     }
 
     /**
-     * Write data to the terminal
+     * Build the environment of a shell on a pseudo-terminal: the app's environment
+     * plus the terminal type the emulator implements
      *
-     * @param data Data to write
+     * @return Environment as NAME=value entries
      */
-    public void write(String data) {
-        try {
-            terminalInput.write(data.getBytes());
-            terminalInput.flush();
+    static String[] buildEnvironment() {
+        Map<String, String> environment = new HashMap<>(System.getenv());
+        environment.put("TERM", TERMINAL_TYPE);
+        if (!environment.containsKey("LANG")) {
+            environment.put("LANG", "en_US.UTF-8");
+        }
+
+        // The prompt hook takes the place of the startup file, and loads it itself
+        File promptHook = writePromptHook();
+        if (promptHook != null) {
+            String userEnv = environment.get("ENV");
+            if (userEnv == null && new File(ANDROID_SHELL_RC).isFile()) {
+                userEnv = ANDROID_SHELL_RC;
+            }
+            if (userEnv != null) {
+                environment.put("TERMINAL_USER_ENV", userEnv);
+            }
+            environment.put("ENV", promptHook.getAbsolutePath());
+        }
+
+        String[] entries = new String[environment.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            entries[i++] = entry.getKey() + "=" + entry.getValue();
+        }
+        return entries;
+    }
+
+    /**
+     * Write the prompt hook to the app's cache directory
+     *
+     * @return The file, or null if it cannot be written
+     */
+    static File writePromptHook() {
+        MobileDevApplication application = MobileDevApplication.getInstance();
+        if (application == null) {
+            return null;
+        }
+
+        // Written under a temporary name, a shell starting meanwhile reads a complete file
+        File file = new File(application.getCacheDir(), PROMPT_HOOK_FILE);
+        File temporary = new File(application.getCacheDir(), PROMPT_HOOK_FILE + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            out.write(PROMPT_HOOK.getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
+        return temporary.renameTo(file) ? file : null;
     }
 
     /**
-     * Start reading data from the terminal
+     * Get the scrollback size chosen for this device by the performance optimizer
+     *
+     * @return Number of scrollback lines
      */
-    private void startReading() {
-        new Thread(() -> {
-            try {
-                int read;
-                while ((read = terminalOutput.read(buffer)) != -1) {
-                    // Process the data (in a real implementation this would update the terminal screen)
-                    processOutput(buffer, read);
-                    
-                    // Notify about text change
-                    if (callback != null) {
-                        callback.onTextChanged(this);
-                    }
-                }
+    static int getDefaultTranscriptRows() {
+        MobileDevApplication application = MobileDevApplication.getInstance();
+        if (application == null || application.getPerformanceOptimizer() == null) {
+            return DEFAULT_TRANSCRIPT_ROWS;
+        }
+        return application.getPerformanceOptimizer().getMaxTerminalBuffer();
+    }
+
+    /**
+     * Create an archive for the scrollback that does not fit in memory, in the
+     * app's cache directory
+     *
+     * @return The archive, or null when there is no application context
+     */
+    static ScrollbackArchive createScrollbackArchive() {
+        MobileDevApplication application = MobileDevApplication.getInstance();
+        if (application == null) {
+            return null;
+        }
+
+        File directory = new File(application.getCacheDir(), SCROLLBACK_DIRECTORY);
+        int number = nextArchiveNumber.getAndIncrement();
+        if (number == 0) {
+            // Archives left behind by an earlier run of the app
+            deleteRecursively(directory);
+        }
+        return new ScrollbackArchive(new File(directory, "session-" + number));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Write data to the terminal
+     *
+     * @param data Data to write
+     */
+    public void write(String data) {
+        byte[] bytes = data.getBytes();
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write raw bytes to the terminal, also used for the emulator's replies. The
+     * data is queued and written on a thread of the I/O scheduler, so this does
+     * not block while the program is not reading its input.
+     *
+     * @param data Buffer holding the data
+     * @param offset Start of the data in the buffer
+     * @param length Number of bytes
+     */
+    private void writeBytes(byte[] data, int offset, int length) {
+        channel.write(data, offset, length);
+    }
+
+    /**
+     * Start reading data from the terminal on the shared I/O scheduler
+     *
+     * @return The channel for writing to the terminal
+     * @throws IOException If the scheduler cannot poll the terminal
+     */
+    private TerminalIoScheduler.Channel startReading() throws IOException {
+        TerminalIoScheduler.OutputHandler handler = new TerminalIoScheduler.OutputHandler() {
+            @Override
+            public void onOutput(byte[] data, int length) {
+                // Update the terminal screen
+                processOutput(data, length);
                 
-                // Process exited
+                // Notify about text change
+                SessionCallback callback = TerminalSession.this.callback;
                 if (callback != null) {
-                    callback.onSessionFinished(this);
+                    callback.onTextChanged(TerminalSession.this);
+                }
+            }
+            
+            @Override
+            public void onEnd() {
+                // The terminal is closed once the shell exits, reap it
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                
+                // Process exited
+                SessionCallback callback = TerminalSession.this.callback;
                 if (callback != null) {
-                    callback.onSessionFinished(this);
+                    callback.onSessionFinished(TerminalSession.this);
                 }
             }
-        }).start();
+        };
+        
+        TerminalIoScheduler scheduler = TerminalIoScheduler.getInstance();
+        if (process instanceof PtyProcess) {
+            return scheduler.register((PtyProcess) process, handler);
+        }
+        return scheduler.register(process.getInputStream(), process.getOutputStream(), handler);
+    }
+
+    /**
+     * Get the amount of work of this session waiting for the I/O scheduler
+     *
+     * @return Number of queued read and write tasks
+     */
+    public int getIoQueueDepth() {
+        return channel.getQueueDepth();
     }
 
     /**
@@ -117,54 +363,97 @@ public class TerminalSession {
      * @param len Length of the data
      */
     private void processOutput(byte[] buffer, int len) {
-        // In a real implementation, this would update the terminal screen
-        // and check for escape sequences, etc.
+        AsciicastRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordOutput(buffer, 0, len);
+        }
         
-        // For demo purposes, check for directory change
-        String data = new String(buffer, 0, len);
-        checkDirectoryChange(data);
+        // The working directory is reported by the prompt hook and parsed here too
+        synchronized (emulator) {
+            emulator.append(buffer, 0, len);
+        }
     }
 
     /**
-     * Check if the directory has changed
+     * Set the session callback. The session keeps processing output without
+     * one, so a view can detach and attach again later.
      *
-     * @param output Output data to check
+     * @param callback Callback to set, or null to detach
      */
-    private void checkDirectoryChange(String output) {
-        // This is a simplified version - in a real implementation,
-        // we would parse the output for directory changes or
-        // use a more reliable method to track the CWD
+    public void setCallback(SessionCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Get the emulator holding the screen contents. Synchronize on it while
+     * reading the screen, output is processed on a background thread.
+     *
+     * @return The terminal emulator
+     */
+    public TerminalEmulator getEmulator() {
+        return emulator;
+    }
+
+    /**
+     * Resize the terminal screen
+     *
+     * @param columns Number of columns
+     * @param rows Number of rows
+     */
+    public void resize(int columns, int rows) {
+        synchronized (emulator) {
+            emulator.resize(columns, rows);
+        }
         
-        if (output.contains("cd ") && output.contains("\n")) {
-            // Detect a CD command and update currentWorkingDirectory
-            // (this is oversimplified and would need more robust parsing)
-            String[] lines = output.split("\n");
-            for (String line : lines) {
-                if (line.trim().startsWith("cd ")) {
-                    String newDir = line.trim().substring(3).trim();
-                    File dir = new File(newDir);
-                    if (!dir.isAbsolute() && currentWorkingDirectory != null) {
-                        dir = new File(currentWorkingDirectory, newDir);
-                    }
-                    
-                    if (dir.exists() && dir.isDirectory()) {
-                        currentWorkingDirectory = dir.getAbsolutePath();
-                        if (callback != null) {
-                            callback.onDirectoryChanged(this, currentWorkingDirectory);
-                        }
-                    }
-                }
-            }
+        AsciicastRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordResize(columns, rows);
+        }
+        
+        // Programs on a pseudo-terminal get SIGWINCH and redraw for the new size
+        if (process instanceof PtyProcess) {
+            ((PtyProcess) process).setWindowSize(columns, rows);
         }
     }
 
     /**
-     * Set the session callback
+     * Start recording the output to an asciicast v2 file, replacing a recording
+     * in progress
      *
-     * @param callback Callback to set
+     * @param file File to write
+     * @throws IOException If the file cannot be written
      */
-    public void setCallback(SessionCallback callback) {
-        this.callback = callback;
+    public void startRecording(File file) throws IOException {
+        stopRecording();
+        
+        int columns;
+        int rows;
+        synchronized (emulator) {
+            columns = emulator.getColumns();
+            rows = emulator.getRows();
+        }
+        recorder = new AsciicastRecorder(file, columns, rows, TERMINAL_TYPE, shellPath);
+    }
+
+    /**
+     * Stop recording. The file is completed in the background, this does not
+     * wait for it.
+     */
+    public void stopRecording() {
+        AsciicastRecorder recorder = this.recorder;
+        this.recorder = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    /**
+     * Check if the output is being recorded
+     *
+     * @return true while recording
+     */
+    public boolean isRecording() {
+        return recorder != null;
     }
 
     /**
@@ -190,5 +479,15 @@ public class TerminalSession {
      */
     public void finish() {
         process.destroy();
+        stopRecording();
+        
+        // The archived scrollback is only readable while the session exists
+        synchronized (emulator) {
+            if (scrollbackArchive != null) {
+                emulator.setScrollbackArchive(null);
+                scrollbackArchive.close();
+                scrollbackArchive = null;
+            }
+        }
     }
 }
\ No newline at end of file
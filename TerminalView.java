@@ -1,32 +1,85 @@
 package com.mobiledev.androidstudio.terminal;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.util.AttributeSet;
 import android.view.View;
 
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Custom view for displaying terminal output
+ * Custom view for displaying terminal output.
+ *
+ * Rows are drawn into an offscreen bitmap and only the rows the screen marks
+ * as changed are redrawn. When the output scrolls, the rows already drawn are
+ * moved up in the bitmap instead of being drawn again. Screen updates from the
+ * session thread are coalesced into at most one redraw per frame.
  */
 public class TerminalView extends View {
 
-    private static final int MAX_LINES = 1000;
-    private static final int CHAR_WIDTH = 10;
-    private static final int LINE_HEIGHT = 24;
+    private static final int DEFAULT_COLUMNS = 80;
+    private static final int DEFAULT_ROWS = 24;
     private static final int PADDING = 8;
+    private static final double MAX_REPLAY_PAUSE = 2;
+    
+    // Scrollback of text added without a session, a session brings its own
+    private static final int LOCAL_TRANSCRIPT_ROWS = 100;
+
+    // xterm 256 color palette, followed by the default foreground and background
+    private static final int[] PALETTE = createPalette();
 
     private final Paint textPaint;
-    private final List<String> lines;
+    private final Paint backgroundPaint;
+    private float charWidth;
+    private int lineHeight;
+    private int baselineOffset;
+    private char[] rowChars = new char[2 * DEFAULT_COLUMNS];
     private TerminalSession session;
-    private int scrollY;
+    private int columns = DEFAULT_COLUMNS;
+    private int rows = DEFAULT_ROWS;
+    
+    // Created when first needed, see getEmulator
+    private TerminalEmulator emulator;
+    private ResizeListener resizeListener;
+
+    // Rows drawn so far, and a second bitmap to move them into when scrolling
+    private Bitmap rowBitmap;
+    private Canvas rowCanvas;
+    private Bitmap spareBitmap;
+    private Canvas spareCanvas;
+    private final Rect sourceRect = new Rect();
+    private final Rect targetRect = new Rect();
+
+    // What the row bitmap shows, to decide whether the damage of the screen applies
+    private TerminalScreen drawnScreen;
+    private int drawnScrollBack;
+    private boolean redrawAll = true;
+    private final AtomicBoolean redrawScheduled = new AtomicBoolean();
+
+    // Number of rows scrolled back into the transcript, 0 when following the output
+    private int scrollBack;
+
+    // Recording being played back, see startReplay
+    private Thread replayThread;
+    private volatile float replaySpeed = 1;
+
+    // Search match drawn over the rows, highlightLine is -1 when there is none
+    private final Paint highlightPaint;
+    private long highlightLine = -1;
+    private int highlightStart;
+    private int highlightEnd;
 
     /**
      * Create a new TerminalView
@@ -57,13 +110,47 @@ public class TerminalView extends View {
     public TerminalView(Context context, @Nullable AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
         
-        lines = new ArrayList<>();
-        
         textPaint = new Paint();
         textPaint.setAntiAlias(true);
-        textPaint.setColor(Color.WHITE);
         textPaint.setTypeface(Typeface.MONOSPACE);
         textPaint.setTextSize(14 * getResources().getDisplayMetrics().density);
+        
+        backgroundPaint = new Paint();
+        backgroundPaint.setStyle(Paint.Style.FILL);
+        
+        highlightPaint = new Paint();
+        highlightPaint.setStyle(Paint.Style.FILL);
+        highlightPaint.setColor(0x80ffd700);
+        
+        // Cell size of the monospace font
+        Paint.FontMetrics metrics = textPaint.getFontMetrics();
+        charWidth = textPaint.measureText("M");
+        lineHeight = (int) Math.ceil(metrics.descent - metrics.ascent);
+        baselineOffset = (int) Math.ceil(-metrics.ascent);
+    }
+
+    /**
+     * Create a screen for text and output added without a session
+     */
+    private static TerminalEmulator createLocalEmulator(int columns, int rows, int transcriptRows) {
+        return new TerminalEmulator(columns, rows, transcriptRows, new TerminalEmulator.Client() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                // No program to reply to
+            }
+            
+            @Override
+            public void onBell() {
+            }
+            
+            @Override
+            public void onTitleChanged(String title) {
+            }
+            
+            @Override
+            public void onWorkingDirectoryChanged(String directory) {
+            }
+        });
     }
 
     /**
@@ -72,12 +159,33 @@ public class TerminalView extends View {
      * @param session Terminal session
      */
     public void attachSession(TerminalSession session) {
+        stopReplay();
         this.session = session;
-        lines.clear();
-        lines.add("");
+        this.emulator = session.getEmulator();
+        scrollBack = 0;
+        redrawAll = true;
+        
+        if (getWidth() > 0 && getHeight() > 0) {
+            updateSize(getWidth(), getHeight());
+        }
         invalidate();
     }
 
+    /**
+     * Get the emulator whose screen is shown: the session's, or the one of a
+     * replay or of text added without a session. The last one is created on the
+     * first call without a session or replay. Called on the main thread.
+     *
+     * @return The emulator
+     */
+    public TerminalEmulator getEmulator() {
+        if (emulator == null) {
+            emulator = createLocalEmulator(columns, rows, LOCAL_TRANSCRIPT_ROWS);
+            emulator.setNewLineMode(true);
+        }
+        return emulator;
+    }
+
     /**
      * Add text to the terminal view
      *
@@ -88,28 +196,35 @@ public class TerminalView extends View {
             return;
         }
         
-        String[] newLines = text.split("\n", -1);
-        
-        if (lines.isEmpty()) {
-            lines.add("");
-        }
-        
-        // Append the first new line to the last existing line
-        int lastLineIndex = lines.size() - 1;
-        String lastLine = lines.get(lastLineIndex);
-        lines.set(lastLineIndex, lastLine + newLines[0]);
-        
-        // Add the rest of the new lines
-        for (int i = 1; i < newLines.length; i++) {
-            lines.add(newLines[i]);
+        // Lines of plain text start at the left edge, also on a session's screen
+        byte[] data = text.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8);
+        append(data, 0, data.length);
+    }
+
+    /**
+     * Add raw program output to the terminal view
+     *
+     * @param data Buffer holding the output
+     * @param offset Start of the output in the buffer
+     * @param length Number of bytes
+     */
+    public void append(byte[] data, int offset, int length) {
+        TerminalEmulator current = getEmulator();
+        synchronized (current) {
+            current.append(data, offset, length);
         }
         
-        // Limit the number of lines
-        while (lines.size() > MAX_LINES) {
-            lines.remove(0);
+        onScreenUpdated();
+    }
+
+    /**
+     * Schedule a redraw after the screen changed. Can be called from any thread;
+     * any number of calls before the next frame result in a single redraw.
+     */
+    public void onScreenUpdated() {
+        if (redrawScheduled.compareAndSet(false, true)) {
+            postInvalidateOnAnimation();
         }
-        
-        invalidate();
     }
 
     /**
@@ -118,7 +233,19 @@ public class TerminalView extends View {
      * @return Number of visible lines
      */
     private int getVisibleLines() {
-        return (getHeight() - 2 * PADDING) / LINE_HEIGHT;
+        return Math.max(1, (getHeight() - 2 * PADDING) / lineHeight);
+    }
+
+    /**
+     * Get the number of transcript and archived rows above the screen
+     *
+     * @return Number of rows above the screen
+     */
+    private int getTranscriptLines() {
+        TerminalEmulator current = getEmulator();
+        synchronized (current) {
+            return current.getScreen().getHistoryRows();
+        }
     }
 
     /**
@@ -127,7 +254,11 @@ public class TerminalView extends View {
      * @return Total number of lines
      */
     private int getTotalLines() {
-        return lines.size();
+        TerminalEmulator current = getEmulator();
+        synchronized (current) {
+            TerminalScreen screen = current.getScreen();
+            return screen.getHistoryRows() + screen.getRows();
+        }
     }
 
     /**
@@ -136,7 +267,8 @@ public class TerminalView extends View {
      * @param y Scroll position
      */
     public void scrollTo(int y) {
-        scrollY = Math.max(0, Math.min(y, getTotalLines() - getVisibleLines()));
+        int transcriptLines = getTranscriptLines();
+        scrollBack = Math.max(0, Math.min(transcriptLines - y, transcriptLines));
         invalidate();
     }
 
@@ -146,7 +278,7 @@ public class TerminalView extends View {
      * @param dy Scroll amount
      */
     public void scrollBy(int dy) {
-        scrollTo(scrollY + dy);
+        scrollTo(getTranscriptLines() - scrollBack + dy);
     }
 
     /**
@@ -156,33 +288,405 @@ public class TerminalView extends View {
         scrollTo(getTotalLines());
     }
 
+    /**
+     * Scroll to a search match and highlight it. Only the rows that become
+     * visible are drawn, however far back the match is.
+     *
+     * @param match The match, or null to remove the highlight
+     */
+    public void showMatch(@Nullable TerminalSearch.Match match) {
+        if (match == null) {
+            highlightLine = -1;
+            invalidate();
+            return;
+        }
+        
+        highlightLine = match.getLine();
+        highlightStart = match.getStartColumn();
+        highlightEnd = match.getEndColumn();
+        
+        // Put the match in the middle of the view unless it is on the screen already.
+        // Matches are in the main screen, the alternate screen cannot be scrolled back.
+        TerminalEmulator current = getEmulator();
+        synchronized (current) {
+            int row = (int) (highlightLine - current.getMainScreen().getTotalScrolledRows());
+            scrollBack = row < 0
+                    ? Math.min(-row + getVisibleLines() / 2, current.getScreen().getHistoryRows())
+                    : 0;
+        }
+        invalidate();
+    }
+
+    /**
+     * Play back an asciicast recording in this view, detaching the session.
+     * Output is shown at the pace it was recorded, divided by the replay speed;
+     * pauses are cut to {@link #MAX_REPLAY_PAUSE} seconds.
+     *
+     * @param file Recording in asciicast v2 format
+     * @param speed Replay speed, greater than 0, 1 for the recorded pace
+     * @throws IOException If the recording cannot be read
+     */
+    public void startReplay(File file, float speed) throws IOException {
+        stopReplay();
+        
+        // The transcript only needs to hold what the recording can scroll out of the screen
+        int transcriptRows = Math.min(countRecordedLines(file), TerminalSession.getDefaultTranscriptRows());
+        AsciicastReader reader = new AsciicastReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        session = null;
+        emulator = createLocalEmulator(reader.getWidth(), reader.getHeight(), transcriptRows);
+        scrollBack = 0;
+        redrawAll = true;
+        replaySpeed = speed;
+        
+        TerminalEmulator replayEmulator = emulator;
+        replayThread = new Thread(() -> {
+            try {
+                replay(reader, replayEmulator);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                // Replay stopped
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }, "TerminalReplay");
+        replayThread.start();
+        invalidate();
+    }
+
+    /**
+     * Count the line feeds in a recording, as the most rows it can scroll into
+     * the transcript. Escaped backslashes followed by an n count too.
+     */
+    private static int countRecordedLines(File file) throws IOException {
+        int lines = 0;
+        boolean escape = false;
+        byte[] buffer = new byte[8192];
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (escape && buffer[i] == 'n') {
+                        lines++;
+                    }
+                    escape = buffer[i] == '\\';
+                }
+            }
+        }
+        return lines;
+    }
+
+    private void replay(AsciicastReader reader, TerminalEmulator replayEmulator)
+            throws IOException, InterruptedException {
+        double previousTime = 0;
+        AsciicastReader.Event event;
+        while ((event = reader.next()) != null) {
+            double pause = Math.min(event.getTime() - previousTime, MAX_REPLAY_PAUSE);
+            previousTime = event.getTime();
+            if (pause > 0) {
+                Thread.sleep((long) (pause * 1000 / replaySpeed));
+            }
+            
+            synchronized (replayEmulator) {
+                if (event.getOutput() != null) {
+                    byte[] data = event.getOutput().getBytes(StandardCharsets.UTF_8);
+                    replayEmulator.append(data, 0, data.length);
+                } else {
+                    replayEmulator.resize(event.getColumns(), event.getRows());
+                }
+            }
+            onScreenUpdated();
+        }
+    }
+
+    /**
+     * Change the speed of the replay in progress
+     *
+     * @param speed Replay speed, greater than 0, 1 for the recorded pace
+     */
+    public void setReplaySpeed(float speed) {
+        replaySpeed = speed;
+    }
+
+    /**
+     * Stop the replay in progress, keeping what was shown so far
+     */
+    public void stopReplay() {
+        if (replayThread != null) {
+            replayThread.interrupt();
+            replayThread = null;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopReplay();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateSize(w, h);
+        
+        if (rowBitmap != null) {
+            rowBitmap.recycle();
+            spareBitmap.recycle();
+            rowBitmap = null;
+            spareBitmap = null;
+        }
+        if (w > 0 && h > 0) {
+            // Opaque 16-bit bitmaps, two of them are kept per view
+            rowBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+            rowCanvas = new Canvas(rowBitmap);
+            spareBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+            spareCanvas = new Canvas(spareBitmap);
+        }
+        redrawAll = true;
+    }
+
+    /**
+     * Resize the terminal to the number of cells that fit in the view
+     */
+    private void updateSize(int width, int height) {
+        columns = Math.max(1, (int) ((width - 2 * PADDING) / charWidth));
+        rows = Math.max(1, (height - 2 * PADDING) / lineHeight);
+        
+        if (rowChars.length < 2 * columns) {
+            rowChars = new char[2 * columns];
+        }
+        
+        if (session != null) {
+            session.resize(columns, rows);
+        } else if (emulator != null) {
+            synchronized (emulator) {
+                emulator.resize(columns, rows);
+            }
+        }
+        
+        if (resizeListener != null) {
+            resizeListener.onTerminalResized(columns, rows);
+        }
+    }
+
+    /**
+     * Set a listener for changes of the terminal size, for output shown without
+     * a session whose program has to be told the new size
+     *
+     * @param listener Listener, or null to remove it
+     */
+    public void setResizeListener(@Nullable ResizeListener listener) {
+        this.resizeListener = listener;
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        redrawScheduled.set(false);
         
-        // Clear the background
-        canvas.drawColor(Color.BLACK);
+        if (rowBitmap == null) {
+            canvas.drawColor(PALETTE[TextStyle.COLOR_INDEX_BACKGROUND]);
+            return;
+        }
         
-        // Calculate the visible lines
-        int visibleLines = getVisibleLines();
-        int startLine = Math.max(0, Math.min(scrollY, getTotalLines() - visibleLines));
-        int endLine = Math.min(startLine + visibleLines, getTotalLines());
+        TerminalEmulator current = getEmulator();
+        synchronized (current) {
+            TerminalScreen screen = current.getScreen();
+            
+            // Calculate the visible rows, negative rows are in the transcript
+            int firstRow = -Math.min(scrollBack, screen.getHistoryRows());
+            int endRow = Math.min(firstRow + getVisibleLines(), screen.getRows());
+            
+            // The damage only describes the bottom of the screen as it was drawn last time
+            boolean all = redrawAll || screen != drawnScreen || firstRow != 0 || drawnScrollBack != 0;
+            int scrolledRows = screen.getScrolledRows();
+            if (!all && scrolledRows > 0) {
+                if (scrolledRows < endRow) {
+                    moveRowsUp(scrolledRows, endRow);
+                } else {
+                    all = true;
+                }
+            }
+            
+            if (all) {
+                rowCanvas.drawColor(PALETTE[TextStyle.COLOR_INDEX_BACKGROUND]);
+            }
+            
+            // Draw the changed rows
+            int y = PADDING;
+            for (int row = firstRow; row < endRow; row++) {
+                if (all || screen.isRowDirty(row)) {
+                    backgroundPaint.setColor(PALETTE[TextStyle.COLOR_INDEX_BACKGROUND]);
+                    rowCanvas.drawRect(0, y, getWidth(), y + lineHeight, backgroundPaint);
+                    drawRow(rowCanvas, screen, row, y);
+                }
+                y += lineHeight;
+            }
+            
+            screen.clearDamage();
+            drawnScreen = screen;
+            drawnScrollBack = -firstRow;
+            redrawAll = false;
+            
+            canvas.drawBitmap(rowBitmap, 0, 0, null);
+            
+            // The highlight is drawn over the bitmap too, so moving it redraws no rows
+            int highlightRow = (int) (highlightLine - screen.getTotalScrolledRows());
+            if (highlightLine >= 0 && screen == current.getMainScreen() && highlightRow >= firstRow && highlightRow < endRow) {
+                int top = PADDING + (highlightRow - firstRow) * lineHeight;
+                canvas.drawRect(PADDING + highlightStart * charWidth, top,
+                        PADDING + highlightEnd * charWidth, top + lineHeight, highlightPaint);
+            }
+            
+            // The cursor is drawn over the bitmap, so moving it leaves no damage behind
+            if (current.isCursorVisible() && current.getCursorRow() < endRow) {
+                drawCursor(canvas, current, screen, PADDING + (current.getCursorRow() - firstRow) * lineHeight);
+            }
+        }
+    }
+
+    /**
+     * Move the drawn rows up after the screen scrolled, using the spare bitmap
+     */
+    private void moveRowsUp(int count, int rows) {
+        sourceRect.set(0, PADDING + count * lineHeight, getWidth(), PADDING + rows * lineHeight);
+        targetRect.set(0, PADDING, getWidth(), PADDING + (rows - count) * lineHeight);
+        spareCanvas.drawColor(PALETTE[TextStyle.COLOR_INDEX_BACKGROUND]);
+        spareCanvas.drawBitmap(rowBitmap, sourceRect, targetRect, null);
         
-        // Draw the text
-        float y = PADDING + LINE_HEIGHT;
-        for (int i = startLine; i < endLine; i++) {
-            String line = lines.get(i);
-            canvas.drawText(line, PADDING, y, textPaint);
-            y += LINE_HEIGHT;
+        Bitmap bitmap = rowBitmap;
+        rowBitmap = spareBitmap;
+        spareBitmap = bitmap;
+        Canvas bitmapCanvas = rowCanvas;
+        rowCanvas = spareCanvas;
+        spareCanvas = bitmapCanvas;
+    }
+
+    /**
+     * Draw one row, one text run per stretch of cells with the same style
+     */
+    private void drawRow(Canvas canvas, TerminalScreen screen, int row, int top) {
+        int columns = screen.getColumns();
+        int runStart = 0;
+        while (runStart < columns) {
+            int style = screen.getStyle(row, runStart);
+            int runEnd = runStart + 1;
+            while (runEnd < columns && screen.getStyle(row, runEnd) == style) {
+                runEnd++;
+            }
+            
+            drawRun(canvas, screen, row, runStart, runEnd, style, top);
+            runStart = runEnd;
         }
     }
 
+    private void drawRun(Canvas canvas, TerminalScreen screen, int row, int start, int end, int style, int top) {
+        int effect = TextStyle.getEffect(style);
+        int foreColor = TextStyle.getForeColor(style);
+        int backColor = TextStyle.getBackColor(style);
+        
+        // Bold text uses the bright variant of the basic colors
+        if ((effect & TextStyle.EFFECT_BOLD) != 0 && foreColor < 8) {
+            foreColor += 8;
+        }
+        if ((effect & TextStyle.EFFECT_INVERSE) != 0) {
+            int color = foreColor == TextStyle.COLOR_INDEX_FOREGROUND ? TextStyle.COLOR_INDEX_BACKGROUND : foreColor;
+            foreColor = backColor == TextStyle.COLOR_INDEX_BACKGROUND ? TextStyle.COLOR_INDEX_FOREGROUND : backColor;
+            backColor = color;
+        }
+        
+        float left = PADDING + start * charWidth;
+        float right = PADDING + end * charWidth;
+        if (backColor != TextStyle.COLOR_INDEX_BACKGROUND) {
+            backgroundPaint.setColor(PALETTE[backColor]);
+            canvas.drawRect(left, top, right, top + lineHeight, backgroundPaint);
+        }
+        
+        if ((effect & TextStyle.EFFECT_INVISIBLE) != 0) {
+            return;
+        }
+        
+        int length = 0;
+        boolean blank = true;
+        for (int column = start; column < end; column++) {
+            int codePoint = screen.getCodePoint(row, column);
+            blank &= codePoint == ' ';
+            length += Character.toChars(codePoint, rowChars, length);
+        }
+        if (blank && (effect & (TextStyle.EFFECT_UNDERLINE | TextStyle.EFFECT_STRIKETHROUGH)) == 0) {
+            return;
+        }
+        
+        textPaint.setColor(PALETTE[foreColor]);
+        textPaint.setAlpha((effect & TextStyle.EFFECT_DIM) != 0 ? 0x99 : 0xff);
+        textPaint.setFakeBoldText((effect & TextStyle.EFFECT_BOLD) != 0);
+        textPaint.setTextSkewX((effect & TextStyle.EFFECT_ITALIC) != 0 ? -0.25f : 0);
+        textPaint.setUnderlineText((effect & TextStyle.EFFECT_UNDERLINE) != 0);
+        textPaint.setStrikeThruText((effect & TextStyle.EFFECT_STRIKETHROUGH) != 0);
+        canvas.drawText(rowChars, 0, length, left, top + baselineOffset, textPaint);
+    }
+
+    /**
+     * Draw the cursor as a block with the character under it in the background color
+     */
+    private void drawCursor(Canvas canvas, TerminalEmulator current, TerminalScreen screen, int top) {
+        int row = current.getCursorRow();
+        int column = current.getCursorColumn();
+        float left = PADDING + column * charWidth;
+        
+        backgroundPaint.setColor(PALETTE[TextStyle.COLOR_INDEX_FOREGROUND]);
+        canvas.drawRect(left, top, left + charWidth, top + lineHeight, backgroundPaint);
+        
+        int length = Character.toChars(screen.getCodePoint(row, column), rowChars, 0);
+        textPaint.setColor(PALETTE[TextStyle.COLOR_INDEX_BACKGROUND]);
+        textPaint.setAlpha(0xff);
+        textPaint.setFakeBoldText(false);
+        textPaint.setTextSkewX(0);
+        textPaint.setUnderlineText(false);
+        textPaint.setStrikeThruText(false);
+        canvas.drawText(rowChars, 0, length, left, top + baselineOffset, textPaint);
+    }
+
+    private static int[] createPalette() {
+        int[] palette = new int[TextStyle.COLOR_INDEX_BACKGROUND + 1];
+        
+        // The 16 basic colors
+        int[] basic = {
+                0x000000, 0xcd0000, 0x00cd00, 0xcdcd00, 0x0000ee, 0xcd00cd, 0x00cdcd, 0xe5e5e5,
+                0x7f7f7f, 0xff0000, 0x00ff00, 0xffff00, 0x5c5cff, 0xff00ff, 0x00ffff, 0xffffff
+        };
+        for (int i = 0; i < basic.length; i++) {
+            palette[i] = 0xff000000 | basic[i];
+        }
+        
+        // 6x6x6 color cube
+        int[] levels = {0, 95, 135, 175, 215, 255};
+        for (int i = 0; i < 216; i++) {
+            palette[16 + i] = 0xff000000 | (levels[i / 36] << 16) | (levels[i / 6 % 6] << 8) | levels[i % 6];
+        }
+        
+        // Gray ramp
+        for (int i = 0; i < 24; i++) {
+            int gray = 8 + 10 * i;
+            palette[232 + i] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+        }
+        
+        palette[TextStyle.COLOR_INDEX_FOREGROUND] = 0xffffffff;
+        palette[TextStyle.COLOR_INDEX_BACKGROUND] = 0xff000000;
+        return palette;
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
         
         // Ensure we can display at least one line
-        int minHeight = LINE_HEIGHT + 2 * PADDING;
+        int minHeight = lineHeight + 2 * PADDING;
         int height = getMeasuredHeight();
         if (height < minHeight) {
             height = minHeight;
@@ -190,4 +694,11 @@ public class TerminalView extends View {
         
         setMeasuredDimension(getMeasuredWidth(), height);
     }
+
+    /**
+     * Listener for changes of the number of columns and rows
+     */
+    public interface ResizeListener {
+        void onTerminalResized(int columns, int rows);
+    }
 }
\ No newline at end of file
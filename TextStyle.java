@@ -0,0 +1,102 @@
+package com.mobiledev.androidstudio.terminal;
+
+/**
+ * Packed text style of a terminal cell.
+ *
+ * A style is a single int so the screen can keep one per cell in a primitive
+ * array: the foreground color index in bits 0-8, the background color index in
+ * bits 9-17 and the effect flags above that. Color indices refer to the 256
+ * color xterm palette, plus two indices for the default colors.
+ */
+public final class TextStyle {
+
+    public static final int COLOR_INDEX_FOREGROUND = 256;
+    public static final int COLOR_INDEX_BACKGROUND = 257;
+
+    public static final int EFFECT_BOLD = 1;
+    public static final int EFFECT_DIM = 1 << 1;
+    public static final int EFFECT_ITALIC = 1 << 2;
+    public static final int EFFECT_UNDERLINE = 1 << 3;
+    public static final int EFFECT_BLINK = 1 << 4;
+    public static final int EFFECT_INVERSE = 1 << 5;
+    public static final int EFFECT_INVISIBLE = 1 << 6;
+    public static final int EFFECT_STRIKETHROUGH = 1 << 7;
+
+    /**
+     * Default colors without effects
+     */
+    public static final int NORMAL = encode(COLOR_INDEX_FOREGROUND, COLOR_INDEX_BACKGROUND, 0);
+
+    private TextStyle() {
+    }
+
+    /**
+     * Pack a style
+     *
+     * @param foreColor Foreground color index
+     * @param backColor Background color index
+     * @param effect Effect flags
+     * @return The packed style
+     */
+    public static int encode(int foreColor, int backColor, int effect) {
+        return (effect << 18) | (backColor << 9) | foreColor;
+    }
+
+    /**
+     * Get the foreground color index of a style
+     *
+     * @param style Packed style
+     * @return Color index
+     */
+    public static int getForeColor(int style) {
+        return style & 0x1ff;
+    }
+
+    /**
+     * Get the background color index of a style
+     *
+     * @param style Packed style
+     * @return Color index
+     */
+    public static int getBackColor(int style) {
+        return (style >>> 9) & 0x1ff;
+    }
+
+    /**
+     * Get the effect flags of a style
+     *
+     * @param style Packed style
+     * @return Effect flags
+     */
+    public static int getEffect(int style) {
+        return style >>> 18;
+    }
+
+    /**
+     * Find the closest color of the 6x6x6 cube or gray ramp of the 256 color palette,
+     * for programs that send 24-bit colors
+     *
+     * @param red Red component, 0-255
+     * @param green Green component, 0-255
+     * @param blue Blue component, 0-255
+     * @return Color index
+     */
+    public static int getClosestColorIndex(int red, int green, int blue) {
+        // Grays map to the gray ramp, which has finer steps than the cube
+        if (red == green && green == blue) {
+            if (red < 8) {
+                return 16;
+            }
+            if (red > 238) {
+                return 231;
+            }
+            return 232 + (red - 8) / 10;
+        }
+
+        return 16 + 36 * toCubeLevel(red) + 6 * toCubeLevel(green) + toCubeLevel(blue);
+    }
+
+    private static int toCubeLevel(int component) {
+        return component < 48 ? 0 : component < 115 ? 1 : (component - 35) / 40;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.mobiledev.androidstudio.syntax;
+
+/**
+ * Token types shared by all syntax highlighters.
+ *
+ * Tokenizers report what a piece of text is rather than how it looks; the
+ * editor turns types into colors when it applies the tokens, so every
+ * language shares one color scheme.
+ */
+public final class TokenType {
+    
+    public static final int KEYWORD = 1;
+    public static final int TYPE = 2;
+    public static final int STRING = 3;
+    public static final int COMMENT = 4;
+    public static final int NUMBER = 5;
+    public static final int ANNOTATION = 6;
+    public static final int METHOD = 7;
+    public static final int TAG = 8;
+    public static final int ATTRIBUTE_NAME = 9;
+    public static final int ATTRIBUTE_VALUE = 10;
+    public static final int CDATA = 11;
+    public static final int ENTITY = 12;
+    
+    /**
+     * Number of token types, for tables indexed by type
+     */
+    public static final int COUNT = 13;
+    
+    // Default colors, indexed by type
+    private static final int[] DEFAULT_COLORS = new int[COUNT];
+    
+    static {
+        DEFAULT_COLORS[KEYWORD] = rgb(86, 156, 214);          // Blue
+        DEFAULT_COLORS[TYPE] = rgb(78, 201, 176);             // Teal
+        DEFAULT_COLORS[STRING] = rgb(214, 157, 133);          // Brown
+        DEFAULT_COLORS[COMMENT] = rgb(87, 166, 74);           // Green
+        DEFAULT_COLORS[NUMBER] = rgb(181, 206, 168);          // Light green
+        DEFAULT_COLORS[ANNOTATION] = rgb(220, 220, 170);      // Yellow
+        DEFAULT_COLORS[METHOD] = rgb(220, 220, 170);          // Yellow
+        DEFAULT_COLORS[TAG] = rgb(86, 156, 214);              // Blue
+        DEFAULT_COLORS[ATTRIBUTE_NAME] = rgb(156, 220, 254);  // Light blue
+        DEFAULT_COLORS[ATTRIBUTE_VALUE] = rgb(214, 157, 133); // Brown
+        DEFAULT_COLORS[CDATA] = rgb(200, 200, 200);           // Light gray
+        DEFAULT_COLORS[ENTITY] = rgb(215, 186, 125);          // Gold
+    }
+    
+    private TokenType() {
+    }
+    
+    /**
+     * Pack an opaque color the way android.graphics.Color.rgb does, so the
+     * tokenizers do not depend on the Android framework
+     */
+    private static int rgb(int red, int green, int blue) {
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+    
+    /**
+     * Get the default color for a token type
+     * @param type The token type
+     * @return The color
+     */
+    public static int getDefaultColor(int type) {
+        return DEFAULT_COLORS[type];
+    }
+}
\ No newline at end of file
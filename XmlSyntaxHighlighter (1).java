@@ -1,174 +1,154 @@
 package com.mobiledev.androidstudio.syntax;
 
-import android.graphics.Color;
-import android.text.Editable;
-import android.text.Spanned;
-import android.text.style.ForegroundColorSpan;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Syntax highlighter for XML code
  */
-public class XmlSyntaxHighlighter implements SyntaxHighlighter {
-    
-    // Colors
-    private static final int TAG_COLOR = Color.rgb(86, 156, 214);        // Blue
-    private static final int ATTRIBUTE_NAME_COLOR = Color.rgb(156, 220, 254);  // Light blue
-    private static final int ATTRIBUTE_VALUE_COLOR = Color.rgb(214, 157, 133); // Brown
-    private static final int COMMENT_COLOR = Color.rgb(87, 166, 74);     // Green
-    private static final int CDATA_COLOR = Color.rgb(200, 200, 200);     // Light gray
-    private static final int ENTITY_COLOR = Color.rgb(215, 186, 125);    // Gold
+public class XmlSyntaxHighlighter implements SyntaxHighlighter, LineTokenizer {
     
-    // Patterns
-    private static final Pattern TAG_PATTERN = Pattern.compile("</?\\w+(?:\\s+[^>]*)?>");
-    private static final Pattern TAG_NAME_PATTERN = Pattern.compile("</?([\\w:-]+)");
-    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("\\s+([\\w:-]+)\\s*=\\s*[\"']([^\"']*)[\"']");
-    private static final Pattern ATTRIBUTE_NAME_PATTERN = Pattern.compile("([\\w:-]+)\\s*=");
-    private static final Pattern ATTRIBUTE_VALUE_PATTERN = Pattern.compile("[\"']([^\"']*)[\"']");
-    private static final Pattern COMMENT_PATTERN = Pattern.compile("<!--.*?-->", Pattern.DOTALL);
-    private static final Pattern CDATA_PATTERN = Pattern.compile("<!\\[CDATA\\[.*?\\]\\]>", Pattern.DOTALL);
-    private static final Pattern ENTITY_PATTERN = Pattern.compile("&[\\w#]+;");
+    // Line states for incremental highlighting
+    private static final int STATE_COMMENT = 1;
+    private static final int STATE_CDATA = 2;
+    private static final int STATE_TAG = 3;
+    private static final int STATE_TAG_DOUBLE_QUOTE = 4;
+    private static final int STATE_TAG_SINGLE_QUOTE = 5;
     
     @Override
-    public void highlight(Editable editable) {
-        String text = editable.toString();
-        
-        // Apply comment highlighting first
-        highlightPattern(editable, COMMENT_PATTERN, COMMENT_COLOR);
-        highlightPattern(editable, CDATA_PATTERN, CDATA_COLOR);
-        
-        // Highlight entities
-        highlightPattern(editable, ENTITY_PATTERN, ENTITY_COLOR);
-        
-        // Highlight tags and tag names
-        highlightTags(editable);
-        
-        // Highlight attributes in tags
-        highlightAttributes(editable);
+    public LineTokenizer getTokenizer() {
+        return this;
     }
     
-    /**
-     * Apply highlighting to text matching a pattern
-     * @param editable The text to highlight
-     * @param pattern The pattern to match
-     * @param color The color to apply
-     */
-    private void highlightPattern(Editable editable, Pattern pattern, int color) {
-        Matcher matcher = pattern.matcher(editable);
+    @Override
+    public int tokenizeLine(CharSequence text, int start, int end, int state, TokenCollector collector) {
+        int pos = start;
         
-        while (matcher.find()) {
-            // Skip if this span overlaps with an existing comment span
-            if (hasOverlappingSpan(editable, matcher.start(), matcher.end(), COMMENT_COLOR, CDATA_COLOR)) {
-                continue;
+        while (pos < end) {
+            switch (state) {
+                case STATE_COMMENT:
+                    pos = tokenizeUntil(text, pos, end, "-->", TokenType.COMMENT, collector);
+                    if (pos < 0) {
+                        return STATE_COMMENT;
+                    }
+                    state = STATE_DEFAULT;
+                    break;
+                
+                case STATE_CDATA:
+                    pos = tokenizeUntil(text, pos, end, "]]>", TokenType.CDATA, collector);
+                    if (pos < 0) {
+                        return STATE_CDATA;
+                    }
+                    state = STATE_DEFAULT;
+                    break;
+                
+                case STATE_TAG_DOUBLE_QUOTE:
+                case STATE_TAG_SINGLE_QUOTE: {
+                    char quote = state == STATE_TAG_DOUBLE_QUOTE ? '"' : '\'';
+                    int close = LineTokenizer.findClosingQuote(text, pos, end, quote);
+                    if (close < 0) {
+                        collector.addToken(pos, end, TokenType.ATTRIBUTE_VALUE);
+                        return state;
+                    }
+                    collector.addToken(pos, close, TokenType.ATTRIBUTE_VALUE);
+                    pos = close;
+                    state = STATE_TAG;
+                    break;
+                }
+                
+                case STATE_TAG: {
+                    char c = text.charAt(pos);
+                    if (c == '>') {
+                        pos++;
+                        state = STATE_DEFAULT;
+                    } else if (c == '"' || c == '\'') {
+                        pos++;
+                        state = c == '"' ? STATE_TAG_DOUBLE_QUOTE : STATE_TAG_SINGLE_QUOTE;
+                        collector.addToken(pos - 1, pos, TokenType.ATTRIBUTE_VALUE);
+                    } else if (isNameChar(c)) {
+                        int nameEnd = skipName(text, pos, end);
+                        collector.addToken(pos, nameEnd, TokenType.ATTRIBUTE_NAME);
+                        pos = nameEnd;
+                    } else {
+                        pos++;
+                    }
+                    break;
+                }
+                
+                default: {
+                    char c = text.charAt(pos);
+                    if (c == '<') {
+                        if (LineTokenizer.indexOf(text, "<!--", pos, Math.min(end, pos + 4)) == pos) {
+                            state = STATE_COMMENT;
+                            collector.addToken(pos, pos + 4, TokenType.COMMENT);
+                            pos += 4;
+                        } else if (LineTokenizer.indexOf(text, "<![CDATA[", pos, Math.min(end, pos + 9)) == pos) {
+                            state = STATE_CDATA;
+                            collector.addToken(pos, pos + 9, TokenType.CDATA);
+                            pos += 9;
+                        } else {
+                            int nameStart = pos + 1 < end && text.charAt(pos + 1) == '/' ? pos + 2 : pos + 1;
+                            if (nameStart < end && isNameChar(text.charAt(nameStart))) {
+                                int nameEnd = skipName(text, nameStart, end);
+                                collector.addToken(pos, nameEnd, TokenType.TAG);
+                                pos = nameEnd;
+                                state = STATE_TAG;
+                            } else {
+                                pos++;
+                            }
+                        }
+                    } else if (c == '&') {
+                        int entityEnd = skipEntity(text, pos, end);
+                        if (entityEnd > 0) {
+                            collector.addToken(pos, entityEnd, TokenType.ENTITY);
+                            pos = entityEnd;
+                        } else {
+                            pos++;
+                        }
+                    } else {
+                        pos++;
+                    }
+                    break;
+                }
             }
-            
-            editable.setSpan(
-                    new ForegroundColorSpan(color),
-                    matcher.start(),
-                    matcher.end(),
-                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
-            );
         }
+        
+        return state;
     }
     
     /**
-     * Highlight XML tags and tag names
-     * @param editable The text to highlight
+     * Emit a token up to and including a terminator
+     * @return Position after the terminator, or -1 if the line ended first
      */
-    private void highlightTags(Editable editable) {
-        Matcher tagMatcher = TAG_PATTERN.matcher(editable);
-        
-        while (tagMatcher.find()) {
-            // Skip if this span overlaps with comment or CDATA
-            if (hasOverlappingSpan(editable, tagMatcher.start(), tagMatcher.end(), COMMENT_COLOR, CDATA_COLOR)) {
-                continue;
-            }
-            
-            String tag = tagMatcher.group();
-            
-            // Highlight tag name
-            Matcher tagNameMatcher = TAG_NAME_PATTERN.matcher(tag);
-            if (tagNameMatcher.find()) {
-                int tagNameStart = tagMatcher.start() + tagNameMatcher.start();
-                int tagNameEnd = tagMatcher.start() + tagNameMatcher.end();
-                
-                editable.setSpan(
-                        new ForegroundColorSpan(TAG_COLOR),
-                        tagNameStart,
-                        tagNameEnd,
-                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
-                );
-            }
+    private int tokenizeUntil(CharSequence text, int pos, int end, String terminator, int type, TokenCollector collector) {
+        int close = LineTokenizer.indexOf(text, terminator, pos, end);
+        if (close < 0) {
+            collector.addToken(pos, end, type);
+            return -1;
         }
+        
+        collector.addToken(pos, close + terminator.length(), type);
+        return close + terminator.length();
     }
     
-    /**
-     * Highlight XML attributes and values
-     * @param editable The text to highlight
-     */
-    private void highlightAttributes(Editable editable) {
-        Matcher tagMatcher = TAG_PATTERN.matcher(editable);
-        
-        while (tagMatcher.find()) {
-            // Skip if this span overlaps with comment or CDATA
-            if (hasOverlappingSpan(editable, tagMatcher.start(), tagMatcher.end(), COMMENT_COLOR, CDATA_COLOR)) {
-                continue;
-            }
-            
-            String tag = tagMatcher.group();
-            
-            // Highlight attribute names
-            Matcher attrNameMatcher = ATTRIBUTE_NAME_PATTERN.matcher(tag);
-            while (attrNameMatcher.find()) {
-                int attrNameStart = tagMatcher.start() + attrNameMatcher.start();
-                int attrNameEnd = tagMatcher.start() + attrNameMatcher.end() - 1; // -1 to exclude '='
-                
-                editable.setSpan(
-                        new ForegroundColorSpan(ATTRIBUTE_NAME_COLOR),
-                        attrNameStart,
-                        attrNameEnd,
-                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
-                );
-            }
-            
-            // Highlight attribute values
-            Matcher attrValueMatcher = ATTRIBUTE_VALUE_PATTERN.matcher(tag);
-            while (attrValueMatcher.find()) {
-                int attrValueStart = tagMatcher.start() + attrValueMatcher.start();
-                int attrValueEnd = tagMatcher.start() + attrValueMatcher.end();
-                
-                editable.setSpan(
-                        new ForegroundColorSpan(ATTRIBUTE_VALUE_COLOR),
-                        attrValueStart,
-                        attrValueEnd,
-                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
-                );
-            }
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == ':' || c == '-' || c == '.';
+    }
+    
+    private static int skipName(CharSequence text, int pos, int end) {
+        while (pos < end && isNameChar(text.charAt(pos))) {
+            pos++;
         }
+        return pos;
     }
     
     /**
-     * Check if a span would overlap with an existing span of the specified color
-     * @param editable The text
-     * @param start The start position
-     * @param end The end position
-     * @param colors The colors to check for overlap
-     * @return True if an overlap would occur
+     * Match an entity such as &amp;amp; or &amp;#10;
+     * @return Position after the entity, or -1 if there is none at pos
      */
-    private boolean hasOverlappingSpan(Editable editable, int start, int end, int... colors) {
-        ForegroundColorSpan[] spans = editable.getSpans(start, end, ForegroundColorSpan.class);
-        
-        for (ForegroundColorSpan span : spans) {
-            int spanColor = span.getForegroundColor();
-            for (int color : colors) {
-                if (spanColor == color) {
-                    return true;
-                }
-            }
+    private static int skipEntity(CharSequence text, int pos, int end) {
+        int i = pos + 1;
+        while (i < end && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_' || text.charAt(i) == '#')) {
+            i++;
         }
         
-        return false;
+        return i > pos + 1 && i < end && text.charAt(i) == ';' ? i + 1 : -1;
     }
 }
\ No newline at end of file
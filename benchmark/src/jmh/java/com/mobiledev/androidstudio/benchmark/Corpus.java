@@ -0,0 +1,236 @@
+package com.mobiledev.androidstudio.benchmark;
+
+import com.mobiledev.androidstudio.editor.GroovySyntaxHighlighter;
+import com.mobiledev.androidstudio.syntax.FastJavaSyntaxHighlighter;
+import com.mobiledev.androidstudio.syntax.JavaSyntaxHighlighter;
+import com.mobiledev.androidstudio.syntax.SyntaxHighlighter;
+import com.mobiledev.androidstudio.syntax.XmlSyntaxHighlighter;
+
+/**
+ * Generated source files used as benchmark input.
+ *
+ * The text is built deterministically so results are comparable between runs,
+ * and mixes the constructs the tokenizers care about: comments, strings,
+ * numbers, annotations, tags and attributes.
+ *
+ * The Java corpora use {@link FastJavaSyntaxHighlighter} like the editor does.
+ * The _REGEX ones run the same text through the older regex tokenizer, as the
+ * baseline to compare against.
+ */
+public enum Corpus {
+    
+    SMALL_CLASS {
+        @Override
+        String generate() {
+            return javaClass(3);
+        }
+        
+        @Override
+        SyntaxHighlighter createHighlighter() {
+            return new FastJavaSyntaxHighlighter();
+        }
+    },
+    
+    SMALL_CLASS_REGEX {
+        @Override
+        String generate() {
+            return SMALL_CLASS.generate();
+        }
+        
+        @Override
+        SyntaxHighlighter createHighlighter() {
+            return new JavaSyntaxHighlighter();
+        }
+    },
+    
+    LARGE_CLASS {
+        @Override
+        String generate() {
+            // About 5000 lines
+            return javaClass(230);
+        }
+        
+        @Override
+        SyntaxHighlighter createHighlighter() {
+            return new FastJavaSyntaxHighlighter();
+        }
+    },
+    
+    LARGE_CLASS_REGEX {
+        @Override
+        String generate() {
+            return LARGE_CLASS.generate();
+        }
+        
+        @Override
+        SyntaxHighlighter createHighlighter() {
+            return new JavaSyntaxHighlighter();
+        }
+    },
+    
+    LARGE_LAYOUT {
+        @Override
+        String generate() {
+            return layoutXml(250);
+        }
+        
+        @Override
+        SyntaxHighlighter createHighlighter() {
+            return new XmlSyntaxHighlighter();
+        }
+    },
+    
+    LARGE_BUILD_GRADLE {
+        @Override
+        String generate() {
+            return buildGradle(200);
+        }
+        
+        @Override
+        SyntaxHighlighter createHighlighter() {
+            return new GroovySyntaxHighlighter();
+        }
+    };
+    
+    /**
+     * Build the text of this corpus
+     */
+    abstract String generate();
+    
+    /**
+     * Create the highlighter for the language of this corpus
+     */
+    abstract SyntaxHighlighter createHighlighter();
+    
+    private static String javaClass(int methods) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("package com.example.generated;\n\n")
+                .append("import java.util.ArrayList;\n")
+                .append("import java.util.List;\n")
+                .append("import java.util.Map;\n\n")
+                .append("/**\n")
+                .append(" * Generated class used to benchmark syntax highlighting.\n")
+                .append(" *\n")
+                .append(" * It has fields, methods, strings, numbers and comments.\n")
+                .append(" */\n")
+                .append("public class GeneratedClass extends BaseClass implements Runnable {\n\n")
+                .append("    private static final String TAG = \"GeneratedClass\";\n")
+                .append("    private static final int MAX_ITEMS = 1024;\n\n")
+                .append("    private final List<String> mItems = new ArrayList<>();\n")
+                .append("    private Map<String, Integer> mCounts;\n\n");
+        
+        for (int i = 0; i < methods; i++) {
+            builder.append("    /**\n")
+                    .append("     * Process item number ").append(i).append("\n")
+                    .append("     * @param value The value to process\n")
+                    .append("     * @return The processed value\n")
+                    .append("     */\n")
+                    .append("    @SuppressWarnings(\"unchecked\")\n")
+                    .append("    public int process").append(i).append("(int value) {\n")
+                    .append("        // Scale the value and keep it in range\n")
+                    .append("        long scaled = value * ").append(i + 1).append("L + 0x").append(Integer.toHexString(i * 31)).append(";\n")
+                    .append("        if (scaled > MAX_ITEMS && !mItems.isEmpty()) {\n")
+                    .append("            mItems.add(\"item-").append(i).append(": \" + String.valueOf(scaled));\n")
+                    .append("        } else {\n")
+                    .append("            /* Not enough items yet */\n")
+                    .append("            mCounts.put(TAG, (int) (scaled % 3.5f));\n")
+                    .append("        }\n")
+                    .append("        \n")
+                    .append("        for (int j = 0; j < value; j++) {\n")
+                    .append("            char c = 'x';\n")
+                    .append("            System.out.println(\"Value \\\"\" + j + c);\n")
+                    .append("        }\n")
+                    .append("        return (int) scaled;\n")
+                    .append("    }\n\n");
+        }
+        
+        builder.append("    @Override\n")
+                .append("    public void run() {\n")
+                .append("        process0(42);\n")
+                .append("    }\n")
+                .append("}\n");
+        return builder.toString();
+    }
+    
+    private static String layoutXml(int rows) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+                .append("<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"\n")
+                .append("    xmlns:app=\"http://schemas.android.com/apk/res-auto\"\n")
+                .append("    android:layout_width=\"match_parent\"\n")
+                .append("    android:layout_height=\"match_parent\"\n")
+                .append("    android:orientation=\"vertical\">\n\n");
+        
+        for (int i = 0; i < rows; i++) {
+            builder.append("    <!-- Row ").append(i).append(" &amp; its label -->\n")
+                    .append("    <LinearLayout\n")
+                    .append("        android:id=\"@+id/row_").append(i).append("\"\n")
+                    .append("        android:layout_width=\"match_parent\"\n")
+                    .append("        android:layout_height=\"wrap_content\"\n")
+                    .append("        android:padding=\"8dp\">\n\n")
+                    .append("        <TextView\n")
+                    .append("            android:id=\"@+id/label_").append(i).append("\"\n")
+                    .append("            android:layout_width=\"0dp\"\n")
+                    .append("            android:layout_height=\"wrap_content\"\n")
+                    .append("            android:layout_weight=\"1\"\n")
+                    .append("            android:text=\"@string/label_").append(i).append("\" />\n\n")
+                    .append("        <Button\n")
+                    .append("            android:id=\"@+id/button_").append(i).append("\"\n")
+                    .append("            android:layout_width=\"wrap_content\"\n")
+                    .append("            android:layout_height=\"wrap_content\"\n")
+                    .append("            app:backgroundTint=\"#FF3F51B5\"\n")
+                    .append("            android:text=\"Open &lt;").append(i).append("&gt;\" />\n")
+                    .append("    </LinearLayout>\n\n");
+        }
+        
+        builder.append("</LinearLayout>\n");
+        return builder.toString();
+    }
+    
+    private static String buildGradle(int modules) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("plugins {\n")
+                .append("    id 'com.android.application'\n")
+                .append("}\n\n")
+                .append("android {\n")
+                .append("    compileSdkVersion 33\n\n")
+                .append("    defaultConfig {\n")
+                .append("        applicationId \"com.example.generated\"\n")
+                .append("        minSdkVersion 24\n")
+                .append("        targetSdkVersion 33\n")
+                .append("        versionCode 1\n")
+                .append("        versionName \"1.0\"\n")
+                .append("    }\n\n")
+                .append("    buildTypes {\n")
+                .append("        release {\n")
+                .append("            minifyEnabled false\n")
+                .append("            proguardFiles getDefaultProguardFile('proguard-android-optimize.txt'), 'proguard-rules.pro'\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n\n");
+        
+        for (int i = 0; i < modules; i++) {
+            builder.append("// Dependencies of feature module ").append(i).append("\n")
+                    .append("dependencies {\n")
+                    .append("    implementation 'androidx.appcompat:appcompat:1.6.").append(i % 10).append("'\n")
+                    .append("    implementation \"com.example.feature").append(i).append(":core:2.").append(i).append(".0\"\n")
+                    .append("    implementation project(':feature").append(i).append("')\n")
+                    .append("    testImplementation 'junit:junit:4.13.2'\n")
+                    .append("    /* Instrumentation tests */\n")
+                    .append("    androidTestImplementation 'androidx.test.ext:junit:1.1.5'\n")
+                    .append("}\n\n")
+                    .append("def feature").append(i).append("Version = ").append(i * 3).append("\n")
+                    .append("task printFeature").append(i).append(" {\n")
+                    .append("    doLast {\n")
+                    .append("        println \"Feature ").append(i).append(" version ${feature").append(i).append("Version}\"\n")
+                    .append("    }\n")
+                    .append("}\n\n");
+        }
+        
+        builder.append("repositories {\n")
+                .append("    google()\n")
+                .append("    mavenCentral()\n")
+                .append("}\n");
+        return builder.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,127 @@
+package com.mobiledev.androidstudio.benchmark;
+
+import com.mobiledev.androidstudio.editor.PieceTableDocument;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the editor's text operations on a 5000 line file, with a plain
+ * StringBuilder as the baseline for edits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentBenchmark {
+    
+    // Scattered edits made before measuring, so the document has many pieces
+    private static final int PRIOR_EDITS = 2000;
+    
+    private PieceTableDocument mDocument;
+    private StringBuilder mBuilder;
+    private int mEditOffset;
+    
+    @Setup(Level.Iteration)
+    public void setUp() {
+        String text = Corpus.LARGE_CLASS.generate();
+        mDocument = new PieceTableDocument();
+        mDocument.replace(0, 0, text, 0, text.length());
+        mBuilder = new StringBuilder(text);
+        
+        Random random = new Random(42);
+        for (int i = 0; i < PRIOR_EDITS; i++) {
+            int offset = random.nextInt(mDocument.length());
+            mDocument.replace(offset, offset, "/**/", 0, 4);
+            mBuilder.insert(offset, "/**/");
+        }
+        
+        mEditOffset = mDocument.getLineStart(mDocument.getLineCount() / 2);
+    }
+    
+    /**
+     * Type one character half way down the document and delete it again
+     */
+    @Benchmark
+    public int pieceTableKeystroke() {
+        mDocument.replace(mEditOffset, mEditOffset, "x", 0, 1);
+        mDocument.replace(mEditOffset, mEditOffset + 1, "", 0, 0);
+        return mDocument.length();
+    }
+    
+    /**
+     * Same edit on a StringBuilder, which moves the whole tail of the text
+     */
+    @Benchmark
+    public int stringBuilderKeystroke() {
+        mBuilder.insert(mEditOffset, 'x');
+        mBuilder.deleteCharAt(mEditOffset);
+        return mBuilder.length();
+    }
+    
+    /**
+     * Read every character in order, as a full tokenizer pass does
+     */
+    @Benchmark
+    public int sequentialRead() {
+        int hash = 0;
+        for (int i = 0, length = mDocument.length(); i < length; i++) {
+            hash = 31 * hash + mDocument.charAt(i);
+        }
+        return hash;
+    }
+    
+    /**
+     * Look up the line of an offset, as the editor does for every edit
+     */
+    @Benchmark
+    public int findLine() {
+        return mDocument.findLine(mEditOffset);
+    }
+    
+    /**
+     * Stream the document out, as saving a file does
+     */
+    @Benchmark
+    public int writeTo() throws IOException {
+        CountingWriter writer = new CountingWriter();
+        mDocument.writeTo(writer);
+        return writer.mCount;
+    }
+    
+    /**
+     * Writer that only counts characters, so the benchmark measures the document
+     */
+    private static class CountingWriter extends Writer {
+        
+        int mCount;
+        
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            mCount += length;
+        }
+        
+        @Override
+        public void write(String string, int offset, int length) {
+            mCount += length;
+        }
+        
+        @Override
+        public void flush() {
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
\ No newline at end of file
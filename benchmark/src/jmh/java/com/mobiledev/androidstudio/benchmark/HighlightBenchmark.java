@@ -0,0 +1,128 @@
+package com.mobiledev.androidstudio.benchmark;
+
+import com.mobiledev.androidstudio.editor.PieceTableDocument;
+import com.mobiledev.androidstudio.syntax.LineStateHighlightEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the syntax highlighting path of the code editor, without the
+ * span handling that needs the Android framework.
+ *
+ * Run with the gc profiler (enabled in the build) to see the allocation rate.
+ */
+public class HighlightBenchmark {
+    
+    // Same values as CodeEditorView
+    private static final int VISIBLE_LINES = 60;
+    private static final int MAX_CATCH_UP_LINES = 300;
+    
+    /**
+     * State for highlighting a whole file from scratch
+     */
+    @State(Scope.Thread)
+    public static class FullPass {
+        
+        @Param({"SMALL_CLASS", "SMALL_CLASS_REGEX", "LARGE_CLASS", "LARGE_CLASS_REGEX",
+                "LARGE_LAYOUT", "LARGE_BUILD_GRADLE"})
+        public Corpus corpus;
+        
+        String text;
+        LineStateHighlightEngine engine;
+        int tokenCount;
+        final LineStateHighlightEngine.TokenApplicator applicator =
+                (lineStart, nextLineStart, tokens) -> tokenCount += tokens.length;
+        
+        @Setup(Level.Trial)
+        public void setUp() {
+            text = corpus.generate();
+            engine = new LineStateHighlightEngine(corpus.createHighlighter().getTokenizer());
+        }
+    }
+    
+    /**
+     * State for typing into a fully highlighted file, half way down
+     */
+    @State(Scope.Thread)
+    public static class Keystroke {
+        
+        @Param({"SMALL_CLASS", "SMALL_CLASS_REGEX", "LARGE_CLASS", "LARGE_CLASS_REGEX",
+                "LARGE_LAYOUT", "LARGE_BUILD_GRADLE"})
+        public Corpus corpus;
+        
+        PieceTableDocument document;
+        LineStateHighlightEngine engine;
+        int editOffset;
+        int visibleStart;
+        int visibleEnd;
+        int tokenCount;
+        final LineStateHighlightEngine.TokenApplicator applicator =
+                (lineStart, nextLineStart, tokens) -> tokenCount += tokens.length;
+        
+        // The document only grows its append buffer, so start from a fresh one per iteration
+        @Setup(Level.Iteration)
+        public void setUp() {
+            String text = corpus.generate();
+            document = new PieceTableDocument();
+            document.replace(0, 0, text, 0, text.length());
+            
+            engine = new LineStateHighlightEngine(corpus.createHighlighter().getTokenizer());
+            engine.applyRange(document, 0, document.length(), Integer.MAX_VALUE, applicator);
+            
+            // Type at the end of the indentation of the middle line
+            int line = document.getLineCount() / 2;
+            editOffset = document.getLineStart(line);
+            while (editOffset < document.getLineEnd(line) && document.charAt(editOffset) == ' ') {
+                editOffset++;
+            }
+            
+            visibleStart = document.getLineStart(Math.max(0, line - VISIBLE_LINES / 2));
+            visibleEnd = document.getLineEnd(Math.min(document.getLineCount() - 1, line + VISIBLE_LINES / 2));
+        }
+    }
+    
+    /**
+     * Tokenize every line of the file
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int fullHighlight(FullPass state) {
+        state.engine.reset();
+        state.engine.applyRange(state.text, 0, state.text.length(), Integer.MAX_VALUE, state.applicator);
+        return state.tokenCount;
+    }
+    
+    /**
+     * Type one character and delete it again, re-highlighting the screen after
+     * each edit the way the editor does
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int keystroke(Keystroke state) {
+        PieceTableDocument document = state.document;
+        LineStateHighlightEngine engine = state.engine;
+        int offset = state.editOffset;
+        
+        document.replace(offset, offset, "x", 0, 1);
+        engine.edit(document, offset, 0, 1, state.visibleEnd + 1);
+        engine.applyRange(document, state.visibleStart, state.visibleEnd + 1, MAX_CATCH_UP_LINES, state.applicator);
+        
+        document.replace(offset, offset + 1, "", 0, 0);
+        engine.edit(document, offset, 1, 0, state.visibleEnd);
+        engine.applyRange(document, state.visibleStart, state.visibleEnd, MAX_CATCH_UP_LINES, state.applicator);
+        
+        return state.tokenCount;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package com.mobiledev.androidstudio.benchmark;
+
+import com.mobiledev.androidstudio.terminal.AsciicastReader;
+import com.mobiledev.androidstudio.terminal.TerminalEmulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the terminal emulator processing a session's output.
+ *
+ * The input is an asciicast recording made with the terminal's recorder, given
+ * as the cast parameter (benchmarkParameters in the jmh block), so real
+ * sessions can be replayed deterministically. Without one, generated build
+ * output with colors and progress lines is used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TerminalBenchmark {
+    
+    private static final int GENERATED_LINES = 20000;
+    
+    @Param({""})
+    public String cast;
+    
+    private final List<byte[]> mChunks = new ArrayList<>();
+    private int mColumns = 80;
+    private int mRows = 24;
+    private TerminalEmulator mEmulator;
+    
+    @Setup(Level.Trial)
+    public void loadOutput() throws IOException {
+        if (cast.isEmpty()) {
+            generateOutput();
+            return;
+        }
+        
+        try (AsciicastReader reader = new AsciicastReader(
+                new InputStreamReader(new FileInputStream(cast), StandardCharsets.UTF_8))) {
+            mColumns = reader.getWidth();
+            mRows = reader.getHeight();
+            AsciicastReader.Event event;
+            while ((event = reader.next()) != null) {
+                if (event.getOutput() != null) {
+                    mChunks.add(event.getOutput().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+    
+    @Setup(Level.Invocation)
+    public void createEmulator() {
+        mEmulator = new TerminalEmulator(mColumns, mRows, 2000, new TerminalEmulator.Client() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+            }
+            
+            @Override
+            public void onBell() {
+            }
+            
+            @Override
+            public void onTitleChanged(String title) {
+            }
+            
+            @Override
+            public void onWorkingDirectoryChanged(String directory) {
+            }
+        });
+    }
+    
+    /**
+     * Feed the whole recording to a new emulator, in the chunks it was read in
+     */
+    @Benchmark
+    public int processOutput() {
+        for (byte[] chunk : mChunks) {
+            mEmulator.append(chunk, 0, chunk.length);
+        }
+        return mEmulator.getCursorRow();
+    }
+    
+    /**
+     * Output of a build: plain lines, colored status lines and a progress line
+     * redrawn with carriage returns, cut into 4 KB chunks like reads from a terminal
+     */
+    private void generateOutput() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < GENERATED_LINES; i++) {
+            if (i % 50 == 0) {
+                builder.append("\u001b[1;32m> Task :app:compileDebugJavaWithJavac\u001b[0m\r\n");
+            } else if (i % 10 == 0) {
+                builder.append("\u001b[33mwarning:\u001b[0m [deprecation] getColor(int) in Resources")
+                        .append(" has been deprecated - line ").append(i).append("\r\n");
+            } else if (i % 7 == 0) {
+                for (int percent = 0; percent <= 100; percent += 25) {
+                    builder.append("\r\u001b[K<=====\u001b[7m").append(percent).append("%\u001b[27m EXECUTING");
+                }
+                builder.append("\r\n");
+            } else {
+                builder.append("    at com.example.app.MainActivity.onCreate(MainActivity.java:").append(i)
+                        .append(")\r\n");
+            }
+        }
+        
+        byte[] data = builder.toString().getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < data.length; offset += 4096) {
+            byte[] chunk = new byte[Math.min(4096, data.length - offset)];
+            System.arraycopy(data, offset, chunk, 0, chunk.length);
+            mChunks.add(chunk);
+        }
+    }
+}
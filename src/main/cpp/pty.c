@@ -0,0 +1,378 @@
+/*
+ * Pseudo-terminal support for PtyProcess.
+ *
+ * Opens a PTY master, forks a child that makes the slave its controlling
+ * terminal and stdin/stdout/stderr, and executes the command. The master is
+ * non-blocking, so a program that stops reading its input cannot block the
+ * thread writing to it. Also waits for many terminals at once for
+ * TerminalIoScheduler. Only POSIX and Linux calls are used, so the library also
+ * builds on desktop Linux for testing.
+ */
+
+#define _GNU_SOURCE
+
+#include <jni.h>
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/eventfd.h>
+#include <sys/ioctl.h>
+#include <sys/wait.h>
+#include <termios.h>
+#include <unistd.h>
+
+#define PTY_METHOD(name) Java_com_mobiledev_androidstudio_terminal_PtyProcess_##name
+
+/* Events of PtyProcess.POLL_READ and POLL_WRITE */
+#define EVENT_READ 1
+#define EVENT_WRITE 2
+
+static void throw_io_exception(JNIEnv *env, const char *message) {
+    char text[256];
+    snprintf(text, sizeof(text), "%s: %s", message, strerror(errno));
+    jclass exception_class = (*env)->FindClass(env, "java/io/IOException");
+    if (exception_class != NULL) {
+        (*env)->ThrowNew(env, exception_class, text);
+    }
+}
+
+/* Copy a Java string array to a NULL-terminated C array, before forking */
+static char **to_c_array(JNIEnv *env, jobjectArray array) {
+    if (array == NULL) {
+        return NULL;
+    }
+
+    jsize length = (*env)->GetArrayLength(env, array);
+    char **result = calloc((size_t) length + 1, sizeof(char *));
+    if (result == NULL) {
+        return NULL;
+    }
+
+    for (jsize i = 0; i < length; i++) {
+        jstring string = (jstring) (*env)->GetObjectArrayElement(env, array, i);
+        const char *chars = (*env)->GetStringUTFChars(env, string, NULL);
+        result[i] = strdup(chars);
+        (*env)->ReleaseStringUTFChars(env, string, chars);
+        (*env)->DeleteLocalRef(env, string);
+    }
+    return result;
+}
+
+static void free_c_array(char **array) {
+    if (array == NULL) {
+        return;
+    }
+    for (char **entry = array; *entry != NULL; entry++) {
+        free(*entry);
+    }
+    free(array);
+}
+
+/* Close every descriptor above stderr in the child */
+static void close_other_descriptors(void) {
+    DIR *directory = opendir("/proc/self/fd");
+    if (directory == NULL) {
+        return;
+    }
+
+    int directory_fd = dirfd(directory);
+    struct dirent *entry;
+    while ((entry = readdir(directory)) != NULL) {
+        int fd = atoi(entry->d_name);
+        if (fd > 2 && fd != directory_fd) {
+            close(fd);
+        }
+    }
+    closedir(directory);
+}
+
+JNIEXPORT jint JNICALL PTY_METHOD(createSubprocess)(JNIEnv *env, jclass clazz, jstring command,
+                                                    jstring working_directory, jobjectArray arguments,
+                                                    jobjectArray environment, jintArray process_id,
+                                                    jint rows, jint columns) {
+    int master = open("/dev/ptmx", O_RDWR | O_CLOEXEC | O_NONBLOCK);
+    if (master < 0) {
+        throw_io_exception(env, "Cannot open /dev/ptmx");
+        return -1;
+    }
+
+    char slave_name[64];
+    if (grantpt(master) != 0 || unlockpt(master) != 0
+            || ptsname_r(master, slave_name, sizeof(slave_name)) != 0) {
+        throw_io_exception(env, "Cannot set up pseudo-terminal");
+        close(master);
+        return -1;
+    }
+
+    // Input is UTF-8 and ^S/^Q are passed to the program
+    struct termios attributes;
+    tcgetattr(master, &attributes);
+    attributes.c_iflag |= IUTF8;
+    attributes.c_iflag &= ~(IXON | IXOFF);
+    tcsetattr(master, TCSANOW, &attributes);
+
+    struct winsize size = {
+            .ws_row = (unsigned short) rows,
+            .ws_col = (unsigned short) columns
+    };
+    ioctl(master, TIOCSWINSZ, &size);
+
+    const char *command_chars = (*env)->GetStringUTFChars(env, command, NULL);
+    char *command_path = strdup(command_chars);
+    (*env)->ReleaseStringUTFChars(env, command, command_chars);
+
+    char *directory = NULL;
+    if (working_directory != NULL) {
+        const char *directory_chars = (*env)->GetStringUTFChars(env, working_directory, NULL);
+        directory = strdup(directory_chars);
+        (*env)->ReleaseStringUTFChars(env, working_directory, directory_chars);
+    }
+
+    char **argv = to_c_array(env, arguments);
+    char **envp = to_c_array(env, environment);
+
+    pid_t pid = fork();
+    if (pid < 0) {
+        throw_io_exception(env, "Cannot fork");
+        close(master);
+    } else if (pid == 0) {
+        // Child: the slave becomes the controlling terminal of a new session
+        sigset_t signals;
+        sigemptyset(&signals);
+        sigprocmask(SIG_SETMASK, &signals, NULL);
+        signal(SIGPIPE, SIG_DFL);
+
+        setsid();
+        int slave = open(slave_name, O_RDWR);
+        if (slave < 0) {
+            _exit(1);
+        }
+        ioctl(slave, TIOCSCTTY, 0);
+        dup2(slave, 0);
+        dup2(slave, 1);
+        dup2(slave, 2);
+        close_other_descriptors();
+
+        if (directory != NULL && chdir(directory) != 0) {
+            dprintf(2, "Cannot change to directory %s: %s\n", directory, strerror(errno));
+        }
+
+        char *default_argv[] = {command_path, NULL};
+        execve(command_path, argv != NULL ? argv : default_argv, envp != NULL ? envp : environ);
+
+        dprintf(2, "Cannot execute %s: %s\n", command_path, strerror(errno));
+        _exit(127);
+    } else {
+        jint pid_value = (jint) pid;
+        (*env)->SetIntArrayRegion(env, process_id, 0, 1, &pid_value);
+    }
+
+    free(command_path);
+    free(directory);
+    free_c_array(argv);
+    free_c_array(envp);
+    return pid < 0 ? -1 : master;
+}
+
+/* Bytes read, 0 if nothing can be read yet, -1 at the end of the output */
+JNIEXPORT jint JNICALL PTY_METHOD(readAvailable)(JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer,
+                                                 jint offset, jint length) {
+    jbyte data[8192];
+    if (length > (jint) sizeof(data)) {
+        length = (jint) sizeof(data);
+    }
+
+    ssize_t result;
+    do {
+        result = read(fd, data, (size_t) length);
+    } while (result < 0 && errno == EINTR);
+
+    if (result < 0) {
+        // EIO once the process and its children closed the terminal
+        return errno == EAGAIN || errno == EWOULDBLOCK ? 0 : -1;
+    }
+    if (result == 0) {
+        return -1;
+    }
+    (*env)->SetByteArrayRegion(env, buffer, offset, (jsize) result, data);
+    return (jint) result;
+}
+
+/* Bytes written, 0 if the terminal cannot take more yet, -1 on an error */
+JNIEXPORT jint JNICALL PTY_METHOD(writeAvailable)(JNIEnv *env, jclass clazz, jint fd, jbyteArray buffer,
+                                                  jint offset, jint length) {
+    jbyte data[8192];
+    if (length > (jint) sizeof(data)) {
+        length = (jint) sizeof(data);
+    }
+    (*env)->GetByteArrayRegion(env, buffer, offset, length, data);
+
+    ssize_t result;
+    do {
+        result = write(fd, data, (size_t) length);
+    } while (result < 0 && errno == EINTR);
+
+    if (result < 0) {
+        return errno == EAGAIN || errno == EWOULDBLOCK ? 0 : -1;
+    }
+    return (jint) result;
+}
+
+/* Wait until a descriptor is ready for the events, or has hung up */
+JNIEXPORT void JNICALL PTY_METHOD(awaitEvents)(JNIEnv *env, jclass clazz, jint fd, jint events) {
+    struct pollfd poll_fd = {
+            .fd = fd,
+            .events = (short) (((events & EVENT_READ) ? POLLIN : 0) | ((events & EVENT_WRITE) ? POLLOUT : 0))
+    };
+    while (poll(&poll_fd, 1, -1) < 0 && errno == EINTR) {
+        // Interrupted by a signal, wait again
+    }
+}
+
+JNIEXPORT void JNICALL PTY_METHOD(close)(JNIEnv *env, jclass clazz, jint fd) {
+    close(fd);
+}
+
+JNIEXPORT void JNICALL PTY_METHOD(setWindowSize)(JNIEnv *env, jclass clazz, jint fd, jint rows,
+                                                 jint columns) {
+    struct winsize size = {
+            .ws_row = (unsigned short) rows,
+            .ws_col = (unsigned short) columns
+    };
+    ioctl(fd, TIOCSWINSZ, &size);
+}
+
+JNIEXPORT jint JNICALL PTY_METHOD(waitFor)(JNIEnv *env, jclass clazz, jint pid) {
+    int status;
+    while (waitpid(pid, &status, 0) < 0) {
+        if (errno != EINTR) {
+            return -1;
+        }
+    }
+
+    if (WIFEXITED(status)) {
+        return WEXITSTATUS(status);
+    }
+    if (WIFSIGNALED(status)) {
+        return 128 + WTERMSIG(status);
+    }
+    return 0;
+}
+
+/* Exit code of a process, -1 while it runs, -2 if it cannot be waited for */
+JNIEXPORT jint JNICALL PTY_METHOD(checkExit)(JNIEnv *env, jclass clazz, jint pid) {
+    int status;
+    pid_t result;
+    do {
+        result = waitpid(pid, &status, WNOHANG);
+    } while (result < 0 && errno == EINTR);
+
+    if (result == 0) {
+        return -1;
+    }
+    if (result < 0) {
+        return -2;
+    }
+    if (WIFEXITED(status)) {
+        return WEXITSTATUS(status);
+    }
+    if (WIFSIGNALED(status)) {
+        return 128 + WTERMSIG(status);
+    }
+    return 0;
+}
+
+JNIEXPORT jint JNICALL PTY_METHOD(createEventFd)(JNIEnv *env, jclass clazz) {
+    int fd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    if (fd < 0) {
+        throw_io_exception(env, "Cannot create eventfd");
+    }
+    return fd;
+}
+
+JNIEXPORT void JNICALL PTY_METHOD(signalEventFd)(JNIEnv *env, jclass clazz, jint fd) {
+    uint64_t one = 1;
+    if (write(fd, &one, sizeof(one)) < 0) {
+        // The counter is already signalled
+    }
+}
+
+/*
+ * Wait until one of the descriptors is ready for its events, has hung up, or
+ * the eventfd is signalled. Sets the ready events of each descriptor and
+ * returns how many descriptors have any. A hang-up counts as every event asked
+ * for, so the following read or write sees the end.
+ */
+JNIEXPORT jint JNICALL PTY_METHOD(poll)(JNIEnv *env, jclass clazz, jintArray fds, jintArray events,
+                                        jint count, jint event_fd, jintArray ready) {
+    struct pollfd *poll_fds = calloc((size_t) count + 1, sizeof(struct pollfd));
+    if (poll_fds == NULL) {
+        throw_io_exception(env, "Cannot poll");
+        return -1;
+    }
+
+    jint *fd_values = (*env)->GetIntArrayElements(env, fds, NULL);
+    jint *event_values = (*env)->GetIntArrayElements(env, events, NULL);
+    for (jint i = 0; i < count; i++) {
+        poll_fds[i].fd = fd_values[i];
+        poll_fds[i].events = (short) (((event_values[i] & EVENT_READ) ? POLLIN : 0)
+                | ((event_values[i] & EVENT_WRITE) ? POLLOUT : 0));
+    }
+    (*env)->ReleaseIntArrayElements(env, fds, fd_values, JNI_ABORT);
+    poll_fds[count].fd = event_fd;
+    poll_fds[count].events = POLLIN;
+
+    int result;
+    do {
+        result = poll(poll_fds, (nfds_t) count + 1, -1);
+    } while (result < 0 && errno == EINTR);
+    if (result < 0) {
+        throw_io_exception(env, "Cannot poll");
+        (*env)->ReleaseIntArrayElements(env, events, event_values, JNI_ABORT);
+        free(poll_fds);
+        return -1;
+    }
+
+    if (poll_fds[count].revents & POLLIN) {
+        uint64_t value;
+        if (read(event_fd, &value, sizeof(value)) < 0) {
+            // Another poll consumed the signal
+        }
+    }
+
+    jint *ready_values = (*env)->GetIntArrayElements(env, ready, NULL);
+    jint ready_count = 0;
+    for (jint i = 0; i < count; i++) {
+        short revents = poll_fds[i].revents;
+        jint ready_events = 0;
+        if (revents & (POLLHUP | POLLERR | POLLNVAL)) {
+            ready_events = event_values[i];
+        } else {
+            if (revents & POLLIN) {
+                ready_events |= EVENT_READ;
+            }
+            if (revents & POLLOUT) {
+                ready_events |= EVENT_WRITE;
+            }
+        }
+        ready_values[i] = ready_events;
+        if (ready_events != 0) {
+            ready_count++;
+        }
+    }
+    (*env)->ReleaseIntArrayElements(env, ready, ready_values, 0);
+    (*env)->ReleaseIntArrayElements(env, events, event_values, JNI_ABORT);
+    free(poll_fds);
+    return ready_count;
+}
+
+JNIEXPORT void JNICALL PTY_METHOD(sendSignal)(JNIEnv *env, jclass clazz, jint pid, jint signal_number) {
+    kill(pid, signal_number);
+}